@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.benchmarks;
+
+import com.mongodb.DBObject;
+import org.breizhbeans.thrift.tools.thriftmongobridge.LazyThriftDocument;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONFieldsFilter;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Large lists of Message (testJug.thrift)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConversationBenchmark {
+
+  @Param({"10", "1000"})
+  public int messages;
+
+  private Conversation conversation;
+  private DBObject dbObject;
+  private RawBsonDocument document;
+  private TBSONSerializer serializer;
+  private TBSONDeserializer deserializer;
+  private TBSONFieldsFilter listViewFilter;
+
+  @Setup
+  public void setup() throws Exception {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    conversation = Fixtures.conversation(messages);
+    serializer = new TBSONSerializer();
+    deserializer = new TBSONDeserializer();
+    dbObject = serializer.serialize(conversation);
+    document = serializer.serializeRaw(conversation);
+    listViewFilter = TBSONFieldsFilter.includePaths(Conversation.class, "id", "tags", "messages.subject");
+  }
+
+  @Benchmark
+  public DBObject serialize() throws Exception {
+    return serializer.serialize(conversation);
+  }
+
+  @Benchmark
+  public RawBsonDocument serializeRaw() throws Exception {
+    return serializer.serializeRaw(conversation);
+  }
+
+  @Benchmark
+  public Conversation deserialize() throws Exception {
+    Conversation result = new Conversation();
+    deserializer.deserialize(result, dbObject);
+    return result;
+  }
+
+  @Benchmark
+  public Conversation deserializeRaw() throws Exception {
+    Conversation result = new Conversation();
+    deserializer.deserialize(result, document);
+    return result;
+  }
+
+  @Benchmark
+  public Conversation partialDeserializeRaw() throws Exception {
+    Conversation result = new Conversation();
+    deserializer.partialDeserialize(result, document, listViewFilter);
+    return result;
+  }
+
+  @Benchmark
+  public Object lazyField() throws Exception {
+    LazyThriftDocument<Conversation> lazy = deserializer.lazyDeserialize(document, Conversation.class);
+    return lazy.getFieldValue(Conversation._Fields.TAGS);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.benchmarks;
+
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.ThriftMongoHelper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.compiled.TBSONCompiledSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.BSonComposite;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.BSonThrift;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserialization (full and partial) of a nested BSonComposite
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeserializerBenchmark {
+
+  private DBObject dbObject;
+  private RawBsonDocument document;
+  private TBSONDeserializer deserializer;
+  private TBSONCompiledSerializer compiledSerializer;
+
+  @Setup
+  public void setup() throws Exception {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    BSonComposite composite = Fixtures.composite();
+    dbObject = new TBSONSerializer().serialize(composite);
+    document = new TBSONSerializer().serializeRaw(composite);
+    deserializer = new TBSONDeserializer();
+    compiledSerializer = new TBSONCompiledSerializer();
+    TBSONCompiledSerializer.precompile(BSonComposite.class);
+  }
+
+  @Benchmark
+  public TBase<?, ?> DBObject2Thrift() throws Exception {
+    return ThriftMongoHelper.DBObject2Thrift(dbObject, BSonComposite.class);
+  }
+
+  @Benchmark
+  public BSonComposite deserialize() throws Exception {
+    BSonComposite composite = new BSonComposite();
+    deserializer.deserialize(composite, dbObject);
+    return composite;
+  }
+
+  @Benchmark
+  public BSonComposite partialDeserialize() throws Exception {
+    // skips the nested struct
+    BSonComposite composite = new BSonComposite();
+    deserializer.partialDeserialize(composite, dbObject, BSonComposite._Fields.BSON_THRIFT);
+    return composite;
+  }
+
+  @Benchmark
+  public BSonComposite deserializeRaw() throws Exception {
+    BSonComposite composite = new BSonComposite();
+    deserializer.deserialize(composite, document);
+    return composite;
+  }
+
+  @Benchmark
+  public BSonComposite partialDeserializeRaw() throws Exception {
+    BSonComposite composite = new BSonComposite();
+    deserializer.partialDeserialize(composite, document, BSonComposite._Fields.BSON_THRIFT);
+    return composite;
+  }
+
+  @Benchmark
+  public BSonComposite deserializeCompiled() throws Exception {
+    return compiledSerializer.deserialize(document, BSonComposite.class);
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.benchmarks;
+
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.AnotherThrift;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.BSonComposite;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.BSonNumericMaps;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.BSonThrift;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.ThriftEnum;
+
+/**
+ * Benchmarked objects, built from the test structs
+ */
+public final class Fixtures {
+
+  private Fixtures() {
+  }
+
+  public static BSonThrift bsonThrift() {
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("string value");
+    bsonThrift.setOneBool(true);
+    bsonThrift.setOneBigInteger(123456789012L);
+    bsonThrift.setOneInter(42);
+    bsonThrift.setAnotherThrift(new AnotherThrift("another string", 32));
+    bsonThrift.setThriftEnum(ThriftEnum.VALUE_TWO);
+    bsonThrift.setBinaryData("binary data".getBytes());
+    for (int i = 0; i < 10; i++) {
+      bsonThrift.addToOneStringList("list value " + i);
+      bsonThrift.addToOneStringSet("set value " + i);
+      bsonThrift.addToOneDoubleList(i * 1.5);
+      bsonThrift.putToOneStringMap("key" + i, "value" + i);
+      bsonThrift.putToOneObjectMapAsValue("object" + i, new AnotherThrift("value" + i, i));
+    }
+    bsonThrift.putToMapEnum(ThriftEnum.VALUE_ONE, "one");
+    return bsonThrift;
+  }
+
+  public static BSonComposite composite() {
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(bsonThrift());
+    return bsonComposite;
+  }
+
+  public static Conversation conversation(int messages) {
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    conversation.setAdId(2);
+    conversation.addToTags("TAG1");
+    conversation.addToTags("TAG2");
+    for (int i = 0; i < messages; i++) {
+      conversation.addToContributors("USER" + i);
+      conversation.addToMessages(message(i));
+    }
+    return conversation;
+  }
+
+  public static Message message(int index) {
+    Message message = new Message();
+    message.setDate(1400000000000L + index);
+    message.setTalker("USER" + index);
+    message.addToReadedBy("USER" + (index + 1));
+    message.addToReadedBy("USER" + (index + 2));
+    message.setSubject("A very nice subject");
+    message.setContent("A short message for the Lyon Jug");
+    return message;
+  }
+
+  public static BSonNumericMaps numericMaps(int entries) {
+    BSonNumericMaps numericMaps = new BSonNumericMaps();
+    for (int i = 0; i < entries; i++) {
+      numericMaps.putToCountersI32(i, 1400000000000L + i);
+      numericMaps.putToCountersI64(i * 1000L, i * 0.25);
+      numericMaps.addToValuesI64(1400000000000L + i);
+      numericMaps.addToValuesDouble(i / 3.0);
+    }
+    return numericMaps;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.benchmarks;
+
+import com.mongodb.DBObject;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.example.SecuredWrapper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.AesGcmSecuredWrapper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrapper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.BSonComposite;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.BSonThrift;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.JUnitBufferSecuredWrapper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.JUnitSecuredWrapper;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Secured (ciphered and hashed) string and map fields through :
+ * - example : the example SecuredWrapper (AES/ECB, thread local ciphers, murmur3 hash)
+ * - ecb : the JUnitSecuredWrapper (AES/ECB, a new Cipher per call, byte[] methods)
+ * - ecbBuffers : the JUnitBufferSecuredWrapper (AES/ECB, thread local ciphers, buffers SPI)
+ * - aesGcm : the AesGcmSecuredWrapper
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SecuredBenchmark {
+
+  @Param({"example", "ecb", "ecbBuffers", "aesGcm"})
+  public String wrapper;
+
+  private BSonComposite composite;
+  private DBObject dbObject;
+  private RawBsonDocument document;
+  private TBSONSerializer serializer;
+  private TBSONDeserializer deserializer;
+  private TBSONSecuredWrapper securedWrapper;
+  private byte[] value;
+  private byte[] cipheredValue;
+
+  @Setup
+  public void setup() throws Exception {
+    if ("aesGcm".equals(wrapper)) {
+      securedWrapper = new AesGcmSecuredWrapper("0123456789abcdef".getBytes("UTF-8"));
+    } else if ("example".equals(wrapper)) {
+      securedWrapper = new SecuredWrapper("0123456789abcdef".getBytes("UTF-8"));
+    } else if ("ecbBuffers".equals(wrapper)) {
+      securedWrapper = new JUnitBufferSecuredWrapper();
+    } else {
+      securedWrapper = new JUnitSecuredWrapper();
+    }
+    TBSONUnstackedProtocol.addSecuredWrapper(securedWrapper);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+
+    composite = Fixtures.composite();
+    serializer = new TBSONSerializer();
+    deserializer = new TBSONDeserializer();
+    dbObject = serializer.serialize(composite);
+    document = serializer.serializeRaw(composite);
+    value = "a secured value of 32 characters".getBytes("UTF-8");
+    cipheredValue = securedWrapper.cipher(value);
+  }
+
+  @TearDown
+  public void tearDown() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Benchmark
+  public byte[] cipher() throws Exception {
+    return securedWrapper.cipher(value);
+  }
+
+  @Benchmark
+  public byte[] decipher() throws Exception {
+    return securedWrapper.decipher(cipheredValue);
+  }
+
+  @Benchmark
+  public long digest64() throws Exception {
+    return securedWrapper.digest64(value);
+  }
+
+  @Benchmark
+  public DBObject serialize() throws Exception {
+    return serializer.serialize(composite);
+  }
+
+  @Benchmark
+  public RawBsonDocument serializeRaw() throws Exception {
+    return serializer.serializeRaw(composite);
+  }
+
+  @Benchmark
+  public BSonComposite deserialize() throws Exception {
+    BSonComposite result = new BSonComposite();
+    deserializer.deserialize(result, dbObject);
+    return result;
+  }
+
+  @Benchmark
+  public BSonComposite deserializeRaw() throws Exception {
+    BSonComposite result = new BSonComposite();
+    deserializer.deserialize(result, document);
+    return result;
+  }
+}
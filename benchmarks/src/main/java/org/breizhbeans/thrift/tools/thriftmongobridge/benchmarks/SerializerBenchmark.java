@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.benchmarks;
+
+import com.mongodb.DBObject;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.ThriftMongoHelper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.compiled.TBSONCompiledSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.test.BSonComposite;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a nested BSonComposite
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+  private BSonComposite composite;
+  private TBSONSerializer serializer;
+  private TBSONCompiledSerializer compiledSerializer;
+
+  @Setup
+  public void setup() throws Exception {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    composite = Fixtures.composite();
+    serializer = new TBSONSerializer();
+    compiledSerializer = new TBSONCompiledSerializer();
+    TBSONCompiledSerializer.precompile(BSonComposite.class);
+  }
+
+  @Benchmark
+  public DBObject thrift2DBObject() throws Exception {
+    return ThriftMongoHelper.thrift2DBObject(composite);
+  }
+
+  @Benchmark
+  public DBObject serialize() throws Exception {
+    return serializer.serialize(composite);
+  }
+
+  @Benchmark
+  public RawBsonDocument serializeRaw() throws Exception {
+    return serializer.serializeRaw(composite);
+  }
+
+  @Benchmark
+  public RawBsonDocument serializeCompiled() throws Exception {
+    return compiledSerializer.serialize(composite);
+  }
+}
@@ -33,11 +33,29 @@ import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrappe
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class SecuredWrapper extends TBSONSecuredWrapper {
 
-  private SecretKeySpec skeyspec;
+  private static final String TRANSFORMATION = "AES/ECB/PKCS5Padding";
+
+  private final SecretKeySpec skeyspec;
+  private final HashFunction hashFunction;
+
+  // Cipher instances are not thread safe : one initialized instance per thread and mode
+  private final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher(Cipher.ENCRYPT_MODE);
+    }
+  };
+  private final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher(Cipher.DECRYPT_MODE);
+    }
+  };
 
   // Thrift serialize and deserializers
   private final TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
@@ -45,25 +63,38 @@ public class SecuredWrapper extends TBSONSecuredWrapper {
 
   public SecuredWrapper(byte[] aesKey) throws Exception {
     skeyspec = new SecretKeySpec(aesKey, "AES");
+    // initialize the hash with the AES Hash code
+    hashFunction = Hashing.murmur3_128(Arrays.hashCode(aesKey));
+  }
+
+  private Cipher newCipher(int mode) {
+    try {
+      Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+      cipher.init(mode, skeyspec);
+      return cipher;
+    } catch (Exception exp) {
+      throw new IllegalStateException(exp);
+    }
   }
 
   @Override
   public long digest64(byte[] data) {
-    // initialize the hash with the AES Hash code
-    int seed = Arrays.hashCode(skeyspec.getEncoded());
-    HashFunction hf = Hashing.murmur3_128(seed);
-
-    com.google.common.hash.HashCode hashCode = hf.hashBytes(data);
+    return hashFunction.hashBytes(data).padToLong();
+  }
 
-    return hashCode.padToLong();
+  @Override
+  public long digest64(ByteBuffer data) throws TException {
+    if (!data.hasArray()) {
+      return super.digest64(data);
+    }
+    return hashFunction.hashBytes(data.array(), data.arrayOffset() + data.position(), data.remaining()).padToLong();
   }
 
   @Override
   public byte[] cipher(byte[] data) throws TException {
     try {
-      Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-      cipher.init(Cipher.ENCRYPT_MODE, skeyspec);
-      return cipher.doFinal(data);
+      // ECB without IV : doFinal resets the cipher to its initialized state
+      return encryptCipher.get().doFinal(data);
     } catch (Exception exp) {
       throw new TException(exp);
     }
@@ -72,9 +103,35 @@ public class SecuredWrapper extends TBSONSecuredWrapper {
   @Override
   public byte[] decipher(byte[] data) throws TException {
     try {
-      Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
-      cipher.init(Cipher.DECRYPT_MODE, skeyspec);
-      return cipher.doFinal(data);
+      return decryptCipher.get().doFinal(data);
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+
+  @Override
+  public int cipherOutputSize(int inputLength) {
+    return encryptCipher.get().getOutputSize(inputLength);
+  }
+
+  @Override
+  public int decipherOutputSize(int inputLength) {
+    return decryptCipher.get().getOutputSize(inputLength);
+  }
+
+  @Override
+  public int cipher(ByteBuffer src, ByteBuffer dst) throws TException {
+    try {
+      return encryptCipher.get().doFinal(src, dst);
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+
+  @Override
+  public int decipher(ByteBuffer src, ByteBuffer dst) throws TException {
+    try {
+      return decryptCipher.get().doFinal(src, dst);
     } catch (Exception exp) {
       throw new TException(exp);
     }
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge;
+
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.bson.RawBsonDocument;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Conversion of a list split in ranges between the workers of a ForkJoinPool.
+ * The results are written at the index of their input (input order), a range borrows
+ * one serializer from the pool for all its objects.
+ */
+abstract class BatchTask<I, O> extends RecursiveAction {
+
+  // smaller ranges are not split
+  static final int MIN_RANGE = 64;
+
+  protected final List<I> input;
+  protected final O[] output;
+  protected final TBSONSerializerPool serializerPool;
+  private final int from;
+  private final int to;
+  protected final int range;
+
+  BatchTask(List<I> input, O[] output, TBSONSerializerPool serializerPool, int from, int to, int range) {
+    this.input = input;
+    this.output = output;
+    this.serializerPool = serializerPool;
+    this.from = from;
+    this.to = to;
+    this.range = range;
+  }
+
+  /**
+   * Converts all the input, in the calling thread for a small input
+   */
+  static <I, O> void run(BatchTask<I, O> task, ForkJoinPool forkJoinPool) throws TException {
+    try {
+      if (task.to - task.from <= task.range) {
+        task.compute();
+      } else {
+        forkJoinPool.invoke(task);
+      }
+    } catch (BatchException exp) {
+      throw exp.getCause();
+    }
+  }
+
+  // about 4 ranges per worker to balance the load
+  static int range(int size, ForkJoinPool forkJoinPool) {
+    return Math.max(MIN_RANGE, size / (forkJoinPool.getParallelism() * 4));
+  }
+
+  @Override
+  protected void compute() {
+    if (to - from <= range) {
+      try {
+        convert(from, to);
+      } catch (TException exp) {
+        throw new BatchException(exp);
+      }
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    invokeAll(fork(from, middle), fork(middle, to));
+  }
+
+  protected abstract BatchTask<I, O> fork(int from, int to);
+
+  protected abstract void convert(int from, int to) throws TException;
+
+  // carries the TException out of the workers
+  private static class BatchException extends RuntimeException {
+    BatchException(TException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized TException getCause() {
+      return (TException) super.getCause();
+    }
+  }
+
+  static class Serialize extends BatchTask<TBase<?, ?>, DBObject> {
+
+    Serialize(List<TBase<?, ?>> input, DBObject[] output, TBSONSerializerPool serializerPool, int from, int to, int range) {
+      super(input, output, serializerPool, from, to, range);
+    }
+
+    @Override
+    protected BatchTask<TBase<?, ?>, DBObject> fork(int from, int to) {
+      return new Serialize(input, output, serializerPool, from, to, range);
+    }
+
+    @Override
+    protected void convert(int from, int to) throws TException {
+      TBSONSerializer serializer = serializerPool.borrowSerializer();
+      try {
+        for (int i = from; i < to; i++) {
+          output[i] = serializer.serialize(input.get(i));
+        }
+      } finally {
+        serializerPool.releaseSerializer(serializer);
+      }
+    }
+  }
+
+  static class SerializeRaw extends BatchTask<TBase<?, ?>, RawBsonDocument> {
+
+    SerializeRaw(List<TBase<?, ?>> input, RawBsonDocument[] output, TBSONSerializerPool serializerPool, int from, int to, int range) {
+      super(input, output, serializerPool, from, to, range);
+    }
+
+    @Override
+    protected BatchTask<TBase<?, ?>, RawBsonDocument> fork(int from, int to) {
+      return new SerializeRaw(input, output, serializerPool, from, to, range);
+    }
+
+    @Override
+    protected void convert(int from, int to) throws TException {
+      TBSONSerializer serializer = serializerPool.borrowSerializer();
+      try {
+        for (int i = from; i < to; i++) {
+          output[i] = serializer.serializeRaw(input.get(i));
+        }
+      } finally {
+        serializerPool.releaseSerializer(serializer);
+      }
+    }
+  }
+
+  static class Deserialize<T extends TBase<?, ?>> extends BatchTask<DBObject, T> {
+
+    private final Class<T> thriftClass;
+
+    Deserialize(List<DBObject> input, T[] output, Class<T> thriftClass, TBSONSerializerPool serializerPool, int from, int to, int range) {
+      super(input, output, serializerPool, from, to, range);
+      this.thriftClass = thriftClass;
+    }
+
+    @Override
+    protected BatchTask<DBObject, T> fork(int from, int to) {
+      return new Deserialize<>(input, output, thriftClass, serializerPool, from, to, range);
+    }
+
+    @Override
+    protected void convert(int from, int to) throws TException {
+      TBSONDeserializer deserializer = serializerPool.borrowDeserializer();
+      try {
+        for (int i = from; i < to; i++) {
+          T thriftObject = newInstance(thriftClass);
+          deserializer.deserialize(thriftObject, input.get(i));
+          output[i] = thriftObject;
+        }
+      } finally {
+        serializerPool.releaseDeserializer(deserializer);
+      }
+    }
+  }
+
+  static class DeserializeRaw<T extends TBase<?, ?>> extends BatchTask<RawBsonDocument, T> {
+
+    private final Class<T> thriftClass;
+
+    DeserializeRaw(List<RawBsonDocument> input, T[] output, Class<T> thriftClass, TBSONSerializerPool serializerPool, int from, int to, int range) {
+      super(input, output, serializerPool, from, to, range);
+      this.thriftClass = thriftClass;
+    }
+
+    @Override
+    protected BatchTask<RawBsonDocument, T> fork(int from, int to) {
+      return new DeserializeRaw<>(input, output, thriftClass, serializerPool, from, to, range);
+    }
+
+    @Override
+    protected void convert(int from, int to) throws TException {
+      TBSONDeserializer deserializer = serializerPool.borrowDeserializer();
+      try {
+        for (int i = from; i < to; i++) {
+          T thriftObject = newInstance(thriftClass);
+          deserializer.deserialize(thriftObject, input.get(i));
+          output[i] = thriftObject;
+        }
+      } finally {
+        serializerPool.releaseDeserializer(deserializer);
+      }
+    }
+  }
+
+  static <T> T newInstance(Class<T> thriftClass) throws TException {
+    try {
+      return thriftClass.newInstance();
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.StructDescriptor;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.ThriftFieldMetadata;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.io.ByteBufferBsonInput;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Thrift view of a raw BSON document, decoding the fields on the first access.
+ *
+ * The top level fields (and the securedwrap entries) are indexed once, a field is decoded
+ * (and deciphered) only when it is read, the Thrift object is materialized on demand.
+ * The values returned are held by the view : they must not be modified.
+ *
+ * A view is not thread safe.
+ */
+public class LazyThriftDocument<T extends TBase<?, ?>> {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] SECURED_WRAP = "securedwrap".getBytes(UTF8);
+
+  private final RawBsonDocument document;
+  private final Class<T> thriftClass;
+  private final StructDescriptor descriptor;
+
+  // element bounds in the document by field position, -1 when absent
+  private final int[] starts;
+  private final int[] ends;
+  // element of a secured field is in the securedwrap
+  private final boolean[] secured;
+  private final boolean[] decoded;
+
+  // holds the decoded fields
+  private T fields;
+  private T thriftObject;
+  private TBSONDeserializer deserializer;
+
+  public LazyThriftDocument(RawBsonDocument document, Class<T> thriftClass) throws TException {
+    this.document = document;
+    this.thriftClass = thriftClass;
+    this.descriptor = StructDescriptor.get(thriftClass);
+    this.starts = new int[descriptor.size()];
+    this.ends = new int[descriptor.size()];
+    this.secured = new boolean[descriptor.size()];
+    this.decoded = new boolean[descriptor.size()];
+    Arrays.fill(starts, -1);
+    index();
+  }
+
+  // one pass over the top level elements
+  private void index() throws TException {
+    BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()));
+    try {
+      reader.readStartDocument();
+      int nextFieldIndex = 0;
+      while (true) {
+        int start = reader.getBsonInput().getPosition();
+        BsonType bsonType = reader.readBsonType();
+        if (bsonType == BsonType.END_OF_DOCUMENT) {
+          break;
+        }
+        String name = reader.readName();
+
+        if ("securedwrap".equals(name) && bsonType == BsonType.DOCUMENT) {
+          indexSecuredWrap(reader);
+          continue;
+        }
+
+        reader.skipValue();
+        ThriftFieldMetadata field = descriptor.getField(name, nextFieldIndex);
+        // unknown fields (_id...) and hash of the secured fields
+        if (field == null || field.securedFieldMetaData.isSecured()) {
+          continue;
+        }
+        starts[field.index] = start;
+        ends[field.index] = reader.getBsonInput().getPosition();
+        nextFieldIndex = field.index + 1;
+      }
+    } catch (RuntimeException exp) {
+      throw new TException(exp);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void indexSecuredWrap(BsonBinaryReader reader) {
+    reader.readStartDocument();
+    while (true) {
+      int start = reader.getBsonInput().getPosition();
+      if (reader.readBsonType() == BsonType.END_OF_DOCUMENT) {
+        break;
+      }
+      String id = reader.readName();
+      reader.skipValue();
+
+      ThriftFieldMetadata field = descriptor.getField(Short.parseShort(id));
+      if (field != null && field.securedFieldMetaData.isSecured()) {
+        starts[field.index] = start;
+        ends[field.index] = reader.getBsonInput().getPosition();
+        secured[field.index] = true;
+      }
+    }
+    reader.readEndDocument();
+  }
+
+  public RawBsonDocument getDocument() {
+    return document;
+  }
+
+  public Class<T> getThriftClass() {
+    return thriftClass;
+  }
+
+  /**
+   * @return true if the field is in the document (nothing is decoded)
+   */
+  public boolean isSet(TFieldIdEnum fieldId) throws TException {
+    return starts[getField(fieldId).index] >= 0;
+  }
+
+  /**
+   * Decodes the field on the first access
+   * @return the Thrift value of the field, null if the field is not in the document
+   */
+  public Object getFieldValue(TFieldIdEnum fieldId) throws TException {
+    ThriftFieldMetadata field = getField(fieldId);
+    if (thriftObject != null) {
+      return getValue(thriftObject, field);
+    }
+    if (starts[field.index] < 0) {
+      return null;
+    }
+
+    if (fields == null) {
+      fields = newInstance();
+    }
+    if (!decoded[field.index]) {
+      getDeserializer().deserialize(fields, fieldDocument(field.index));
+      decoded[field.index] = true;
+    }
+    return getValue(fields, field);
+  }
+
+  /**
+   * Decodes the whole document once
+   */
+  public T toThrift() throws TException {
+    if (thriftObject == null) {
+      T base = newInstance();
+      getDeserializer().deserialize(base, document);
+      thriftObject = base;
+      fields = null;
+    }
+    return thriftObject;
+  }
+
+  // document holding only the element of the field
+  private RawBsonDocument fieldDocument(int index) {
+    int length = ends[index] - starts[index];
+    int size = 4 + length + 1;
+    if (secured[index]) {
+      // type + name + size + terminal
+      size += 1 + SECURED_WRAP.length + 1 + 4 + 1;
+    }
+
+    byte[] bytes = new byte[size];
+    int position = putInt(bytes, 0, size);
+    if (secured[index]) {
+      bytes[position++] = (byte) BsonType.DOCUMENT.getValue();
+      System.arraycopy(SECURED_WRAP, 0, bytes, position, SECURED_WRAP.length);
+      position += SECURED_WRAP.length + 1;
+      position = putInt(bytes, position, 4 + length + 1);
+    }
+
+    ByteBuf buffer = document.getByteBuffer();
+    buffer.position(starts[index]);
+    buffer.get(bytes, position, length);
+    // the terminal zeros are already there
+    return new RawBsonDocument(bytes);
+  }
+
+  private static int putInt(byte[] bytes, int position, int value) {
+    bytes[position] = (byte) value;
+    bytes[position + 1] = (byte) (value >> 8);
+    bytes[position + 2] = (byte) (value >> 16);
+    bytes[position + 3] = (byte) (value >> 24);
+    return position + 4;
+  }
+
+  private ThriftFieldMetadata getField(TFieldIdEnum fieldId) throws TException {
+    ThriftFieldMetadata field = descriptor.getField(fieldId.getThriftFieldId());
+    if (field == null || !field.tfield.name.equals(fieldId.getFieldName())) {
+      throw new TException("Unknown field " + fieldId.getFieldName() + " in " + thriftClass.getName());
+    }
+    return field;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Object getValue(TBase base, ThriftFieldMetadata field) {
+    TFieldIdEnum fieldId = descriptor.getFieldId(field.tfield.name);
+    return base.isSet(fieldId) ? base.getFieldValue(fieldId) : null;
+  }
+
+  private TBSONDeserializer getDeserializer() {
+    if (deserializer == null) {
+      deserializer = new TBSONDeserializer();
+    }
+    return deserializer;
+  }
+
+  private T newInstance() throws TException {
+    try {
+      return thriftClass.newInstance();
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+}
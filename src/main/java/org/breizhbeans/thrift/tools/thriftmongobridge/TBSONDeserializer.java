@@ -25,7 +25,12 @@ import org.apache.thrift.protocol.TProtocolFactory;
 import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONProtocol;
 
 import com.mongodb.DBObject;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONFieldsFilter;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONReaderProtocol;
 import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.BsonBinaryReader;
+import org.bson.RawBsonDocument;
+import org.bson.io.ByteBufferBsonInput;
 
 public class TBSONDeserializer {
 	/**
@@ -33,6 +38,9 @@ public class TBSONDeserializer {
 	 */
   private TBSONUnstackedProtocol protocol_;
 
+  // raw BSON input, allocated on the first raw deserialize
+  private TBSONReaderProtocol readerProtocol_;
+
   public TBSONDeserializer() {
     this(new TBSONUnstackedProtocol.Factory());
 	}
@@ -41,6 +49,10 @@ public class TBSONDeserializer {
     protocol_ = (TBSONUnstackedProtocol) protocolFactory.getProtocol(null);
 	}
 
+	/**
+	 * Deserialize a DBObject into the Thrift object.
+	 * The protocol state is held by the deserializer : a deserializer instance must not be shared between threads.
+	 */
 	public void deserialize(TBase<?,?> base, DBObject dbObject) throws TException {
 		try {
 			protocol_.setDBOject(dbObject);
@@ -71,9 +83,91 @@ public class TBSONDeserializer {
     }
   }
 
+  /**
+   * Deserialize the fields selected by a filter (nested paths, inclusion or exclusion)
+   * @param base The object to read into
+   * @param dbObject The serialized object to read from
+   * @param fieldsFilter The fields to read, compiled for the class of base
+   * @throws TException
+   */
+  public void partialDeserialize(TBase<?,?> base, DBObject dbObject, TBSONFieldsFilter fieldsFilter) throws TException {
+    checkFilter(base, fieldsFilter);
+    try {
+      protocol_.setDBOject(dbObject);
+      protocol_.setBaseObject( base );
+      protocol_.setFieldsFilter(fieldsFilter);
+
+      base.read(protocol_);
+    } finally {
+      protocol_.reset();
+    }
+  }
+
+  /**
+   * Deserialize a Thrift object directly from the BSON bytes
+   * without building the DBObject.
+   * A deserializer instance must not be shared between threads.
+   * @param base The object to read into
+   * @param document The BSON document to read from
+   * @throws TException
+   */
+  public void deserialize(TBase<?,?> base, RawBsonDocument document) throws TException {
+    deserialize(base, document, (TBSONFieldsFilter) null);
+  }
+
+  /**
+   * Raw BSON version of the partial deserialize
+   * @param base The object to read into
+   * @param document The BSON document to read from
+   * @param fieldIds The FieldId's to extract
+   * @throws TException
+   */
+  public void partialDeserialize(TBase<?,?> base, RawBsonDocument document, TFieldIdEnum... fieldIds) throws TException {
+    deserialize(base, document, TBSONFieldsFilter.exclude(base.getClass(), fieldIds));
+  }
 
+  /**
+   * Raw BSON version of the partial deserialize with a filter
+   * @param base The object to read into
+   * @param document The BSON document to read from
+   * @param fieldsFilter The fields to read, compiled for the class of base
+   * @throws TException
+   */
+  public void partialDeserialize(TBase<?,?> base, RawBsonDocument document, TBSONFieldsFilter fieldsFilter) throws TException {
+    checkFilter(base, fieldsFilter);
+    deserialize(base, document, fieldsFilter);
+  }
 
+  /**
+   * Thrift view of the document, the fields are decoded on their first access
+   * @param document The BSON document to read from
+   * @param thriftClass The class of the Thrift object
+   * @throws TException
+   */
+  public <T extends TBase<?,?>> LazyThriftDocument<T> lazyDeserialize(RawBsonDocument document, Class<T> thriftClass) throws TException {
+    return new LazyThriftDocument<>(document, thriftClass);
+  }
 
+  private static void checkFilter(TBase<?,?> base, TBSONFieldsFilter fieldsFilter) throws TException {
+    if (fieldsFilter.getThriftClass() != base.getClass()) {
+      throw new TException("Fields filter of " + fieldsFilter.getThriftClass().getName() + " used to read a " + base.getClass().getName());
+    }
+  }
 
+  private void deserialize(TBase<?,?> base, RawBsonDocument document, TBSONFieldsFilter fieldsFilter) throws TException {
+    if (readerProtocol_ == null) {
+      readerProtocol_ = new TBSONReaderProtocol();
+    }
 
+    BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()));
+    try {
+      readerProtocol_.setBsonReader(reader);
+      readerProtocol_.setBaseObject(base);
+      readerProtocol_.setFieldsFilter(fieldsFilter);
+      base.read(readerProtocol_);
+    } finally {
+      readerProtocol_.reset();
+      reader.close();
+    }
+  }
 }
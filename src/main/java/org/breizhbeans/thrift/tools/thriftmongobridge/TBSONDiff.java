@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.meta_data.FieldValueMetaData;
+import org.apache.thrift.meta_data.MapMetaData;
+import org.apache.thrift.meta_data.StructMetaData;
+import org.apache.thrift.protocol.TType;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.StructDescriptor;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.ThriftFieldMetadata;
+import org.bson.types.Binary;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mongo update ($set / $unset) turning the document of a Thrift object into the document of its new version.
+ *
+ * Both versions are serialized with the current configuration (secured fields, TBSONStorage keys) and compared
+ * field by field with the struct metadata : the nested structs and maps are updated with dotted paths, the other
+ * values (lists, sets, binaries...) are replaced. A changed secured field sets its hash and its securedwrap value,
+ * the secured values are compared in clear (a cipher with random nonces gives a new value on each call).
+ * The patches of TBSONSerializer.serializePatch follow the same rules with the fields set on the patch object.
+ *
+ * The serializer is held by the instance : an instance must not be shared between threads.
+ */
+public class TBSONDiff {
+
+  private static final String SECURED_WRAP = "securedwrap";
+
+  private final TBSONSerializer serializer = new TBSONSerializer();
+
+  /**
+   * @return the update, an empty document if both versions are stored the same way
+   */
+  public <T extends TBase<?, ?>> DBObject update(T before, T after) throws TException {
+    if (before.getClass() != after.getClass()) {
+      throw new TException("Unable to diff " + before.getClass().getName() + " and " + after.getClass().getName());
+    }
+
+    DBObject set = new BasicDBObject();
+    DBObject unset = new BasicDBObject();
+    diffStruct("", before.getClass(), before, after, serializer.serialize(before), serializer.serialize(after), set, unset);
+
+    DBObject update = new BasicDBObject();
+    if (!set.keySet().isEmpty()) {
+      update.put("$set", set);
+    }
+    if (!unset.keySet().isEmpty()) {
+      update.put("$unset", unset);
+    }
+    return update;
+  }
+
+  /**
+   * $set of the fields set on the patch (TBSONSerializer.serializePatch)
+   * @param document the patch serialized
+   */
+  static DBObject patch(TBase<?, ?> patch, DBObject document) throws TException {
+    DBObject set = new BasicDBObject();
+    patchStruct("", patch.getClass(), patch, document, set);
+
+    DBObject update = new BasicDBObject();
+    if (!set.keySet().isEmpty()) {
+      update.put("$set", set);
+    }
+    return update;
+  }
+
+  private static void patchStruct(String prefix, Class<? extends TBase> thriftClass, TBase<?, ?> patch, DBObject document, DBObject set) throws TException {
+    StructDescriptor descriptor = StructDescriptor.get(thriftClass);
+    DBObject wrap = (DBObject) document.get(SECURED_WRAP);
+
+    for (int i = 0; i < descriptor.size(); i++) {
+      ThriftFieldMetadata field = descriptor.getFieldAt(i);
+      TFieldIdEnum fieldId = descriptor.getFieldId(field.tfield.name);
+      // the unset primitives are written by Thrift with their default value
+      if (!isSet(patch, fieldId)) {
+        continue;
+      }
+      String path = prefix + field.key;
+
+      if (field.securedFieldMetaData.isSecured()) {
+        Object value = wrap == null ? null : wrap.get(Short.toString(field.tfield.id));
+        if (value != null) {
+          set.put(prefix + SECURED_WRAP + "." + field.tfield.id, value);
+        }
+        if (field.securedFieldMetaData.isHash() && document.get(field.key) != null) {
+          set.put(path, document.get(field.key));
+        }
+        continue;
+      }
+
+      Object value = document.get(field.key);
+      if (value == null) {
+        continue;
+      }
+      if (value instanceof DBObject && field.fieldMetaData.valueMetaData.type == TType.STRUCT) {
+        // a nested patch : only its set fields
+        patchStruct(path + ".", ((StructMetaData) field.fieldMetaData.valueMetaData).structClass, (TBase<?, ?>) getFieldValue(patch, fieldId), (DBObject) value, set);
+      } else {
+        set.put(path, value);
+      }
+    }
+  }
+
+  // the Thrift objects are null for the structs of a map : the secured values are then compared ciphered
+  private static void diffStruct(String prefix, Class<? extends TBase> thriftClass, TBase<?, ?> before, TBase<?, ?> after,
+                                 DBObject beforeDoc, DBObject afterDoc, DBObject set, DBObject unset) throws TException {
+    StructDescriptor descriptor = StructDescriptor.get(thriftClass);
+    DBObject beforeWrap = (DBObject) beforeDoc.get(SECURED_WRAP);
+    DBObject afterWrap = (DBObject) afterDoc.get(SECURED_WRAP);
+
+    for (int i = 0; i < descriptor.size(); i++) {
+      ThriftFieldMetadata field = descriptor.getFieldAt(i);
+      String path = prefix + field.key;
+
+      if (field.securedFieldMetaData.isSecured()) {
+        String wrapKey = Short.toString(field.tfield.id);
+        Object afterValue = afterWrap == null ? null : afterWrap.get(wrapKey);
+        boolean changed;
+        if (before != null && after != null) {
+          TFieldIdEnum fieldId = descriptor.getFieldId(field.tfield.name);
+          changed = !equalsValue(getFieldValue(before, fieldId), getFieldValue(after, fieldId));
+        } else {
+          changed = !deepEquals(beforeWrap == null ? null : beforeWrap.get(wrapKey), afterValue)
+              || !deepEquals(beforeDoc.get(field.key), afterDoc.get(field.key));
+        }
+        if (changed) {
+          String wrapPath = prefix + SECURED_WRAP + "." + wrapKey;
+          if (afterValue == null) {
+            unset.put(wrapPath, "");
+          } else {
+            set.put(wrapPath, afterValue);
+          }
+          if (field.securedFieldMetaData.isHash()) {
+            diffValue(path, afterDoc.get(field.key), set, unset);
+          }
+        }
+        continue;
+      }
+
+      Object beforeValue = beforeDoc.get(field.key);
+      Object afterValue = afterDoc.get(field.key);
+      FieldValueMetaData valueMetaData = field.fieldMetaData.valueMetaData;
+
+      if (beforeValue instanceof DBObject && afterValue instanceof DBObject && valueMetaData.type == TType.STRUCT) {
+        TFieldIdEnum fieldId = descriptor.getFieldId(field.tfield.name);
+        diffStruct(path + ".", ((StructMetaData) valueMetaData).structClass,
+            before == null ? null : (TBase<?, ?>) getFieldValue(before, fieldId), after == null ? null : (TBase<?, ?>) getFieldValue(after, fieldId),
+            (DBObject) beforeValue, (DBObject) afterValue, set, unset);
+      } else if (beforeValue instanceof DBObject && afterValue instanceof DBObject && valueMetaData.type == TType.MAP) {
+        diffMap(path, (MapMetaData) valueMetaData, (DBObject) beforeValue, (DBObject) afterValue, set, unset);
+      } else if (!deepEquals(beforeValue, afterValue)) {
+        diffValue(path, afterValue, set, unset);
+      }
+    }
+  }
+
+  private static void diffMap(String path, MapMetaData mapMetaData, DBObject beforeDoc, DBObject afterDoc, DBObject set, DBObject unset) throws TException {
+    // a key which is not a valid path element : the whole map is replaced
+    for (String key : afterDoc.keySet()) {
+      if (!isPathElement(key)) {
+        set.put(path, afterDoc);
+        return;
+      }
+    }
+    for (String key : beforeDoc.keySet()) {
+      if (!isPathElement(key)) {
+        set.put(path, afterDoc);
+        return;
+      }
+    }
+
+    for (String key : beforeDoc.keySet()) {
+      if (!afterDoc.containsField(key)) {
+        unset.put(path + "." + key, "");
+      }
+    }
+    for (String key : afterDoc.keySet()) {
+      Object beforeValue = beforeDoc.get(key);
+      Object afterValue = afterDoc.get(key);
+      if (beforeValue instanceof DBObject && afterValue instanceof DBObject && mapMetaData.valueMetaData.type == TType.STRUCT) {
+        diffStruct(path + "." + key + ".", ((StructMetaData) mapMetaData.valueMetaData).structClass, null, null,
+            (DBObject) beforeValue, (DBObject) afterValue, set, unset);
+      } else if (beforeValue instanceof DBObject && afterValue instanceof DBObject && mapMetaData.valueMetaData.type == TType.MAP) {
+        diffMap(path + "." + key, (MapMetaData) mapMetaData.valueMetaData, (DBObject) beforeValue, (DBObject) afterValue, set, unset);
+      } else if (!deepEquals(beforeValue, afterValue)) {
+        diffValue(path + "." + key, afterValue, set, unset);
+      }
+    }
+  }
+
+  private static void diffValue(String path, Object afterValue, DBObject set, DBObject unset) {
+    if (afterValue == null) {
+      unset.put(path, "");
+    } else {
+      set.put(path, afterValue);
+    }
+  }
+
+  private static boolean isPathElement(String key) {
+    return !key.isEmpty() && key.indexOf('.') < 0 && key.charAt(0) != '$';
+  }
+
+  // the field ids come from the descriptor of the object class
+  @SuppressWarnings("unchecked")
+  private static boolean isSet(TBase<?, ?> base, TFieldIdEnum fieldId) {
+    return ((TBase<?, TFieldIdEnum>) base).isSet(fieldId);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object getFieldValue(TBase<?, ?> base, TFieldIdEnum fieldId) {
+    return isSet(base, fieldId) ? ((TBase<?, TFieldIdEnum>) base).getFieldValue(fieldId) : null;
+  }
+
+  private static boolean equalsValue(Object value1, Object value2) {
+    return value1 == null ? value2 == null : value1.equals(value2);
+  }
+
+  // BSON values of a DBObject : byte[] and Binary are compared by content
+  private static boolean deepEquals(Object value1, Object value2) {
+    if (value1 == value2) {
+      return true;
+    }
+    if (value1 == null || value2 == null) {
+      return false;
+    }
+    if (value1 instanceof byte[] && value2 instanceof byte[]) {
+      return Arrays.equals((byte[]) value1, (byte[]) value2);
+    }
+    if (value1 instanceof Binary && value2 instanceof Binary) {
+      return ((Binary) value1).getType() == ((Binary) value2).getType()
+          && Arrays.equals(((Binary) value1).getData(), ((Binary) value2).getData());
+    }
+    if (value1 instanceof List && value2 instanceof List) {
+      List<?> list1 = (List<?>) value1;
+      List<?> list2 = (List<?>) value2;
+      if (list1.size() != list2.size()) {
+        return false;
+      }
+      for (int i = 0; i < list1.size(); i++) {
+        if (!deepEquals(list1.get(i), list2.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (value1 instanceof DBObject && value2 instanceof DBObject) {
+      Map<?, ?> map1 = ((DBObject) value1).toMap();
+      Map<?, ?> map2 = ((DBObject) value2).toMap();
+      if (!map1.keySet().equals(map2.keySet())) {
+        return false;
+      }
+      for (Map.Entry<?, ?> entry : map1.entrySet()) {
+        if (!deepEquals(entry.getValue(), map2.get(entry.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return value1.equals(value2);
+  }
+}
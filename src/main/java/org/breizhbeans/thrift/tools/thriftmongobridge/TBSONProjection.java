@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.StructDescriptor;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONFieldsFilter;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.ThriftFieldMetadata;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Mongo projection built from Thrift fields, to read only the needed fields from the server.
+ *
+ * An inclusion projection returns only the given fields, an exclusion projection returns all the
+ * fields except the given ones (the fields skipped by TBSONDeserializer.partialDeserialize).
+ * A path goes through nested structs, lists and sets of structs : path(MESSAGES, SUBJECT) is "messages.subject".
+ * A secured field is projected with its securedwrap.id key (and its hash).
+ *
+ * The keys are resolved on each call with the current secured wrapper configuration and field keys (TBSONStorage).
+ * A deserialized object only holds the projected fields : required fields must be projected to pass the validation.
+ */
+public class TBSONProjection {
+
+  private static final String SECURED_WRAP = "securedwrap";
+
+  private final Class<? extends TBase> thriftClass;
+  private final boolean inclusion;
+  private final List<TFieldIdEnum[]> paths = new ArrayList<>();
+
+  private TBSONProjection(Class<? extends TBase> thriftClass, boolean inclusion) {
+    this.thriftClass = thriftClass;
+    this.inclusion = inclusion;
+  }
+
+  /**
+   * Projection returning only the given fields
+   */
+  public static TBSONProjection include(Class<? extends TBase> thriftClass, TFieldIdEnum... fieldIds) throws TException {
+    TBSONProjection projection = new TBSONProjection(thriftClass, true);
+    for (TFieldIdEnum fieldId : fieldIds) {
+      projection.path(fieldId);
+    }
+    return projection;
+  }
+
+  /**
+   * Projection returning all the fields except the given ones
+   */
+  public static TBSONProjection exclude(Class<? extends TBase> thriftClass, TFieldIdEnum... fieldIds) throws TException {
+    TBSONProjection projection = new TBSONProjection(thriftClass, false);
+    for (TFieldIdEnum fieldId : fieldIds) {
+      projection.path(fieldId);
+    }
+    return projection;
+  }
+
+  /**
+   * Adds a nested field path to the projection
+   * @param path fields from the projected class down to the nested field
+   * @throws TException if a field does not belong to its struct or a field before the last one is not a struct
+   */
+  public TBSONProjection path(TFieldIdEnum... path) throws TException {
+    if (path.length == 0) {
+      throw new TException("empty path");
+    }
+    TFieldIdEnum[] copy = path.clone();
+    // fails on an invalid path
+    resolve(copy, new TreeSet<String>());
+    paths.add(copy);
+    return this;
+  }
+
+  public Class<? extends TBase> getThriftClass() {
+    return thriftClass;
+  }
+
+  public boolean isInclusion() {
+    return inclusion;
+  }
+
+  /**
+   * @return the projected keys, sorted, without the keys already covered by a parent key
+   */
+  public List<String> getKeys() throws TException {
+    TreeSet<String> keys = new TreeSet<>();
+    for (TFieldIdEnum[] path : paths) {
+      resolve(path, keys);
+    }
+
+    // Mongo rejects a path and one of its sub paths in the same projection
+    List<String> result = new ArrayList<>();
+    for (String key : keys) {
+      if (!hasParent(key, keys)) {
+        result.add(key);
+      }
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * @return the filter reading the projected fields (TBSONDeserializer.partialDeserialize)
+   */
+  public TBSONFieldsFilter toFieldsFilter() throws TException {
+    return TBSONFieldsFilter.compile(thriftClass, inclusion, paths);
+  }
+
+  public DBObject toDBObject() throws TException {
+    DBObject projection = new BasicDBObject();
+    int value = inclusion ? 1 : 0;
+    for (String key : getKeys()) {
+      projection.put(key, value);
+    }
+    return projection;
+  }
+
+  public BsonDocument toBsonDocument() throws TException {
+    BsonDocument projection = new BsonDocument();
+    BsonInt32 value = new BsonInt32(inclusion ? 1 : 0);
+    for (String key : getKeys()) {
+      projection.put(key, value);
+    }
+    return projection;
+  }
+
+  private void resolve(TFieldIdEnum[] path, TreeSet<String> keys) throws TException {
+    Class<? extends TBase> structClass = thriftClass;
+    StringBuilder prefix = new StringBuilder();
+
+    for (int i = 0; i < path.length; i++) {
+      TFieldIdEnum fieldId = path[i];
+      ThriftFieldMetadata field = StructDescriptor.get(structClass).getField(fieldId.getThriftFieldId());
+      if (field == null || !field.tfield.name.equals(fieldId.getFieldName())) {
+        throw new TException("Unknown field " + fieldId.getFieldName() + " in " + structClass.getName() + " - PATH:" + Arrays.toString(path));
+      }
+
+      if (i == path.length - 1) {
+        if (!field.securedFieldMetaData.isSecured() || field.securedFieldMetaData.isHash()) {
+          keys.add(prefix + field.key);
+        }
+        if (field.securedFieldMetaData.isSecured()) {
+          keys.add(prefix + SECURED_WRAP + "." + field.tfield.id);
+        }
+        return;
+      }
+
+      structClass = StructDescriptor.getStructClass(field.fieldMetaData.valueMetaData);
+      if (structClass == null) {
+        throw new TException("Field " + fieldId.getFieldName() + " of " + field.tbaseClass.getName() + " is not a struct - PATH:" + Arrays.toString(path));
+      }
+      prefix.append(field.key).append('.');
+    }
+  }
+
+  private static boolean hasParent(String key, TreeSet<String> keys) {
+    for (int dot = key.indexOf('.'); dot > 0; dot = key.indexOf('.', dot + 1)) {
+      if (keys.contains(key.substring(0, dot))) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
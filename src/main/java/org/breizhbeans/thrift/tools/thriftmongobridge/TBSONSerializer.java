@@ -24,11 +24,19 @@ import org.apache.thrift.protocol.TProtocolFactory;
 
 import com.mongodb.DBObject;
 import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONWriterProtocol;
+import org.bson.BsonBinaryWriter;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
 
  public class TBSONSerializer {
 
   private TBSONUnstackedProtocol protocol_;
 
+  // raw BSON output, allocated on the first serializeRaw
+  private TBSONWriterProtocol writerProtocol_;
+  private BasicOutputBuffer outputBuffer_;
+
   public TBSONSerializer() {
     this(new TBSONUnstackedProtocol.Factory());
   }
@@ -37,10 +45,61 @@ import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedPro
     protocol_ = (TBSONUnstackedProtocol) protocolFactory.getProtocol(null);
   }
 
+  /**
+   * Serialize the Thrift object into a DBObject.
+   * The protocol state is held by the serializer : a serializer instance must not be shared between threads.
+   * @param base The object to serialize
+   * @return the DBObject
+   * @throws TException
+   */
   public DBObject serialize(TBase base) throws TException {
-    protocol_.setBaseObject(base);
-    base.write(protocol_);
-    return protocol_.getDBObject();
+    try {
+      protocol_.setBaseObject(base);
+      base.write(protocol_);
+      return protocol_.getDBObject();
+    } finally {
+      // a reused serializer must not retain the document
+      protocol_.reset();
+    }
+  }
+
+  /**
+   * Serialize the fields set on a sparse Thrift object into a Mongo update ($set) :
+   * the nested structs are patched field by field, the other values are replaced,
+   * a secured field sets its securedwrap value and its hash.
+   * The patch is validated by Thrift : its required fields must be set.
+   * @param patch The fields to update
+   * @return the update, an empty document if no field is set
+   * @throws TException
+   */
+  public DBObject serializePatch(TBase<?, ?> patch) throws TException {
+    return TBSONDiff.patch(patch, serialize(patch));
+  }
+
+  /**
+   * Serialize the Thrift object directly into BSON bytes
+   * without building the DBObject tree.
+   * The raw output buffer is reused between calls : a serializer instance must not be shared between threads.
+   * @param base The object to serialize
+   * @return the BSON document
+   * @throws TException
+   */
+  public RawBsonDocument serializeRaw(TBase base) throws TException {
+    if (writerProtocol_ == null) {
+      writerProtocol_ = new TBSONWriterProtocol();
+      outputBuffer_ = new BasicOutputBuffer();
+    }
+
+    outputBuffer_.truncateToPosition(0);
+    BsonBinaryWriter writer = new BsonBinaryWriter(outputBuffer_);
+    try {
+      writerProtocol_.setBsonWriter(writer);
+      writerProtocol_.setBaseObject(base);
+      base.write(writerProtocol_);
+    } finally {
+      writerProtocol_.reset();
+    }
+    return new RawBsonDocument(outputBuffer_.toByteArray());
   }
 }
 
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge;
+
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONFieldsFilter;
+import org.bson.RawBsonDocument;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of TBSONSerializer and TBSONDeserializer.
+ *
+ * The serializers own their protocol state and are not thread safe : a serializer is borrowed for a call
+ * and given back afterwards. Unlike a ThreadLocal the number of instances is bounded by the concurrency
+ * and not by the number of threads (virtual threads, large pools).
+ *
+ * TBSONSerializerPool pool = new TBSONSerializerPool();
+ * DBObject dbObject = pool.serialize(people);
+ */
+public class TBSONSerializerPool {
+
+  private final int maxIdle;
+
+  private final ConcurrentLinkedQueue<TBSONSerializer> serializers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger idleSerializers = new AtomicInteger();
+
+  private final ConcurrentLinkedQueue<TBSONDeserializer> deserializers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger idleDeserializers = new AtomicInteger();
+
+  public TBSONSerializerPool() {
+    this(Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  /**
+   * @param maxIdle maximum number of idle serializers (and deserializers) kept in the pool
+   */
+  public TBSONSerializerPool(int maxIdle) {
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("maxIdle must be positive : " + maxIdle);
+    }
+    this.maxIdle = maxIdle;
+  }
+
+  public TBSONSerializer borrowSerializer() {
+    TBSONSerializer serializer = serializers.poll();
+    if (serializer == null) {
+      return new TBSONSerializer();
+    }
+    idleSerializers.decrementAndGet();
+    return serializer;
+  }
+
+  public void releaseSerializer(TBSONSerializer serializer) {
+    // over the limit the serializer is left to the GC
+    if (idleSerializers.incrementAndGet() <= maxIdle) {
+      serializers.offer(serializer);
+    } else {
+      idleSerializers.decrementAndGet();
+    }
+  }
+
+  public TBSONDeserializer borrowDeserializer() {
+    TBSONDeserializer deserializer = deserializers.poll();
+    if (deserializer == null) {
+      return new TBSONDeserializer();
+    }
+    idleDeserializers.decrementAndGet();
+    return deserializer;
+  }
+
+  public void releaseDeserializer(TBSONDeserializer deserializer) {
+    if (idleDeserializers.incrementAndGet() <= maxIdle) {
+      deserializers.offer(deserializer);
+    } else {
+      idleDeserializers.decrementAndGet();
+    }
+  }
+
+  public DBObject serialize(TBase<?, ?> base) throws TException {
+    TBSONSerializer serializer = borrowSerializer();
+    try {
+      return serializer.serialize(base);
+    } finally {
+      releaseSerializer(serializer);
+    }
+  }
+
+  public RawBsonDocument serializeRaw(TBase<?, ?> base) throws TException {
+    TBSONSerializer serializer = borrowSerializer();
+    try {
+      // the document owns a copy of the output buffer
+      return serializer.serializeRaw(base);
+    } finally {
+      releaseSerializer(serializer);
+    }
+  }
+
+  public void deserialize(TBase<?, ?> base, DBObject dbObject) throws TException {
+    TBSONDeserializer deserializer = borrowDeserializer();
+    try {
+      deserializer.deserialize(base, dbObject);
+    } finally {
+      releaseDeserializer(deserializer);
+    }
+  }
+
+  public void deserialize(TBase<?, ?> base, RawBsonDocument document) throws TException {
+    TBSONDeserializer deserializer = borrowDeserializer();
+    try {
+      deserializer.deserialize(base, document);
+    } finally {
+      releaseDeserializer(deserializer);
+    }
+  }
+
+  public void partialDeserialize(TBase<?, ?> base, DBObject dbObject, TFieldIdEnum... fieldIds) throws TException {
+    TBSONDeserializer deserializer = borrowDeserializer();
+    try {
+      deserializer.partialDeserialize(base, dbObject, fieldIds);
+    } finally {
+      releaseDeserializer(deserializer);
+    }
+  }
+
+  public void partialDeserialize(TBase<?, ?> base, RawBsonDocument document, TFieldIdEnum... fieldIds) throws TException {
+    TBSONDeserializer deserializer = borrowDeserializer();
+    try {
+      deserializer.partialDeserialize(base, document, fieldIds);
+    } finally {
+      releaseDeserializer(deserializer);
+    }
+  }
+
+  public void partialDeserialize(TBase<?, ?> base, DBObject dbObject, TBSONFieldsFilter fieldsFilter) throws TException {
+    TBSONDeserializer deserializer = borrowDeserializer();
+    try {
+      deserializer.partialDeserialize(base, dbObject, fieldsFilter);
+    } finally {
+      releaseDeserializer(deserializer);
+    }
+  }
+
+  public void partialDeserialize(TBase<?, ?> base, RawBsonDocument document, TBSONFieldsFilter fieldsFilter) throws TException {
+    TBSONDeserializer deserializer = borrowDeserializer();
+    try {
+      deserializer.partialDeserialize(base, document, fieldsFilter);
+    } finally {
+      releaseDeserializer(deserializer);
+    }
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.bson.RawBsonDocument;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bulk writer of Thrift objects.
+ *
+ * The producers put the objects in a bounded queue (a full queue blocks the producers), the workers
+ * serialize them into raw BSON and insert them with unordered insertMany batches. A batch is sent when
+ * it reaches the max count or the max size, or when the queue is empty.
+ *
+ * MongoCollection&lt;RawBsonDocument&gt; target = database.getCollection("people", RawBsonDocument.class);
+ * try (ThriftBulkWriter&lt;People&gt; writer = new ThriftBulkWriter&lt;&gt;(target)) {
+ *   writer.write(people);
+ * }
+ *
+ * A failed batch (even partially written) is reported to the listener and counted, the writer goes on with the next batches.
+ */
+public class ThriftBulkWriter<T extends TBase<?, ?>> implements Closeable {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+  public static final int DEFAULT_MAX_BATCH_COUNT = 1000;
+  // under the 48MB message limit of the server
+  public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * Batches report, called from the worker threads (exceptions are ignored, the batches are already counted)
+   */
+  public interface Listener {
+    void onBatch(int documents, long bytes, long latencyNanos);
+
+    void onFailure(int documents, Exception exp);
+  }
+
+  private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+  // queued by close for each worker, after the objects
+  private static final Object STOP = new Object();
+
+  private final MongoCollection<RawBsonDocument> collection;
+  private final BlockingQueue<Object> queue;
+  private final int maxBatchCount;
+  private final int maxBatchBytes;
+  private final Listener listener;
+  private final Thread[] workers;
+
+  // the writes hold the read lock from the closed check to the queuing, close takes the write lock
+  // so no object is queued after the STOP of the workers
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  private volatile boolean closed = false;
+
+  // objects written or failed
+  private final Object pendingLock = new Object();
+  private long pending = 0;
+
+  private final AtomicLong writtenCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong batchNanos = new AtomicLong();
+
+  public ThriftBulkWriter(MongoCollection<RawBsonDocument> collection) {
+    this(collection, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_COUNT, DEFAULT_MAX_BATCH_BYTES, null);
+  }
+
+  /**
+   * @param collection target collection
+   * @param workers number of threads serializing and writing the batches
+   * @param queueCapacity objects waiting to be serialized before the producers are blocked
+   * @param maxBatchCount maximum number of documents of a batch
+   * @param maxBatchBytes maximum size of a batch (a single larger document is sent alone)
+   * @param listener batches report, can be null
+   */
+  public ThriftBulkWriter(MongoCollection<RawBsonDocument> collection, int workers, int queueCapacity, int maxBatchCount, int maxBatchBytes, Listener listener) {
+    if (workers < 1 || queueCapacity < 1 || maxBatchCount < 1 || maxBatchBytes < 1) {
+      throw new IllegalArgumentException("workers, queueCapacity, maxBatchCount and maxBatchBytes must be greater than 0");
+    }
+    this.collection = collection;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.maxBatchCount = maxBatchCount;
+    this.maxBatchBytes = maxBatchBytes;
+    this.listener = listener;
+
+    this.workers = new Thread[workers];
+    for (int i = 0; i < workers; i++) {
+      Thread worker = new Thread(new Worker(), "thrift-bulk-writer-" + i);
+      worker.setDaemon(true);
+      this.workers[i] = worker;
+      worker.start();
+    }
+  }
+
+  /**
+   * Queues an object, blocks while the queue is full
+   */
+  public void write(T thriftObject) throws TException, InterruptedException {
+    if (thriftObject == null) {
+      throw new IllegalArgumentException("thriftObject is null");
+    }
+    closeLock.readLock().lockInterruptibly();
+    try {
+      if (closed) {
+        throw new TException("ThriftBulkWriter is closed");
+      }
+      addPending(1);
+      try {
+        queue.put(thriftObject);
+      } catch (InterruptedException exp) {
+        addPending(-1);
+        throw exp;
+      }
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Queues an object, waiting up to the timeout while the queue is full
+   * @return false if the object is not queued
+   */
+  public boolean write(T thriftObject, long timeout, TimeUnit unit) throws TException, InterruptedException {
+    if (thriftObject == null) {
+      throw new IllegalArgumentException("thriftObject is null");
+    }
+    closeLock.readLock().lockInterruptibly();
+    try {
+      if (closed) {
+        throw new TException("ThriftBulkWriter is closed");
+      }
+      addPending(1);
+      boolean queued = false;
+      try {
+        queued = queue.offer(thriftObject, timeout, unit);
+        return queued;
+      } finally {
+        if (!queued) {
+          addPending(-1);
+        }
+      }
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Waits until all the queued objects are written (or failed)
+   */
+  public void flush() throws InterruptedException {
+    synchronized (pendingLock) {
+      while (pending > 0) {
+        pendingLock.wait();
+      }
+    }
+  }
+
+  /**
+   * Writes the queued objects and stops the workers, waits for the writes in progress
+   */
+  @Override
+  public void close() {
+    boolean stopWorkers;
+    closeLock.writeLock().lock();
+    try {
+      stopWorkers = !closed;
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    boolean interrupted = false;
+    for (int i = 0; stopWorkers && i < workers.length; i++) {
+      // the workers are alive : the queue drains
+      while (true) {
+        try {
+          queue.put(STOP);
+          break;
+        } catch (InterruptedException exp) {
+          interrupted = true;
+        }
+      }
+    }
+    for (Thread worker : workers) {
+      while (worker.isAlive()) {
+        try {
+          worker.join();
+        } catch (InterruptedException exp) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public long getWrittenCount() {
+    return writtenCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /**
+   * @return cumulated latency of the batches
+   */
+  public long getBatchNanos() {
+    return batchNanos.get();
+  }
+
+  private void addPending(long count) {
+    synchronized (pendingLock) {
+      pending += count;
+      if (pending == 0) {
+        pendingLock.notifyAll();
+      }
+    }
+  }
+
+  private class Worker implements Runnable {
+    // owned by the worker thread
+    private final TBSONSerializer serializer = new TBSONSerializer();
+    private final List<RawBsonDocument> batch = new ArrayList<>();
+    private long batchBytes = 0;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+      while (true) {
+        Object next;
+        try {
+          next = queue.take();
+        } catch (InterruptedException exp) {
+          continue;
+        }
+
+        // fill the batch with the objects already queued
+        while (next != null && next != STOP) {
+          add((T) next);
+          if (batch.size() >= maxBatchCount || batchBytes >= maxBatchBytes) {
+            send();
+          }
+          next = queue.poll();
+        }
+        send();
+
+        if (next == STOP) {
+          return;
+        }
+      }
+    }
+
+    private void add(T thriftObject) {
+      try {
+        RawBsonDocument document = serializer.serializeRaw(thriftObject);
+        int size = document.getByteBuffer().remaining();
+        // the document does not fit in the batch
+        if (!batch.isEmpty() && batchBytes + size > maxBatchBytes) {
+          send();
+        }
+        batch.add(document);
+        batchBytes += size;
+      } catch (Throwable exp) {
+        // an Error (a too deep struct) fails the object but not the worker, else flush would wait for it
+        failed(1, exp);
+      }
+    }
+
+    private void send() {
+      if (batch.isEmpty()) {
+        return;
+      }
+      int documents = batch.size();
+      long bytes = batchBytes;
+      Throwable failure = null;
+
+      long start = System.nanoTime();
+      try {
+        collection.insertMany(batch, UNORDERED);
+      } catch (Throwable exp) {
+        failure = exp;
+      }
+      long latency = System.nanoTime() - start;
+
+      batch.clear();
+      batchBytes = 0;
+
+      if (failure != null) {
+        failed(documents, failure);
+        return;
+      }
+
+      writtenCount.addAndGet(documents);
+      batchCount.incrementAndGet();
+      batchNanos.addAndGet(latency);
+      try {
+        if (listener != null) {
+          listener.onBatch(documents, bytes, latency);
+        }
+      } catch (Throwable exp) {
+        // the batch is counted as written
+      } finally {
+        addPending(-documents);
+      }
+    }
+
+    private void failed(int documents, Throwable failure) {
+      failedCount.addAndGet(documents);
+      try {
+        if (listener != null) {
+          listener.onFailure(documents, failure instanceof Exception ? (Exception) failure : new TException(failure));
+        }
+      } catch (Throwable listenerExp) {
+        // the objects are counted as failed
+      } finally {
+        addPending(-documents);
+      }
+    }
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge;
+
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.bson.BSONException;
+import org.bson.RawBsonDocument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Cursor decoding the Thrift objects on worker threads while the next documents are fetched.
+ *
+ * A fetcher thread reads the documents of the driver cursor (and its getMore round trips) by chunks,
+ * each chunk is decoded by the executor (the batch pool of ThriftMongoHelper by default).
+ * The number of chunks fetched and not yet consumed is bounded.
+ * An ordered cursor returns the objects in the cursor order, an unordered one returns the chunks as soon as they are decoded.
+ *
+ * MongoCursor&lt;RawBsonDocument&gt; documents = collection.withDocumentClass(RawBsonDocument.class).find().iterator();
+ * try (ThriftCursor&lt;People&gt; cursor = ThriftCursor.ofRaw(documents, People.class, true)) {
+ *   while (cursor.hasNext()) {
+ *     People people = cursor.next();
+ *   }
+ * }
+ *
+ * A cursor is consumed by a single thread, a fetch or decode failure is thrown as a BSONException.
+ */
+public class ThriftCursor<T extends TBase<?, ?>> implements Iterator<T>, Closeable {
+
+  public static final int DEFAULT_CHUNK_SIZE = 100;
+  public static final int DEFAULT_PREFETCH_CHUNKS = 16;
+
+  // end of the documents
+  private final Future<List<T>> endOfCursor = new FutureTask<>(new Callable<List<T>>() {
+    @Override
+    public List<T> call() {
+      return Collections.emptyList();
+    }
+  });
+
+  private final Iterator<?> source;
+  private final Class<T> thriftClass;
+  private final boolean ordered;
+  private final int chunkSize;
+  private final ExecutorService executor;
+  private final TBSONSerializerPool serializerPool;
+
+  // chunks fetched and not consumed
+  private final Semaphore prefetch;
+  // decoded chunks (submission order for an ordered cursor, completion order otherwise)
+  private final BlockingQueue<Future<List<T>>> chunks = new LinkedBlockingQueue<>();
+  private final Thread fetcher;
+
+  private volatile boolean closed = false;
+  private volatile int submittedChunks = 0;
+  private int consumedChunks = 0;
+  private boolean fetched = false;
+
+  private Iterator<T> current = Collections.<T>emptyList().iterator();
+
+  /**
+   * @param source driver cursor (MongoCursor, DBCursor...) of RawBsonDocument or DBObject, closed with the ThriftCursor
+   * @param thriftClass class of the objects
+   * @param ordered returns the objects in the source order
+   * @param chunkSize documents decoded by a task
+   * @param prefetchChunks chunks fetched ahead of the consumer
+   * @param executor decoding threads
+   */
+  private ThriftCursor(Iterator<?> source, Class<T> thriftClass, boolean ordered, int chunkSize, int prefetchChunks, ExecutorService executor) {
+    if (chunkSize < 1 || prefetchChunks < 1) {
+      throw new IllegalArgumentException("chunkSize and prefetchChunks must be greater than 0");
+    }
+    this.source = source;
+    this.thriftClass = thriftClass;
+    this.ordered = ordered;
+    this.chunkSize = chunkSize;
+    this.executor = executor;
+    this.serializerPool = ThriftMongoHelper.getSerializerPool();
+    this.prefetch = new Semaphore(prefetchChunks);
+
+    this.fetcher = new Thread(new Fetcher(), "thrift-cursor-fetcher");
+    this.fetcher.setDaemon(true);
+    this.fetcher.start();
+  }
+
+  public static <T extends TBase<?, ?>> ThriftCursor<T> ofRaw(Iterator<RawBsonDocument> source, Class<T> thriftClass, boolean ordered) {
+    return new ThriftCursor<>(source, thriftClass, ordered, DEFAULT_CHUNK_SIZE, DEFAULT_PREFETCH_CHUNKS, ThriftMongoHelper.getBatchPool());
+  }
+
+  public static <T extends TBase<?, ?>> ThriftCursor<T> ofRaw(Iterator<RawBsonDocument> source, Class<T> thriftClass, boolean ordered, int chunkSize, int prefetchChunks, ExecutorService executor) {
+    return new ThriftCursor<>(source, thriftClass, ordered, chunkSize, prefetchChunks, executor);
+  }
+
+  public static <T extends TBase<?, ?>> ThriftCursor<T> ofDBObjects(Iterator<DBObject> source, Class<T> thriftClass, boolean ordered) {
+    return new ThriftCursor<>(source, thriftClass, ordered, DEFAULT_CHUNK_SIZE, DEFAULT_PREFETCH_CHUNKS, ThriftMongoHelper.getBatchPool());
+  }
+
+  public static <T extends TBase<?, ?>> ThriftCursor<T> ofDBObjects(Iterator<DBObject> source, Class<T> thriftClass, boolean ordered, int chunkSize, int prefetchChunks, ExecutorService executor) {
+    return new ThriftCursor<>(source, thriftClass, ordered, chunkSize, prefetchChunks, executor);
+  }
+
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!current.hasNext()) {
+      if (fetched && consumedChunks == submittedChunks) {
+        return false;
+      }
+      if (closed) {
+        throw new IllegalStateException("ThriftCursor is closed");
+      }
+      current = takeChunk().iterator();
+    }
+    return true;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return current.next();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove");
+  }
+
+  private List<T> takeChunk() {
+    try {
+      Future<List<T>> chunk = chunks.take();
+      if (chunk == endOfCursor) {
+        // unordered : the last chunks may still be decoded
+        fetched = true;
+        return Collections.emptyList();
+      }
+      consumedChunks++;
+      prefetch.release();
+      return chunk.get();
+    } catch (InterruptedException exp) {
+      Thread.currentThread().interrupt();
+      throw new BSONException("Interrupted while reading " + thriftClass.getName(), exp);
+    } catch (ExecutionException exp) {
+      close();
+      throw new BSONException("Unable to read " + thriftClass.getName(), exp.getCause());
+    }
+  }
+
+  /**
+   * Stops the fetcher and closes the source cursor
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // a fetcher blocked in a getMore ignores the interrupt : the closed source fails the call
+    if (source instanceof Closeable) {
+      try {
+        ((Closeable) source).close();
+      } catch (IOException exp) {
+        // nothing more to read
+      }
+    }
+    fetcher.interrupt();
+    boolean interrupted = false;
+    while (fetcher.isAlive()) {
+      try {
+        fetcher.join();
+      } catch (InterruptedException exp) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private class Fetcher implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (!closed && source.hasNext()) {
+          prefetch.acquire();
+          List<Object> documents = new ArrayList<>(chunkSize);
+          while (documents.size() < chunkSize && source.hasNext()) {
+            documents.add(source.next());
+          }
+          submit(documents);
+        }
+      } catch (InterruptedException exp) {
+        // closed
+      } catch (final Throwable exp) {
+        // the consumer gets the fetch (or the rejected task) failure, an Error included
+        FutureTask<List<T>> failure = new FutureTask<>(new Callable<List<T>>() {
+          @Override
+          public List<T> call() throws Exception {
+            if (exp instanceof Error) {
+              throw (Error) exp;
+            }
+            throw (Exception) exp;
+          }
+        });
+        failure.run();
+        submittedChunks++;
+        chunks.add(failure);
+      } finally {
+        // the consumer never waits for a dead fetcher
+        chunks.add(endOfCursor);
+      }
+    }
+
+    private void submit(final List<Object> documents) {
+      submit(new Callable<List<T>>() {
+        @Override
+        public List<T> call() throws Exception {
+          return decode(documents);
+        }
+      });
+    }
+
+    private void submit(Callable<List<T>> task) {
+      if (ordered) {
+        FutureTask<List<T>> chunk = new FutureTask<>(task);
+        executor.execute(chunk);
+        chunks.add(chunk);
+      } else {
+        executor.execute(new FutureTask<List<T>>(task) {
+          @Override
+          protected void done() {
+            chunks.add(this);
+          }
+        });
+      }
+      submittedChunks++;
+    }
+  }
+
+  private List<T> decode(List<Object> documents) throws Exception {
+    List<T> thriftObjects = new ArrayList<>(documents.size());
+    TBSONDeserializer deserializer = serializerPool.borrowDeserializer();
+    try {
+      for (Object document : documents) {
+        T thriftObject = thriftClass.newInstance();
+        if (document instanceof RawBsonDocument) {
+          deserializer.deserialize(thriftObject, (RawBsonDocument) document);
+        } else {
+          deserializer.deserialize(thriftObject, (DBObject) document);
+        }
+        thriftObjects.add(thriftObject);
+      }
+    } finally {
+      serializerPool.releaseDeserializer(deserializer);
+    }
+    return thriftObjects;
+  }
+}
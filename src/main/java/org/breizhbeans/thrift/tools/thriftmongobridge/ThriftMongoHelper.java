@@ -20,10 +20,27 @@ package org.breizhbeans.thrift.tools.thriftmongobridge;
 
 import org.apache.thrift.TBase;
 import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TCompactProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.codec.ThriftCodecProvider;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.conversions.Bson;
 
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * 
@@ -34,13 +51,55 @@ import com.mongodb.DBObject;
  */
 public class ThriftMongoHelper {
 
-	private static TBSONSerializer tbsonSerializer = new TBSONSerializer();
-	private static TBSONDeserializer tbsonDeserializer = new TBSONDeserializer();	
+	// the serializers are not thread safe : borrowed from a pool for each call
+	// the struct metadata are shared by all the threads (StructDescriptor)
+	private static volatile TBSONSerializerPool tbsonSerializerPool = new TBSONSerializerPool();
+
+	/**
+	 * Replace the pool used by the helper.
+	 * A pool with maxIdle=0 creates the serializers for each call (nothing is retained between calls)
+	 */
+	public static void setSerializerPool(final TBSONSerializerPool serializerPool) {
+		if (serializerPool == null) {
+			throw new IllegalArgumentException("serializerPool is null");
+		}
+		tbsonSerializerPool = serializerPool;
+	}
+
+	public static TBSONSerializerPool getSerializerPool() {
+		return tbsonSerializerPool;
+	}
+
+	// workers of the batch conversions, created on the first batch
+	private static volatile ForkJoinPool batchPool;
+
+	/**
+	 * Replace the ForkJoinPool used by the batch conversions
+	 */
+	public static void setBatchPool(final ForkJoinPool forkJoinPool) {
+		if (forkJoinPool == null) {
+			throw new IllegalArgumentException("forkJoinPool is null");
+		}
+		batchPool = forkJoinPool;
+	}
+
+	public static ForkJoinPool getBatchPool() {
+		ForkJoinPool forkJoinPool = batchPool;
+		if (forkJoinPool == null) {
+			synchronized (ThriftMongoHelper.class) {
+				if (batchPool == null) {
+					batchPool = new ForkJoinPool();
+				}
+				forkJoinPool = batchPool;
+			}
+		}
+		return forkJoinPool;
+	}
 
 	public static DBObject thrift2DBObject(final TBase<?, ?> thriftObject) throws Exception {
 		// Thrift object serialize
 		// Construction of the dbobject
-		DBObject dbObject = tbsonSerializer.serialize(thriftObject);
+		DBObject dbObject = tbsonSerializerPool.serialize(thriftObject);
 
 		return dbObject;
 	}
@@ -48,8 +107,99 @@ public class ThriftMongoHelper {
 	public static TBase<?, ?> DBObject2Thrift(final DBObject dbObject, Class<?> thriftClass) throws Exception {
 		TBase<?, ?> thriftObject = (TBase<?, ?>) thriftClass.newInstance();
 
-		tbsonDeserializer.deserialize(thriftObject, dbObject);
+		tbsonSerializerPool.deserialize(thriftObject, dbObject);
 
 		return thriftObject;
 	}
+
+	public static RawBsonDocument thrift2RawDocument(final TBase<?, ?> thriftObject) throws Exception {
+		return tbsonSerializerPool.serializeRaw(thriftObject);
+	}
+
+	public static <T extends TBase<?, ?>> T rawDocument2Thrift(final RawBsonDocument document, Class<T> thriftClass) throws Exception {
+		T thriftObject = thriftClass.newInstance();
+
+		tbsonSerializerPool.deserialize(thriftObject, document);
+
+		return thriftObject;
+	}
+
+	/**
+	 * Typed collection encoding and decoding the Thrift objects with a ThriftCodec
+	 */
+	public static <T extends TBase<?, ?>> MongoCollection<T> getCollection(final MongoDatabase database, final String collectionName, Class<T> thriftClass) {
+		return database
+				.withCodecRegistry(CodecRegistries.fromRegistries(database.getCodecRegistry(), CodecRegistries.fromProviders(new ThriftCodecProvider())))
+				.getCollection(collectionName, thriftClass);
+	}
+
+	/**
+	 * Find the documents, only the projected fields are sent by the server
+	 */
+	public static <T extends TBase<?, ?>> FindIterable<T> find(final MongoCollection<T> collection, final Bson filter, final TBSONProjection projection) throws TException {
+		return collection.find(filter).projection(projection.toBsonDocument());
+	}
+
+	/**
+	 * Find the documents, only the projected fields are sent by the server (DBObject2Thrift reads the cursor objects)
+	 */
+	public static DBCursor find(final DBCollection collection, final DBObject query, final TBSONProjection projection) throws TException {
+		return collection.find(query, projection.toDBObject());
+	}
+
+	/**
+	 * Serialize a list on the batch pool, the results are in the input order
+	 */
+	public static List<DBObject> thrift2DBObjects(final List<? extends TBase<?, ?>> thriftObjects) throws Exception {
+		List<TBase<?, ?>> input = randomAccess(thriftObjects);
+		DBObject[] output = new DBObject[input.size()];
+		ForkJoinPool forkJoinPool = getBatchPool();
+
+		BatchTask.run(new BatchTask.Serialize(input, output, tbsonSerializerPool, 0, output.length, BatchTask.range(output.length, forkJoinPool)), forkJoinPool);
+		return Arrays.asList(output);
+	}
+
+	/**
+	 * Deserialize a list on the batch pool, the results are in the input order
+	 */
+	public static <T extends TBase<?, ?>> List<T> DBObjects2Thrift(final List<DBObject> dbObjects, Class<T> thriftClass) throws Exception {
+		List<DBObject> input = randomAccess(dbObjects);
+		T[] output = newArray(thriftClass, input.size());
+		ForkJoinPool forkJoinPool = getBatchPool();
+
+		BatchTask.run(new BatchTask.Deserialize<>(input, output, thriftClass, tbsonSerializerPool, 0, output.length, BatchTask.range(output.length, forkJoinPool)), forkJoinPool);
+		return Arrays.asList(output);
+	}
+
+	public static List<RawBsonDocument> thrift2RawDocuments(final List<? extends TBase<?, ?>> thriftObjects) throws Exception {
+		List<TBase<?, ?>> input = randomAccess(thriftObjects);
+		RawBsonDocument[] output = new RawBsonDocument[input.size()];
+		ForkJoinPool forkJoinPool = getBatchPool();
+
+		BatchTask.run(new BatchTask.SerializeRaw(input, output, tbsonSerializerPool, 0, output.length, BatchTask.range(output.length, forkJoinPool)), forkJoinPool);
+		return Arrays.asList(output);
+	}
+
+	public static <T extends TBase<?, ?>> List<T> rawDocuments2Thrift(final List<RawBsonDocument> documents, Class<T> thriftClass) throws Exception {
+		List<RawBsonDocument> input = randomAccess(documents);
+		T[] output = newArray(thriftClass, input.size());
+		ForkJoinPool forkJoinPool = getBatchPool();
+
+		BatchTask.run(new BatchTask.DeserializeRaw<>(input, output, thriftClass, tbsonSerializerPool, 0, output.length, BatchTask.range(output.length, forkJoinPool)), forkJoinPool);
+		return Arrays.asList(output);
+	}
+
+	// the workers read the input by index
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> randomAccess(final List<? extends T> list) {
+		if (list instanceof RandomAccess) {
+			return (List<T>) list;
+		}
+		return new ArrayList<T>(list);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T[] newArray(Class<T> thriftClass, int size) {
+		return (T[]) Array.newInstance(thriftClass, size);
+	}
 }
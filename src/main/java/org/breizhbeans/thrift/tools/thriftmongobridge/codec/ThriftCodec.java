@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.codec;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONReaderProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONWriterProtocol;
+import org.bson.BSONException;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.ByteBufferBsonInput;
+
+/**
+ * Mongo 3.x Codec of a generated Thrift class.
+ *
+ * Encodes and decodes the same documents as the TBSONSerializer and the TBSONDeserializer
+ * (secured fields included) without the DBObject hop.
+ */
+public class ThriftCodec<T extends TBase> implements Codec<T> {
+
+  private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec();
+
+  private final Class<T> thriftClass;
+
+  public ThriftCodec(Class<T> thriftClass) {
+    this.thriftClass = thriftClass;
+  }
+
+  @Override
+  public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+    // the protocol state is local to the call : the codec is shared by the registry
+    TBSONWriterProtocol protocol = new TBSONWriterProtocol();
+    try {
+      protocol.setBsonWriter(writer);
+      protocol.setBaseObject(value);
+      value.write(protocol);
+    } catch (TException e) {
+      throw new BSONException("Unable to encode " + thriftClass.getName(), e);
+    } finally {
+      protocol.reset();
+    }
+  }
+
+  @Override
+  public T decode(BsonReader reader, DecoderContext decoderContext) {
+    if (!(reader instanceof BsonBinaryReader)) {
+      // the reader protocol needs to look ahead the containers sizes
+      RawBsonDocument document = new RawBsonDocument(BSON_DOCUMENT_CODEC.decode(reader, decoderContext), BSON_DOCUMENT_CODEC);
+      BsonBinaryReader binaryReader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()));
+      try {
+        return decode(binaryReader);
+      } finally {
+        binaryReader.close();
+      }
+    }
+    return decode((BsonBinaryReader) reader);
+  }
+
+  private T decode(BsonBinaryReader reader) {
+    TBSONReaderProtocol protocol = new TBSONReaderProtocol();
+    try {
+      T thriftObject = thriftClass.newInstance();
+      protocol.setBsonReader(reader);
+      protocol.setBaseObject(thriftObject);
+      thriftObject.read(protocol);
+      return thriftObject;
+    } catch (Exception e) {
+      throw new BSONException("Unable to decode " + thriftClass.getName(), e);
+    } finally {
+      protocol.reset();
+    }
+  }
+
+  @Override
+  public Class<T> getEncoderClass() {
+    return thriftClass;
+  }
+}
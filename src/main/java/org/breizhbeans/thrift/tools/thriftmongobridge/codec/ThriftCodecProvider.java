@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.codec;
+
+import org.apache.thrift.TBase;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides a ThriftCodec per generated Thrift class
+ *
+ * MongoCollection<People> peoples = database
+ *   .withCodecRegistry(CodecRegistries.fromRegistries(MongoClient.getDefaultCodecRegistry(), CodecRegistries.fromProviders(new ThriftCodecProvider())))
+ *   .getCollection("people", People.class);
+ */
+public class ThriftCodecProvider implements CodecProvider {
+
+  private final Set<Class<?>> thriftClasses;
+  private final ConcurrentHashMap<Class<?>, Codec<?>> codecs = new ConcurrentHashMap<>();
+
+  /**
+   * Provider for all the Thrift classes
+   */
+  public ThriftCodecProvider() {
+    this.thriftClasses = null;
+  }
+
+  /**
+   * Provider restricted to the registered Thrift classes
+   * @param thriftClasses generated classes
+   */
+  @SafeVarargs
+  public ThriftCodecProvider(Class<? extends TBase>... thriftClasses) {
+    this.thriftClasses = new HashSet<Class<?>>();
+    for (Class<? extends TBase> thriftClass : thriftClasses) {
+      this.thriftClasses.add(thriftClass);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+    if (!TBase.class.isAssignableFrom(clazz)) {
+      return null;
+    }
+    if (thriftClasses != null && !thriftClasses.contains(clazz)) {
+      return null;
+    }
+
+    Codec<?> codec = codecs.get(clazz);
+    if (codec == null) {
+      codec = new ThriftCodec(clazz);
+      Codec<?> previous = codecs.putIfAbsent(clazz, codec);
+      if (previous != null) {
+        codec = previous;
+      }
+    }
+    return (Codec<T>) codec;
+  }
+}
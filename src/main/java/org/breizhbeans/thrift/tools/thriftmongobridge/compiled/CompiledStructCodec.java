@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.compiled;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.StructDescriptor;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONReaderProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONWriterProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.ThriftFieldMetadata;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializer of a Thrift class compiled from its metaDataMap.
+ *
+ * The fields are written and read straight into BSON in declaration order without the TBase.write/read
+ * callbacks and the protocol state machine. The structs holding secured fields (or using metadata the
+ * compiler does not handle, such as typedef'd structs) are delegated to the streaming protocols.
+ *
+ * A compiled codec is rebuilt when its StructDescriptor is invalidated (secured wrapper changes).
+ */
+public final class CompiledStructCodec {
+
+  private static final ConcurrentHashMap<Class<?>, CompiledStructCodec> registry = new ConcurrentHashMap<>();
+
+  private final Class<? extends TBase> thriftClass;
+  private final StructDescriptor descriptor;
+  // null when the struct is delegated to the protocols
+  private final FieldCodec[] fields;
+  private final MethodHandle constructor;
+  private final MethodHandle validate;
+
+  private CompiledStructCodec(Class<? extends TBase> thriftClass, StructDescriptor descriptor, FieldCodec[] fields, MethodHandle constructor, MethodHandle validate) {
+    this.thriftClass = thriftClass;
+    this.descriptor = descriptor;
+    this.fields = fields;
+    this.constructor = constructor;
+    this.validate = validate;
+  }
+
+  public static CompiledStructCodec get(Class<? extends TBase> thriftClass) throws TException {
+    StructDescriptor descriptor = StructDescriptor.get(thriftClass);
+    CompiledStructCodec codec = registry.get(thriftClass);
+    if (codec == null || codec.descriptor != descriptor) {
+      codec = compile(thriftClass, descriptor);
+      registry.put(thriftClass, codec);
+    }
+    return codec;
+  }
+
+  private static CompiledStructCodec compile(Class<? extends TBase> thriftClass, StructDescriptor descriptor) throws TException {
+    MethodHandle constructor;
+    MethodHandle validate;
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      constructor = lookup.findConstructor(thriftClass, MethodType.methodType(void.class))
+          .asType(MethodType.methodType(TBase.class));
+      validate = lookup.findVirtual(thriftClass, "validate", MethodType.methodType(void.class))
+          .asType(MethodType.methodType(void.class, TBase.class));
+    } catch (Exception e) {
+      throw new TException("Unable to compile " + thriftClass.getName(), e);
+    }
+
+    FieldCodec[] fields = new FieldCodec[descriptor.size()];
+    for (int i = 0; i < fields.length; i++) {
+      ThriftFieldMetadata metadata = descriptor.getFieldAt(i);
+      if (metadata.securedFieldMetaData.isSecured()) {
+        return new CompiledStructCodec(thriftClass, descriptor, null, constructor, validate);
+      }
+      TFieldIdEnum fieldId = descriptor.getFieldId(metadata.tfield.name);
+      try {
+        fields[i] = FieldCodec.compile(thriftClass, metadata, fieldId);
+      } catch (TException e) {
+        // not handled by the compiler
+        return new CompiledStructCodec(thriftClass, descriptor, null, constructor, validate);
+      }
+    }
+    return new CompiledStructCodec(thriftClass, descriptor, fields, constructor, validate);
+  }
+
+  public Class<? extends TBase> getThriftClass() {
+    return thriftClass;
+  }
+
+  /**
+   * @return false if the struct is serialized through the streaming protocols
+   */
+  public boolean isCompiled() {
+    return fields != null;
+  }
+
+  TBase<?, ?> newInstance() throws TException {
+    try {
+      return (TBase) constructor.invokeExact();
+    } catch (Throwable e) {
+      throw new TException("Unable to create " + thriftClass.getName(), e);
+    }
+  }
+
+  private void validate(TBase<?, ?> base) throws TException {
+    try {
+      validate.invokeExact((TBase) base);
+    } catch (Throwable e) {
+      throw FieldCodec.wrap(thriftClass.getName(), e);
+    }
+  }
+
+  /**
+   * Writes the struct as a BSON document (the name, if any, is already written)
+   */
+  public void write(BsonWriter writer, TBase<?, ?> base) throws TException {
+    if (fields == null) {
+      TBSONWriterProtocol protocol = new TBSONWriterProtocol();
+      try {
+        protocol.setBsonWriter(writer);
+        protocol.setBaseObject(base);
+        base.write(protocol);
+      } finally {
+        protocol.reset();
+      }
+      return;
+    }
+
+    validate(base);
+    writer.writeStartDocument();
+    for (FieldCodec field : fields) {
+      field.write(writer, base);
+    }
+    writer.writeEndDocument();
+  }
+
+  /**
+   * Reads a BSON document into the struct, the reader is positioned on the document
+   */
+  public void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException {
+    if (fields == null) {
+      TBSONReaderProtocol protocol = new TBSONReaderProtocol();
+      try {
+        protocol.setBsonReader(reader);
+        protocol.setBaseObject(base);
+        base.read(protocol);
+      } finally {
+        protocol.reset();
+      }
+      return;
+    }
+
+    reader.readStartDocument();
+    int nextFieldIndex = 0;
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      ThriftFieldMetadata metadata = descriptor.getField(reader.readName(), nextFieldIndex);
+
+      // unknown fields (_id...)
+      if (metadata == null || reader.getCurrentBsonType() == BsonType.NULL) {
+        reader.skipValue();
+        continue;
+      }
+      fields[metadata.index].read(reader, base);
+      nextFieldIndex = metadata.index + 1;
+    }
+    reader.readEndDocument();
+    validate(base);
+  }
+
+  public static void clear() {
+    registry.clear();
+  }
+}
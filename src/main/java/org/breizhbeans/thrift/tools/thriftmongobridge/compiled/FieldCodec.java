@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.compiled;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.TFieldRequirementType;
+import org.apache.thrift.meta_data.ListMetaData;
+import org.apache.thrift.protocol.TType;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.ThriftFieldMetadata;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonWriter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Writes and reads a field of a generated Thrift class.
+ *
+ * The public field is read with a MethodHandle getter and the field is set with the generated setter
+ * (which also sets the isset bit). The primitive fields have their own codec to avoid boxing.
+ */
+abstract class FieldCodec {
+
+  final String name;
+  // BSON key
+  final String key;
+  final ThriftFieldMetadata metadata;
+
+  FieldCodec(ThriftFieldMetadata metadata) {
+    this.name = metadata.tfield.name;
+    this.key = metadata.key;
+    this.metadata = metadata;
+  }
+
+  abstract void write(BsonWriter writer, TBase<?, ?> base) throws TException;
+
+  // the reader is positioned on the value (type and name already read)
+  abstract void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException;
+
+  static FieldCodec compile(Class<? extends TBase> thriftClass, ThriftFieldMetadata metadata, TFieldIdEnum fieldId) throws TException {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      Field field = thriftClass.getField(metadata.tfield.name);
+      Class<?> type = field.getType();
+
+      MethodHandle getter = lookup.unreflectGetter(field);
+      MethodHandle setter = findSetter(lookup, thriftClass, metadata.tfield.name, type);
+
+      // the optional primitives are written only if set
+      MethodHandle isSet = null;
+      if (type.isPrimitive() && metadata.fieldMetaData.requirementType == TFieldRequirementType.OPTIONAL) {
+        isSet = MethodHandles.insertArguments(
+            lookup.findVirtual(TBase.class, "isSet", MethodType.methodType(boolean.class, TFieldIdEnum.class)), 1, fieldId);
+      }
+
+      if (setter == null) {
+        // no generated setter : generic setFieldValue (boxed)
+        setter = MethodHandles.insertArguments(
+            lookup.findVirtual(TBase.class, "setFieldValue", MethodType.methodType(void.class, TFieldIdEnum.class, Object.class)), 1, fieldId);
+        return new ObjectFieldCodec(metadata, getter, setter, isSet);
+      }
+
+      switch (metadata.tfield.type) {
+        case TType.BOOL:
+          return new BoolFieldCodec(metadata, getter, setter, isSet);
+        case TType.BYTE:
+          return new ByteFieldCodec(metadata, getter, setter, isSet);
+        case TType.I16:
+          return new I16FieldCodec(metadata, getter, setter, isSet);
+        case TType.I32:
+          if (type == int.class) {
+            return new I32FieldCodec(metadata, getter, setter, isSet);
+          }
+          // enum
+          return new ObjectFieldCodec(metadata, getter, setter, isSet);
+        case TType.I64:
+          return new I64FieldCodec(metadata, getter, setter, isSet);
+        case TType.DOUBLE:
+          return new DoubleFieldCodec(metadata, getter, setter, isSet);
+        default:
+          return new ObjectFieldCodec(metadata, getter, setter, isSet);
+      }
+    } catch (TException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new TException("Unable to compile the field " + thriftClass.getName() + "." + metadata.tfield.name, e);
+    }
+  }
+
+  private static MethodHandle findSetter(MethodHandles.Lookup lookup, Class<?> thriftClass, String fieldName, Class<?> type) {
+    String setterName = "set" + Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+    try {
+      return lookup.unreflect(thriftClass.getMethod(setterName, type));
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  static TException wrap(String name, Throwable e) {
+    if (e instanceof TException) {
+      return (TException) e;
+    }
+    return new TException("Unable to access the field " + name, e);
+  }
+
+  static final class ObjectFieldCodec extends FieldCodec {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle isSet;
+    private final ValueCodec valueCodec;
+
+    ObjectFieldCodec(ThriftFieldMetadata metadata, MethodHandle getter, MethodHandle setter, MethodHandle isSet) throws TException {
+      super(metadata);
+      this.getter = getter.asType(MethodType.methodType(Object.class, TBase.class));
+      this.setter = setter.asType(MethodType.methodType(void.class, TBase.class, Object.class));
+      this.isSet = isSet == null ? null : isSet.asType(MethodType.methodType(boolean.class, TBase.class));
+      if (metadata.packed) {
+        this.valueCodec = new ValueCodec.PackedListCodec((ListMetaData) metadata.fieldMetaData.valueMetaData);
+      } else {
+        this.valueCodec = ValueCodec.of(metadata.fieldMetaData.valueMetaData);
+      }
+    }
+
+    void write(BsonWriter writer, TBase<?, ?> base) throws TException {
+      try {
+        if (isSet != null && !(boolean) isSet.invokeExact((TBase) base)) {
+          return;
+        }
+        Object value = (Object) getter.invokeExact((TBase) base);
+        if (value != null) {
+          writer.writeName(key);
+          valueCodec.write(writer, value);
+        }
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+
+    void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException {
+      Object value = valueCodec.read(reader);
+      try {
+        setter.invokeExact((TBase) base, value);
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+  }
+
+  static final class BoolFieldCodec extends FieldCodec {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle isSet;
+
+    BoolFieldCodec(ThriftFieldMetadata metadata, MethodHandle getter, MethodHandle setter, MethodHandle isSet) {
+      super(metadata);
+      this.getter = getter.asType(MethodType.methodType(boolean.class, TBase.class));
+      this.setter = setter.asType(MethodType.methodType(void.class, TBase.class, boolean.class));
+      this.isSet = isSet == null ? null : isSet.asType(MethodType.methodType(boolean.class, TBase.class));
+    }
+
+    void write(BsonWriter writer, TBase<?, ?> base) throws TException {
+      try {
+        if (isSet == null || (boolean) isSet.invokeExact((TBase) base)) {
+          writer.writeInt32(key, (boolean) getter.invokeExact((TBase) base) ? 1 : 0);
+        }
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+
+    void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException {
+      boolean value = ValueCodec.readBool(reader);
+      try {
+        setter.invokeExact((TBase) base, value);
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+  }
+
+  static final class ByteFieldCodec extends FieldCodec {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle isSet;
+
+    ByteFieldCodec(ThriftFieldMetadata metadata, MethodHandle getter, MethodHandle setter, MethodHandle isSet) {
+      super(metadata);
+      this.getter = getter.asType(MethodType.methodType(byte.class, TBase.class));
+      this.setter = setter.asType(MethodType.methodType(void.class, TBase.class, byte.class));
+      this.isSet = isSet == null ? null : isSet.asType(MethodType.methodType(boolean.class, TBase.class));
+    }
+
+    void write(BsonWriter writer, TBase<?, ?> base) throws TException {
+      try {
+        if (isSet == null || (boolean) isSet.invokeExact((TBase) base)) {
+          writer.writeInt32(key, (byte) getter.invokeExact((TBase) base));
+        }
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+
+    void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException {
+      byte value = (byte) ValueCodec.readLong(reader);
+      try {
+        setter.invokeExact((TBase) base, value);
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+  }
+
+  static final class I16FieldCodec extends FieldCodec {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle isSet;
+
+    I16FieldCodec(ThriftFieldMetadata metadata, MethodHandle getter, MethodHandle setter, MethodHandle isSet) {
+      super(metadata);
+      this.getter = getter.asType(MethodType.methodType(short.class, TBase.class));
+      this.setter = setter.asType(MethodType.methodType(void.class, TBase.class, short.class));
+      this.isSet = isSet == null ? null : isSet.asType(MethodType.methodType(boolean.class, TBase.class));
+    }
+
+    void write(BsonWriter writer, TBase<?, ?> base) throws TException {
+      try {
+        if (isSet == null || (boolean) isSet.invokeExact((TBase) base)) {
+          writer.writeInt32(key, (short) getter.invokeExact((TBase) base));
+        }
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+
+    void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException {
+      short value = (short) ValueCodec.readLong(reader);
+      try {
+        setter.invokeExact((TBase) base, value);
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+  }
+
+  static final class I32FieldCodec extends FieldCodec {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle isSet;
+
+    I32FieldCodec(ThriftFieldMetadata metadata, MethodHandle getter, MethodHandle setter, MethodHandle isSet) {
+      super(metadata);
+      this.getter = getter.asType(MethodType.methodType(int.class, TBase.class));
+      this.setter = setter.asType(MethodType.methodType(void.class, TBase.class, int.class));
+      this.isSet = isSet == null ? null : isSet.asType(MethodType.methodType(boolean.class, TBase.class));
+    }
+
+    void write(BsonWriter writer, TBase<?, ?> base) throws TException {
+      try {
+        if (isSet == null || (boolean) isSet.invokeExact((TBase) base)) {
+          writer.writeInt32(key, (int) getter.invokeExact((TBase) base));
+        }
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+
+    void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException {
+      int value = (int) ValueCodec.readLong(reader);
+      try {
+        setter.invokeExact((TBase) base, value);
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+  }
+
+  static final class I64FieldCodec extends FieldCodec {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle isSet;
+
+    I64FieldCodec(ThriftFieldMetadata metadata, MethodHandle getter, MethodHandle setter, MethodHandle isSet) {
+      super(metadata);
+      this.getter = getter.asType(MethodType.methodType(long.class, TBase.class));
+      this.setter = setter.asType(MethodType.methodType(void.class, TBase.class, long.class));
+      this.isSet = isSet == null ? null : isSet.asType(MethodType.methodType(boolean.class, TBase.class));
+    }
+
+    void write(BsonWriter writer, TBase<?, ?> base) throws TException {
+      try {
+        if (isSet == null || (boolean) isSet.invokeExact((TBase) base)) {
+          writer.writeInt64(key, (long) getter.invokeExact((TBase) base));
+        }
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+
+    void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException {
+      long value = ValueCodec.readLong(reader);
+      try {
+        setter.invokeExact((TBase) base, value);
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+  }
+
+  static final class DoubleFieldCodec extends FieldCodec {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle isSet;
+
+    DoubleFieldCodec(ThriftFieldMetadata metadata, MethodHandle getter, MethodHandle setter, MethodHandle isSet) {
+      super(metadata);
+      this.getter = getter.asType(MethodType.methodType(double.class, TBase.class));
+      this.setter = setter.asType(MethodType.methodType(void.class, TBase.class, double.class));
+      this.isSet = isSet == null ? null : isSet.asType(MethodType.methodType(boolean.class, TBase.class));
+    }
+
+    void write(BsonWriter writer, TBase<?, ?> base) throws TException {
+      try {
+        if (isSet == null || (boolean) isSet.invokeExact((TBase) base)) {
+          writer.writeDouble(key, (double) getter.invokeExact((TBase) base));
+        }
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+
+    void read(BsonBinaryReader reader, TBase<?, ?> base) throws TException {
+      double value = ValueCodec.readDouble(reader);
+      try {
+        setter.invokeExact((TBase) base, value);
+      } catch (Throwable e) {
+        throw wrap(name, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.compiled;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.RawBsonDocument;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.io.ByteBufferBsonInput;
+
+/**
+ * Raw BSON serializer using the compiled codecs (CompiledStructCodec) instead of the Thrift protocol callbacks.
+ * The documents are the same as the TBSONSerializer.serializeRaw ones.
+ *
+ * TBSONCompiledSerializer.precompile(People.class, Address.class);
+ * RawBsonDocument document = new TBSONCompiledSerializer().serialize(people);
+ *
+ * The output buffer is reused between calls : an instance must not be shared between threads.
+ */
+public class TBSONCompiledSerializer {
+
+  private final BasicOutputBuffer outputBuffer = new BasicOutputBuffer();
+
+  /**
+   * Compiles the codecs at startup rather than on the first document
+   */
+  @SafeVarargs
+  public static void precompile(Class<? extends TBase>... thriftClasses) throws TException {
+    for (Class<? extends TBase> thriftClass : thriftClasses) {
+      CompiledStructCodec.get(thriftClass);
+    }
+  }
+
+  public RawBsonDocument serialize(TBase<?, ?> base) throws TException {
+    outputBuffer.truncateToPosition(0);
+    BsonBinaryWriter writer = new BsonBinaryWriter(outputBuffer);
+    try {
+      CompiledStructCodec.get(base.getClass()).write(writer, base);
+    } finally {
+      writer.close();
+    }
+    return new RawBsonDocument(outputBuffer.toByteArray());
+  }
+
+  public void deserialize(TBase<?, ?> base, RawBsonDocument document) throws TException {
+    BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()));
+    try {
+      CompiledStructCodec.get(base.getClass()).read(reader, base);
+    } finally {
+      reader.close();
+    }
+  }
+
+  public <T extends TBase<?, ?>> T deserialize(RawBsonDocument document, Class<T> thriftClass) throws TException {
+    CompiledStructCodec codec = CompiledStructCodec.get(thriftClass);
+    T base = thriftClass.cast(codec.newInstance());
+    deserialize(base, document);
+    return base;
+  }
+}
@@ -0,0 +1,435 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.compiled;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TEnum;
+import org.apache.thrift.TException;
+import org.apache.thrift.meta_data.EnumMetaData;
+import org.apache.thrift.meta_data.FieldValueMetaData;
+import org.apache.thrift.meta_data.ListMetaData;
+import org.apache.thrift.meta_data.MapMetaData;
+import org.apache.thrift.meta_data.SetMetaData;
+import org.apache.thrift.meta_data.StructMetaData;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.TBaseHelper;
+import org.bson.BsonBinary;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.MapKeys;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.PackedLists;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Writes and reads a (boxed) Thrift value : container element, map key or map value.
+ * The BSON layout is the one of the TBSONWriterProtocol / TBSONReaderProtocol.
+ */
+abstract class ValueCodec {
+
+  abstract void write(BsonWriter writer, Object value) throws TException;
+
+  // the reader is positioned on the value (type and name already read)
+  abstract Object read(BsonBinaryReader reader) throws TException;
+
+  String toKey(Object value) throws TException {
+    throw new TException("Unsupported map key type : " + getClass().getSimpleName());
+  }
+
+  Object fromKey(String key) throws TException {
+    throw new TException("Unsupported map key type : " + getClass().getSimpleName());
+  }
+
+  static ValueCodec of(FieldValueMetaData valueMetaData) throws TException {
+    switch (valueMetaData.type) {
+      case TType.BOOL:
+        return BOOL;
+      case TType.BYTE:
+        return BYTE;
+      case TType.I16:
+        return I16;
+      case TType.I32:
+        return I32;
+      case TType.I64:
+        return I64;
+      case TType.DOUBLE:
+        return DOUBLE;
+      case TType.STRING:
+        return valueMetaData.isBinary() ? BINARY : STRING;
+      case TType.ENUM:
+        return new EnumCodec(((EnumMetaData) valueMetaData).enumClass);
+      case TType.STRUCT:
+        if (!(valueMetaData instanceof StructMetaData)) {
+          throw new TException("Unsupported typedef struct : " + valueMetaData.getTypedefName());
+        }
+        return new StructCodec(((StructMetaData) valueMetaData).structClass);
+      case TType.LIST:
+        FieldValueMetaData elemMetaData = ((ListMetaData) valueMetaData).elemMetaData;
+        return new CollectionCodec(of(elemMetaData), false, elemMetaData.type);
+      case TType.SET:
+        return new CollectionCodec(of(((SetMetaData) valueMetaData).elemMetaData), true, TType.STOP);
+      case TType.MAP:
+        MapMetaData mapMetaData = (MapMetaData) valueMetaData;
+        return new MapCodec(of(mapMetaData.keyMetaData), of(mapMetaData.valueMetaData));
+      default:
+        throw new TException("Unsupported type : " + valueMetaData.type);
+    }
+  }
+
+  static long readLong(BsonBinaryReader reader) throws TException {
+    switch (reader.getCurrentBsonType()) {
+      case INT32:
+        return reader.readInt32();
+      case INT64:
+        return reader.readInt64();
+      case DOUBLE:
+        return (long) reader.readDouble();
+      case BOOLEAN:
+        return reader.readBoolean() ? 1 : 0;
+      default:
+        throw new TException("Unexpected BSON type " + reader.getCurrentBsonType() + " for a number");
+    }
+  }
+
+  static boolean readBool(BsonBinaryReader reader) throws TException {
+    if (reader.getCurrentBsonType() == BsonType.BOOLEAN) {
+      return reader.readBoolean();
+    }
+    return readLong(reader) == 1;
+  }
+
+  static double readDouble(BsonBinaryReader reader) throws TException {
+    switch (reader.getCurrentBsonType()) {
+      case INT32:
+        return reader.readInt32();
+      case INT64:
+        return reader.readInt64();
+      default:
+        return reader.readDouble();
+    }
+  }
+
+  static final ValueCodec BOOL = new ValueCodec() {
+    void write(BsonWriter writer, Object value) {
+      writer.writeInt32((Boolean) value ? 1 : 0);
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      return readBool(reader);
+    }
+
+    String toKey(Object value) {
+      return (Boolean) value ? "1" : "0";
+    }
+
+    Object fromKey(String key) {
+      return "1".equals(key) || Boolean.parseBoolean(key);
+    }
+  };
+
+  static final ValueCodec BYTE = new ValueCodec() {
+    void write(BsonWriter writer, Object value) {
+      writer.writeInt32((Byte) value);
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      return (byte) readLong(reader);
+    }
+
+    String toKey(Object value) {
+      return MapKeys.toKey((Byte) value);
+    }
+
+    Object fromKey(String key) {
+      return Byte.parseByte(key);
+    }
+  };
+
+  static final ValueCodec I16 = new ValueCodec() {
+    void write(BsonWriter writer, Object value) {
+      writer.writeInt32((Short) value);
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      return (short) readLong(reader);
+    }
+
+    String toKey(Object value) {
+      return MapKeys.toKey((Short) value);
+    }
+
+    Object fromKey(String key) {
+      return (short) Integer.parseInt(key);
+    }
+  };
+
+  static final ValueCodec I32 = new ValueCodec() {
+    void write(BsonWriter writer, Object value) {
+      writer.writeInt32((Integer) value);
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      return (int) readLong(reader);
+    }
+
+    String toKey(Object value) {
+      return MapKeys.toKey((Integer) value);
+    }
+
+    Object fromKey(String key) {
+      return Integer.parseInt(key);
+    }
+  };
+
+  static final ValueCodec I64 = new ValueCodec() {
+    void write(BsonWriter writer, Object value) {
+      writer.writeInt64((Long) value);
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      return readLong(reader);
+    }
+
+    String toKey(Object value) {
+      return MapKeys.toKey((Long) value);
+    }
+
+    Object fromKey(String key) {
+      return Long.parseLong(key);
+    }
+  };
+
+  static final ValueCodec DOUBLE = new ValueCodec() {
+    void write(BsonWriter writer, Object value) {
+      writer.writeDouble((Double) value);
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      return readDouble(reader);
+    }
+
+    String toKey(Object value) {
+      return Double.toString((Double) value);
+    }
+
+    Object fromKey(String key) {
+      return Double.parseDouble(key);
+    }
+  };
+
+  static final ValueCodec STRING = new ValueCodec() {
+    void write(BsonWriter writer, Object value) {
+      writer.writeString((String) value);
+    }
+
+    Object read(BsonBinaryReader reader) {
+      if (reader.getCurrentBsonType() == BsonType.NULL) {
+        reader.readNull();
+        return null;
+      }
+      return reader.readString();
+    }
+
+    String toKey(Object value) {
+      return (String) value;
+    }
+
+    Object fromKey(String key) {
+      return key;
+    }
+  };
+
+  static final ValueCodec BINARY = new ValueCodec() {
+    void write(BsonWriter writer, Object value) {
+      writer.writeBinaryData(new BsonBinary(TBaseHelper.byteBufferToByteArray((ByteBuffer) value)));
+    }
+
+    Object read(BsonBinaryReader reader) {
+      return ByteBuffer.wrap(reader.readBinaryData().getData());
+    }
+
+    String toKey(Object value) {
+      return new String(TBaseHelper.byteBufferToByteArray((ByteBuffer) value));
+    }
+
+    Object fromKey(String key) {
+      return ByteBuffer.wrap(key.getBytes());
+    }
+  };
+
+  // enums are stored as int32
+  static final class EnumCodec extends ValueCodec {
+    private final Class<?> enumClass;
+    private final MethodHandle findByValue;
+
+    EnumCodec(Class<? extends TEnum> enumClass) throws TException {
+      this.enumClass = enumClass;
+      try {
+        this.findByValue = MethodHandles.publicLookup()
+            .findStatic(enumClass, "findByValue", MethodType.methodType(enumClass, int.class))
+            .asType(MethodType.methodType(Object.class, int.class));
+      } catch (Exception e) {
+        throw new TException("Unable to compile the enum " + enumClass.getName(), e);
+      }
+    }
+
+    void write(BsonWriter writer, Object value) {
+      writer.writeInt32(((TEnum) value).getValue());
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      return findByValue((int) readLong(reader));
+    }
+
+    String toKey(Object value) {
+      return MapKeys.toKey(((TEnum) value).getValue());
+    }
+
+    Object fromKey(String key) throws TException {
+      return findByValue(Integer.parseInt(key));
+    }
+
+    Object findByValue(int value) throws TException {
+      try {
+        return (Object) findByValue.invokeExact(value);
+      } catch (Throwable e) {
+        throw new TException("Unable to read the enum " + enumClass.getName(), e);
+      }
+    }
+  }
+
+  // resolved on each call : the structs may be recursive and the compiled codecs are invalidated with the metadata
+  static final class StructCodec extends ValueCodec {
+    private final Class<? extends TBase> structClass;
+
+    StructCodec(Class<? extends TBase> structClass) {
+      this.structClass = structClass;
+    }
+
+    void write(BsonWriter writer, Object value) throws TException {
+      CompiledStructCodec.get(structClass).write(writer, (TBase<?, ?>) value);
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      CompiledStructCodec codec = CompiledStructCodec.get(structClass);
+      TBase<?, ?> value = codec.newInstance();
+      codec.read(reader, value);
+      return value;
+    }
+  }
+
+  static final class CollectionCodec extends ValueCodec {
+    private final ValueCodec elemCodec;
+    private final boolean set;
+    // list element type, to read a packed list
+    private final byte elemType;
+
+    CollectionCodec(ValueCodec elemCodec, boolean set, byte elemType) {
+      this.elemCodec = elemCodec;
+      this.set = set;
+      this.elemType = elemType;
+    }
+
+    void write(BsonWriter writer, Object value) throws TException {
+      writer.writeStartArray();
+      for (Object elem : (Collection<?>) value) {
+        elemCodec.write(writer, elem);
+      }
+      writer.writeEndArray();
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      // a packed list is decoded from the binary, whatever the current storage options
+      if (reader.getCurrentBsonType() == BsonType.BINARY && reader.peekBinarySubType() == PackedLists.SUBTYPE) {
+        return PackedLists.unpack(reader.readBinaryData().getData(), elemType);
+      }
+
+      Collection<Object> collection;
+      if (set) {
+        collection = new HashSet<>();
+      } else {
+        collection = new ArrayList<>();
+      }
+      reader.readStartArray();
+      while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        collection.add(elemCodec.read(reader));
+      }
+      reader.readEndArray();
+      return collection;
+    }
+  }
+
+  // list of i32, i64 or double stored as a single binary (TBSONStorage.packFields)
+  static final class PackedListCodec extends ValueCodec {
+    private final ValueCodec listCodec;
+    private final byte elemType;
+
+    PackedListCodec(ListMetaData listMetaData) throws TException {
+      this.listCodec = of(listMetaData);
+      this.elemType = listMetaData.elemMetaData.type;
+    }
+
+    void write(BsonWriter writer, Object value) throws TException {
+      writer.writeBinaryData(new BsonBinary(PackedLists.SUBTYPE, PackedLists.pack((Collection<?>) value, elemType)));
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      return listCodec.read(reader);
+    }
+  }
+
+  static final class MapCodec extends ValueCodec {
+    private final ValueCodec keyCodec;
+    private final ValueCodec valueCodec;
+
+    MapCodec(ValueCodec keyCodec, ValueCodec valueCodec) {
+      this.keyCodec = keyCodec;
+      this.valueCodec = valueCodec;
+    }
+
+    void write(BsonWriter writer, Object value) throws TException {
+      writer.writeStartDocument();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        writer.writeName(keyCodec.toKey(entry.getKey()));
+        valueCodec.write(writer, entry.getValue());
+      }
+      writer.writeEndDocument();
+    }
+
+    Object read(BsonBinaryReader reader) throws TException {
+      Map<Object, Object> map = new HashMap<>();
+      reader.readStartDocument();
+      while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+        Object key = keyCodec.fromKey(reader.readName());
+        map.put(key, valueCodec.read(reader));
+      }
+      reader.readEndDocument();
+      return map;
+    }
+  }
+}
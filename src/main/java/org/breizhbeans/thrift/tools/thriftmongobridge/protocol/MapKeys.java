@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
+
+/**
+ * Map keys of the numeric Thrift types.
+ * The small integer keys (counters, enums) come from a table built once instead of a new String per key.
+ */
+public final class MapKeys {
+  static final int MIN_CACHED = -128;
+  static final int MAX_CACHED = 1023;
+
+  private static final String[] KEYS = new String[MAX_CACHED - MIN_CACHED + 1];
+
+  static {
+    for (int i = 0; i < KEYS.length; i++) {
+      KEYS[i] = Integer.toString(i + MIN_CACHED);
+    }
+  }
+
+  private MapKeys() {
+  }
+
+  public static String toKey(int value) {
+    if (value >= MIN_CACHED && value <= MAX_CACHED) {
+      return KEYS[value - MIN_CACHED];
+    }
+    return Integer.toString(value);
+  }
+
+  public static String toKey(long value) {
+    if (value >= MIN_CACHED && value <= MAX_CACHED) {
+      return KEYS[(int) value - MIN_CACHED];
+    }
+    return Long.toString(value);
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.meta_data.FieldValueMetaData;
+import org.apache.thrift.meta_data.ListMetaData;
+import org.apache.thrift.protocol.TType;
+import org.bson.types.Binary;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Packed storage of the list&lt;i32&gt;, list&lt;i64&gt; and list&lt;double&gt; fields (TBSONStorage.packFields) :
+ * a BSON binary of subtype 0x80 holding the little-endian values, instead of an array of BSON elements.
+ */
+public final class PackedLists {
+  public static final byte SUBTYPE = (byte) 0x80;
+
+  private PackedLists() {
+  }
+
+  /**
+   * @return true for a list of i32, i64 or double (enums are not packed)
+   */
+  public static boolean isPackable(FieldValueMetaData valueMetaData) {
+    if (valueMetaData.type != TType.LIST) {
+      return false;
+    }
+    byte elemType = ((ListMetaData) valueMetaData).elemMetaData.type;
+    return elemType == TType.I32 || elemType == TType.I64 || elemType == TType.DOUBLE;
+  }
+
+  /**
+   * @return size in bytes of a packed element
+   */
+  public static int width(byte elemType) throws TException {
+    switch (elemType) {
+      case TType.I32:
+        return 4;
+      case TType.I64:
+      case TType.DOUBLE:
+        return 8;
+      default:
+        throw new TException("Unsupported packed type : " + elemType);
+    }
+  }
+
+  /**
+   * @return the packed bytes of a stored value, null if the value is not packed
+   */
+  public static byte[] getPackedData(Object storedValue) {
+    if (storedValue instanceof Binary && ((Binary) storedValue).getType() == SUBTYPE) {
+      return ((Binary) storedValue).getData();
+    }
+    return null;
+  }
+
+  /**
+   * @return a little-endian view of the packed values
+   */
+  public static ByteBuffer wrap(byte[] data, byte elemType) throws TException {
+    if (data.length % width(elemType) != 0) {
+      throw new TException("Invalid packed list length " + data.length + " for type " + elemType);
+    }
+    return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public static byte[] pack(Collection<?> values, byte elemType) throws TException {
+    ByteBuffer buffer = ByteBuffer.allocate(values.size() * width(elemType)).order(ByteOrder.LITTLE_ENDIAN);
+    switch (elemType) {
+      case TType.I32:
+        for (Object value : values) {
+          buffer.putInt((Integer) value);
+        }
+        break;
+      case TType.I64:
+        for (Object value : values) {
+          buffer.putLong((Long) value);
+        }
+        break;
+      default:
+        for (Object value : values) {
+          buffer.putDouble((Double) value);
+        }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Decodes all the values at once
+   */
+  public static List<Object> unpack(byte[] data, byte elemType) throws TException {
+    ByteBuffer buffer = wrap(data, elemType);
+    int size = data.length / width(elemType);
+    List<Object> values = new ArrayList<>(size);
+    switch (elemType) {
+      case TType.I32:
+        for (int i = 0; i < size; i++) {
+          values.add(buffer.getInt());
+        }
+        break;
+      case TType.I64:
+        for (int i = 0; i < size; i++) {
+          values.add(buffer.getLong());
+        }
+        break;
+      default:
+        for (int i = 0; i < size; i++) {
+          values.add(buffer.getDouble());
+        }
+    }
+    return values;
+  }
+
+  /**
+   * Little-endian buffer of the values being packed, reused by a protocol
+   */
+  public static final class Packer {
+    private ByteBuffer buffer = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+    public void reset(int size, byte elemType) throws TException {
+      int capacity = size * width(elemType);
+      if (buffer.capacity() < capacity) {
+        buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      buffer.clear();
+    }
+
+    private void ensure(int bytes) {
+      if (buffer.remaining() < bytes) {
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+      }
+    }
+
+    public void putInt(int value) {
+      ensure(4);
+      buffer.putInt(value);
+    }
+
+    public void putLong(long value) {
+      ensure(8);
+      buffer.putLong(value);
+    }
+
+    public void putDouble(double value) {
+      ensure(8);
+      buffer.putDouble(value);
+    }
+
+    public byte[] toArray() {
+      byte[] data = new byte[buffer.position()];
+      System.arraycopy(buffer.array(), 0, data, 0, data.length);
+      return data;
+    }
+  }
+}
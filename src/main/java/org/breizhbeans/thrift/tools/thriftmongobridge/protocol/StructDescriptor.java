@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.meta_data.FieldMetaData;
+import org.apache.thrift.meta_data.FieldValueMetaData;
+import org.apache.thrift.meta_data.ListMetaData;
+import org.apache.thrift.meta_data.SetMetaData;
+import org.apache.thrift.meta_data.StructMetaData;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TType;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrapper;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable description of a generated Thrift struct (fields by id and by name).
+ *
+ * Descriptors are built once per class by reflection and shared by all the threads,
+ * the registry is cleared when the secured wrapper configuration or the storage options (TBSONStorage) change.
+ *
+ * Fields are resolved by id with a dense array indexed by the Thrift field id and by
+ * BSON key with a binary search over the sorted keys (the names, the ids and the aliases
+ * of TBSONStorage). A key lookup can be given the
+ * position of the expected field (the one following the previous field in declaration
+ * order) which is the common case when reading a document written by this library.
+ */
+public final class StructDescriptor {
+
+  private static final ConcurrentHashMap<Class<?>, StructDescriptor> registry = new ConcurrentHashMap<>();
+  // incremented by clear : a descriptor of a previous generation may hold the previous configuration
+  private static final AtomicLong registryGeneration = new AtomicLong();
+
+  // ids spread wider than this are looked up in the map only
+  private static final int MAX_DENSE_IDS = 1024;
+
+  private final Class<? extends TBase> thriftClass;
+  // registry generation read before the load
+  private final long generation;
+  private final Map<Short, ThriftFieldMetadata> fieldsById;
+  private final Map<String, TFieldIdEnum> fieldIdsByName;
+
+  // fields in declaration order (ThriftFieldMetadata.index)
+  private final ThriftFieldMetadata[] fields;
+  // fields by id - minId
+  private final ThriftFieldMetadata[] denseFields;
+  private final int minId;
+  // names and keys sorted for the binary search and the matching fields
+  private final String[] sortedNames;
+  private final ThriftFieldMetadata[] sortedFields;
+
+  private StructDescriptor(Class<? extends TBase> thriftClass, long generation, ThriftFieldMetadata[] fields, Map<String, TFieldIdEnum> fieldIdsByName) {
+    this.thriftClass = thriftClass;
+    this.generation = generation;
+    this.fields = fields;
+    this.fieldIdsByName = Collections.unmodifiableMap(fieldIdsByName);
+
+    Map<Short, ThriftFieldMetadata> fieldsById = new HashMap<>();
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+    for (ThriftFieldMetadata field : fields) {
+      fieldsById.put(field.tfield.id, field);
+      min = Math.min(min, field.tfield.id);
+      max = Math.max(max, field.tfield.id);
+    }
+    this.fieldsById = Collections.unmodifiableMap(fieldsById);
+
+    if (fields.length > 0 && max - min < MAX_DENSE_IDS) {
+      this.minId = min;
+      this.denseFields = new ThriftFieldMetadata[max - min + 1];
+      for (ThriftFieldMetadata field : fields) {
+        denseFields[field.tfield.id - min] = field;
+      }
+    } else {
+      this.minId = 0;
+      this.denseFields = null;
+    }
+
+    // a field is resolved by its key, its name and its id (documents written with other keys)
+    TreeMap<String, ThriftFieldMetadata> byKey = new TreeMap<>();
+    for (ThriftFieldMetadata field : fields) {
+      byKey.put(field.tfield.name, field);
+      byKey.put(Short.toString(field.tfield.id), field);
+      byKey.put(field.key, field);
+    }
+    this.sortedNames = byKey.keySet().toArray(new String[byKey.size()]);
+    this.sortedFields = byKey.values().toArray(new ThriftFieldMetadata[byKey.size()]);
+  }
+
+  public static StructDescriptor get(Class<? extends TBase> tbase) throws TException {
+    while (true) {
+      long current = registryGeneration.get();
+      StructDescriptor descriptor = registry.get(tbase);
+      if (descriptor != null && descriptor.generation == current) {
+        return descriptor;
+      }
+
+      // a descriptor loaded across a clear is never returned : its generation is stale
+      StructDescriptor loaded = load(tbase, current, TBSONUnstackedProtocol.getSecuredWrapper());
+      boolean published = descriptor == null ? registry.putIfAbsent(tbase, loaded) == null : registry.replace(tbase, descriptor, loaded);
+      if (published && registryGeneration.get() == current) {
+        return loaded;
+      }
+    }
+  }
+
+  public static void clear() {
+    registryGeneration.incrementAndGet();
+    registry.clear();
+  }
+
+  private static StructDescriptor load(Class<? extends TBase> tbase, long generation, TBSONSecuredWrapper tbsonSecuredWrapper) throws TException {
+    try {
+      List<ThriftFieldMetadata> fieldsList = new ArrayList<>();
+      Map<String, TFieldIdEnum> fieldIdsByName = new HashMap<>();
+
+      Field metafaField = tbase.getField("metaDataMap");
+      Map<?, FieldMetaData> fields = (Map<?, org.apache.thrift.meta_data.FieldMetaData>) metafaField.get(tbase);
+      // list all fields, the metaDataMap is keyed by the _Fields enum (declaration order)
+      for (Map.Entry<?, FieldMetaData> entry : fields.entrySet()) {
+        TFieldIdEnum field = (TFieldIdEnum) entry.getKey();
+
+        ThriftFieldMetadata tfieldMetadata = new ThriftFieldMetadata();
+
+        // An enum type is deserialized as an I32
+        byte type = entry.getValue().valueMetaData.type;
+        if (TType.ENUM == type) {
+          type = TType.I32;
+        }
+
+        tfieldMetadata.tfield = new TField(field.getFieldName(), type, field.getThriftFieldId());
+        tfieldMetadata.fieldMetaData = entry.getValue();
+        tfieldMetadata.tbaseClass = tbase;
+        tfieldMetadata.securedFieldMetaData = tbsonSecuredWrapper.getField(tbase, field.getThriftFieldId());
+        tfieldMetadata.index = fieldsList.size();
+        tfieldMetadata.packed = TBSONStorage.isPacked(tbase, field.getThriftFieldId());
+        tfieldMetadata.key = TBSONStorage.getKey(tbase, field);
+
+        fieldsList.add(tfieldMetadata);
+        fieldIdsByName.put(field.getFieldName(), field);
+        fieldIdsByName.put(Short.toString(field.getThriftFieldId()), field);
+        fieldIdsByName.put(tfieldMetadata.key, field);
+      }
+
+      return new StructDescriptor(tbase, generation, fieldsList.toArray(new ThriftFieldMetadata[fieldsList.size()]), fieldIdsByName);
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+
+  public Class<? extends TBase> getThriftClass() {
+    return thriftClass;
+  }
+
+  public Map<Short, ThriftFieldMetadata> getFields() {
+    return fieldsById;
+  }
+
+  public int size() {
+    return fields.length;
+  }
+
+  /**
+   * @param index position in declaration order
+   */
+  public ThriftFieldMetadata getFieldAt(int index) {
+    return fields[index];
+  }
+
+  public ThriftFieldMetadata getField(short id) {
+    if (denseFields == null) {
+      return fieldsById.get(id);
+    }
+    int index = id - minId;
+    if (index < 0 || index >= denseFields.length) {
+      return null;
+    }
+    return denseFields[index];
+  }
+
+  public ThriftFieldMetadata getField(String fieldName) {
+    int index = Arrays.binarySearch(sortedNames, fieldName);
+    return index < 0 ? null : sortedFields[index];
+  }
+
+  /**
+   * Field by BSON key (or name), checking first the field at the expected position
+   * @param fieldName BSON key
+   * @param expectedIndex expected position in declaration order (may be out of range)
+   */
+  public ThriftFieldMetadata getField(String fieldName, int expectedIndex) {
+    if (expectedIndex >= 0 && expectedIndex < fields.length) {
+      ThriftFieldMetadata expected = fields[expectedIndex];
+      if (expected.key.equals(fieldName)) {
+        return expected;
+      }
+    }
+    return getField(fieldName);
+  }
+
+  /**
+   * @param fieldName field name or BSON key
+   */
+  public TFieldIdEnum getFieldId(String fieldName) {
+    return fieldIdsByName.get(fieldName);
+  }
+
+  /**
+   * @return the class of a struct value or of the elements of a list/set of structs, null otherwise
+   */
+  public static Class<? extends TBase> getStructClass(FieldValueMetaData valueMetaData) {
+    switch (valueMetaData.type) {
+      case TType.LIST:
+        valueMetaData = ((ListMetaData) valueMetaData).elemMetaData;
+        break;
+      case TType.SET:
+        valueMetaData = ((SetMetaData) valueMetaData).elemMetaData;
+        break;
+    }
+    if (valueMetaData.type == TType.STRUCT) {
+      return ((StructMetaData) valueMetaData).structClass;
+    }
+    return null;
+  }
+}
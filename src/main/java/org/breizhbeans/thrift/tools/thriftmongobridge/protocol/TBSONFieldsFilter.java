@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Fields read by a partial deserialization, compiled from field paths.
+ *
+ * Each struct on a path gets a node holding a bitset of its skipped fields (by position in
+ * declaration order) and the nodes of its nested structs. A skipped field is never pushed
+ * on the protocol stack, a field without node is read entirely.
+ *
+ * An inclusion filter reads only the fields on the paths, an exclusion filter reads all the
+ * fields except the last field of each path.
+ * A path goes through structs, lists and sets of structs : "messages.subject".
+ *
+ * A filter is immutable and can be shared between threads.
+ */
+public final class TBSONFieldsFilter {
+
+  /**
+   * Filter of a struct
+   */
+  public static final class Node {
+    private final boolean inclusion;
+    // fields not read
+    private final BitSet skipped;
+    // fields read entirely (inclusion)
+    private final BitSet full;
+    private final Node[] children;
+
+    private Node(StructDescriptor descriptor, boolean inclusion) {
+      this.inclusion = inclusion;
+      this.skipped = new BitSet(descriptor.size());
+      this.full = new BitSet(descriptor.size());
+      this.children = new Node[descriptor.size()];
+      if (inclusion) {
+        skipped.set(0, descriptor.size());
+      }
+    }
+
+    /**
+     * @param index field position in declaration order (ThriftFieldMetadata.index)
+     */
+    public boolean isSkipped(int index) {
+      return skipped.get(index);
+    }
+
+    /**
+     * @param index field position in declaration order (ThriftFieldMetadata.index)
+     * @return the filter of the nested struct, null when the field is read entirely
+     */
+    public Node getChild(int index) {
+      return children[index];
+    }
+
+    private void add(ThriftFieldMetadata[] path, int depth) throws TException {
+      int index = path[depth].index;
+
+      if (depth == path.length - 1) {
+        skipped.set(index, !inclusion);
+        full.set(index);
+        children[index] = null;
+        return;
+      }
+
+      // the field is already read entirely or skipped
+      if (full.get(index)) {
+        return;
+      }
+      if (inclusion) {
+        skipped.clear(index);
+      }
+
+      Node child = children[index];
+      if (child == null) {
+        child = new Node(StructDescriptor.get(path[depth + 1].tbaseClass), inclusion);
+        children[index] = child;
+      }
+      child.add(path, depth + 1);
+    }
+  }
+
+  private final Class<? extends TBase> thriftClass;
+  private final boolean inclusion;
+  private final Node root;
+
+  private TBSONFieldsFilter(Class<? extends TBase> thriftClass, boolean inclusion) throws TException {
+    this.thriftClass = thriftClass;
+    this.inclusion = inclusion;
+    this.root = new Node(StructDescriptor.get(thriftClass), inclusion);
+  }
+
+  /**
+   * Reads all the fields except the given ones (TBSONDeserializer.partialDeserialize)
+   */
+  public static TBSONFieldsFilter exclude(Class<? extends TBase> thriftClass, TFieldIdEnum... fieldIds) throws TException {
+    TBSONFieldsFilter filter = new TBSONFieldsFilter(thriftClass, false);
+    for (TFieldIdEnum fieldId : fieldIds) {
+      filter.add(new TFieldIdEnum[]{fieldId});
+    }
+    return filter;
+  }
+
+  /**
+   * Reads only the given fields
+   */
+  public static TBSONFieldsFilter include(Class<? extends TBase> thriftClass, TFieldIdEnum... fieldIds) throws TException {
+    TBSONFieldsFilter filter = new TBSONFieldsFilter(thriftClass, true);
+    for (TFieldIdEnum fieldId : fieldIds) {
+      filter.add(new TFieldIdEnum[]{fieldId});
+    }
+    return filter;
+  }
+
+  /**
+   * Reads all the fields except the given paths
+   * @param paths dotted field names from the thrift class, ex: "messages.subject"
+   */
+  public static TBSONFieldsFilter excludePaths(Class<? extends TBase> thriftClass, String... paths) throws TException {
+    TBSONFieldsFilter filter = new TBSONFieldsFilter(thriftClass, false);
+    for (String path : paths) {
+      filter.add(path);
+    }
+    return filter;
+  }
+
+  /**
+   * Reads only the given paths
+   * @param paths dotted field names from the thrift class, ex: "messages.subject"
+   */
+  public static TBSONFieldsFilter includePaths(Class<? extends TBase> thriftClass, String... paths) throws TException {
+    TBSONFieldsFilter filter = new TBSONFieldsFilter(thriftClass, true);
+    for (String path : paths) {
+      filter.add(path);
+    }
+    return filter;
+  }
+
+  /**
+   * @param paths fields from the thrift class down to the nested fields
+   */
+  public static TBSONFieldsFilter compile(Class<? extends TBase> thriftClass, boolean inclusion, List<TFieldIdEnum[]> paths) throws TException {
+    TBSONFieldsFilter filter = new TBSONFieldsFilter(thriftClass, inclusion);
+    for (TFieldIdEnum[] path : paths) {
+      filter.add(path);
+    }
+    return filter;
+  }
+
+  public Class<? extends TBase> getThriftClass() {
+    return thriftClass;
+  }
+
+  public boolean isInclusion() {
+    return inclusion;
+  }
+
+  public Node getRoot() {
+    return root;
+  }
+
+  private void add(TFieldIdEnum[] path) throws TException {
+    ThriftFieldMetadata[] fields = new ThriftFieldMetadata[path.length];
+    Class<? extends TBase> structClass = thriftClass;
+    for (int i = 0; i < path.length; i++) {
+      ThriftFieldMetadata field = StructDescriptor.get(structClass).getField(path[i].getThriftFieldId());
+      if (field == null || !field.tfield.name.equals(path[i].getFieldName())) {
+        throw new TException("Unknown field " + path[i].getFieldName() + " in " + structClass.getName() + " - PATH:" + Arrays.toString(path));
+      }
+      fields[i] = field;
+      structClass = nextStructClass(fields, i, Arrays.toString(path));
+    }
+    root.add(fields, 0);
+  }
+
+  private void add(String path) throws TException {
+    String[] names = path.split("\\.");
+    ThriftFieldMetadata[] fields = new ThriftFieldMetadata[names.length];
+    Class<? extends TBase> structClass = thriftClass;
+    for (int i = 0; i < names.length; i++) {
+      ThriftFieldMetadata field = StructDescriptor.get(structClass).getField(names[i]);
+      if (field == null) {
+        throw new TException("Unknown field " + names[i] + " in " + structClass.getName() + " - PATH:" + path);
+      }
+      fields[i] = field;
+      structClass = nextStructClass(fields, i, path);
+    }
+    root.add(fields, 0);
+  }
+
+  // struct holding the next field of the path
+  private static Class<? extends TBase> nextStructClass(ThriftFieldMetadata[] fields, int i, String path) throws TException {
+    if (i == fields.length - 1) {
+      return null;
+    }
+    Class<? extends TBase> structClass = StructDescriptor.getStructClass(fields[i].fieldMetaData.valueMetaData);
+    if (structClass == null) {
+      throw new TException("Field " + fields[i].tfield.name + " of " + fields[i].tbaseClass.getName() + " is not a struct - PATH:" + path);
+    }
+    return structClass;
+  }
+}
@@ -0,0 +1,655 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.meta_data.*;
+import org.apache.thrift.protocol.*;
+import org.apache.thrift.transport.TTransport;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredBuffers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read only protocol driving TBase.read from a BsonBinaryReader in a single forward pass.
+ *
+ * Reads the documents produced by the TBSONUnstackedProtocol and the TBSONWriterProtocol
+ * without materializing a DBObject.
+ *
+ * An instance holds its own state : use one instance per thread.
+ */
+public class TBSONReaderProtocol extends TProtocol {
+
+  private static final byte STRUCT_FRAME = 0;
+  private static final byte LIST_FRAME = 1;
+  private static final byte MAP_FRAME = 2;
+
+  private static final TStruct ANONYMOUS_STRUCT = new TStruct();
+  private static final TField STOP_TFIELD = new TField("STOP FIELD", TType.STOP, (short) 0);
+
+  // A struct or a container being read
+  private static class Frame {
+    byte kind;
+    Class<? extends TBase> thriftClass;
+    StructDescriptor descriptor;
+    // current field of a struct
+    ThriftFieldMetadata field;
+    // position of the field expected next
+    int nextFieldIndex;
+    // reading the securedwrap sub document of a struct
+    boolean inSecuredWrap;
+    // list/set element or map key and value
+    FieldValueMetaData elemMetaData;
+    FieldValueMetaData keyMetaData;
+    // the next map read is a key
+    boolean expectKey;
+    // the map values are secured
+    boolean secured;
+    // partial deserialization of the struct (or of the list elements)
+    TBSONFieldsFilter.Node filter;
+    // values of a packed list
+    ByteBuffer packed;
+  }
+
+  private Frame[] frames = new Frame[8];
+  private int depth = 0;
+
+  private BsonBinaryReader reader;
+  private TBase<?, ?> base;
+
+  // scratch buffers of the secured fields, created on the first secured field
+  private SecuredBuffers securedBuffers;
+
+  // Fields filter
+  private TBSONFieldsFilter fieldsFilter;
+
+  /**
+   * Factory
+   */
+  public static class Factory implements TProtocolFactory {
+    public TProtocol getProtocol(TTransport trans) {
+      return new TBSONReaderProtocol();
+    }
+  }
+
+  public TBSONReaderProtocol() {
+    super(null);
+  }
+
+  public void setBsonReader(BsonBinaryReader reader) {
+    this.reader = reader;
+  }
+
+  public void setBaseObject(TBase<?, ?> base) {
+    this.base = base;
+    this.depth = 0;
+  }
+
+  public void setFieldIdsFilter(TBase<?, ?> base, TFieldIdEnum[] fieldIds) throws TException {
+    this.fieldsFilter = TBSONFieldsFilter.exclude(base.getClass(), fieldIds);
+  }
+
+  public void setFieldsFilter(TBSONFieldsFilter fieldsFilter) {
+    this.fieldsFilter = fieldsFilter;
+  }
+
+  public void reset() {
+    this.depth = 0;
+    this.reader = null;
+    this.base = null;
+    this.fieldsFilter = null;
+  }
+
+  private Frame pushFrame(byte kind) {
+    if (depth == frames.length) {
+      Frame[] newFrames = new Frame[depth * 2];
+      System.arraycopy(frames, 0, newFrames, 0, depth);
+      frames = newFrames;
+    }
+    Frame frame = frames[depth];
+    if (frame == null) {
+      frame = new Frame();
+      frames[depth] = frame;
+    }
+    depth++;
+
+    frame.kind = kind;
+    frame.thriftClass = null;
+    frame.descriptor = null;
+    frame.nextFieldIndex = 0;
+    frame.field = null;
+    frame.inSecuredWrap = false;
+    frame.elemMetaData = null;
+    frame.keyMetaData = null;
+    frame.expectKey = false;
+    frame.secured = false;
+    frame.filter = null;
+    frame.packed = null;
+    return frame;
+  }
+
+  private SecuredBuffers getSecuredBuffers() {
+    if (securedBuffers == null) {
+      securedBuffers = new SecuredBuffers();
+    }
+    return securedBuffers;
+  }
+
+  private Frame peekFrame() {
+    return frames[depth - 1];
+  }
+
+  // metadata of the next value read in the current frame
+  private FieldValueMetaData currentValueMetaData() {
+    Frame frame = peekFrame();
+    switch (frame.kind) {
+      case STRUCT_FRAME:
+        return frame.field.fieldMetaData.valueMetaData;
+      default:
+        return frame.elemMetaData;
+    }
+  }
+
+  private boolean isMapKey() {
+    Frame frame = peekFrame();
+    return frame.kind == MAP_FRAME && frame.expectKey;
+  }
+
+  // position the reader on the next value of the current frame
+  private void beginValue() {
+    if (depth == 0) {
+      return;
+    }
+    Frame frame = peekFrame();
+    switch (frame.kind) {
+      case LIST_FRAME:
+        // array element : type + index
+        reader.readBsonType();
+        break;
+      case MAP_FRAME:
+        // the key name is already read
+        frame.expectKey = true;
+        break;
+    }
+  }
+
+  private String readMapKey() {
+    reader.readBsonType();
+    peekFrame().expectKey = false;
+    return reader.readName();
+  }
+
+  // filter of the struct or the collection read from the current frame
+  private TBSONFieldsFilter.Node childFilter() {
+    if (depth == 0) {
+      return fieldsFilter == null ? null : fieldsFilter.getRoot();
+    }
+    Frame frame = peekFrame();
+    switch (frame.kind) {
+      case STRUCT_FRAME:
+        return frame.filter == null ? null : frame.filter.getChild(frame.field.index);
+      case LIST_FRAME:
+        return frame.filter;
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public TMessage readMessageBegin() throws TException {
+    return null;
+  }
+
+  @Override
+  public void readMessageEnd() throws TException {
+
+  }
+
+  @Override
+  public TStruct readStructBegin() throws TException {
+    Class<? extends TBase> thriftClass;
+    TBSONFieldsFilter.Node filter = childFilter();
+
+    if (depth == 0) {
+      thriftClass = base.getClass();
+    } else {
+      thriftClass = ((StructMetaData) currentValueMetaData()).structClass;
+      beginValue();
+    }
+
+    reader.readStartDocument();
+
+    Frame frame = pushFrame(STRUCT_FRAME);
+    frame.thriftClass = thriftClass;
+    frame.descriptor = StructDescriptor.get(thriftClass);
+    frame.filter = filter;
+    return ANONYMOUS_STRUCT;
+  }
+
+  @Override
+  public void readStructEnd() throws TException {
+    reader.readEndDocument();
+    depth--;
+  }
+
+  @Override
+  public TField readFieldBegin() throws TException {
+    Frame frame = peekFrame();
+
+    while (true) {
+      BsonType bsonType = reader.readBsonType();
+
+      if (bsonType == BsonType.END_OF_DOCUMENT) {
+        if (frame.inSecuredWrap) {
+          // back to the struct document
+          reader.readEndDocument();
+          frame.inSecuredWrap = false;
+          continue;
+        }
+        return STOP_TFIELD;
+      }
+
+      String name = reader.readName();
+      ThriftFieldMetadata thriftFieldMetadata;
+
+      if (frame.inSecuredWrap) {
+        // secured fields are keyed by id
+        thriftFieldMetadata = frame.descriptor.getField(Short.parseShort(name));
+        if (thriftFieldMetadata == null || !thriftFieldMetadata.securedFieldMetaData.isSecured()) {
+          reader.skipValue();
+          continue;
+        }
+      } else {
+        if ("securedwrap".equals(name) && bsonType == BsonType.DOCUMENT) {
+          reader.readStartDocument();
+          frame.inSecuredWrap = true;
+          continue;
+        }
+
+        thriftFieldMetadata = frame.descriptor.getField(name, frame.nextFieldIndex);
+
+        // unknown fields (_id...) and hash of the secured fields
+        if (thriftFieldMetadata == null || thriftFieldMetadata.securedFieldMetaData.isSecured()) {
+          reader.skipValue();
+          continue;
+        }
+      }
+
+      // partial deserialize : the skipped subtrees are not read
+      if (frame.filter != null && frame.filter.isSkipped(thriftFieldMetadata.index)) {
+        reader.skipValue();
+        continue;
+      }
+
+      frame.field = thriftFieldMetadata;
+      frame.nextFieldIndex = thriftFieldMetadata.index + 1;
+      return thriftFieldMetadata.tfield;
+    }
+  }
+
+  @Override
+  public void readFieldEnd() throws TException {
+    peekFrame().field = null;
+  }
+
+  @Override
+  public TMap readMapBegin() throws TException {
+    MapMetaData mapMetaData = (MapMetaData) currentValueMetaData();
+    Frame parent = peekFrame();
+    boolean secured = parent.kind == STRUCT_FRAME && parent.inSecuredWrap;
+
+    beginValue();
+    int size = countDocumentEntries();
+    reader.readStartDocument();
+
+    Frame frame = pushFrame(MAP_FRAME);
+    frame.keyMetaData = mapMetaData.keyMetaData;
+    frame.elemMetaData = mapMetaData.valueMetaData;
+    frame.expectKey = true;
+    frame.secured = secured;
+
+    return new TMap(getTType(mapMetaData.keyMetaData), getTType(mapMetaData.valueMetaData), size);
+  }
+
+  @Override
+  public void readMapEnd() throws TException {
+    reader.readEndDocument();
+    depth--;
+  }
+
+  @Override
+  public TList readListBegin() throws TException {
+    ListMetaData listMetaData = (ListMetaData) currentValueMetaData();
+    return new TList(getTType(listMetaData.elemMetaData), readCollectionBegin(listMetaData.elemMetaData));
+  }
+
+  @Override
+  public void readListEnd() throws TException {
+    if (peekFrame().packed == null) {
+      reader.readEndArray();
+    }
+    depth--;
+  }
+
+  @Override
+  public TSet readSetBegin() throws TException {
+    SetMetaData setMetaData = (SetMetaData) currentValueMetaData();
+    return new TSet(getTType(setMetaData.elemMetaData), readCollectionBegin(setMetaData.elemMetaData));
+  }
+
+  @Override
+  public void readSetEnd() throws TException {
+    reader.readEndArray();
+    depth--;
+  }
+
+  private int readCollectionBegin(FieldValueMetaData elemMetaData) throws TException {
+    TBSONFieldsFilter.Node filter = elemMetaData.isStruct() ? childFilter() : null;
+    beginValue();
+
+    // a packed list is decoded from the binary, whatever the current storage options
+    if (reader.getCurrentBsonType() == BsonType.BINARY && reader.peekBinarySubType() == PackedLists.SUBTYPE) {
+      byte[] data = reader.readBinaryData().getData();
+      Frame frame = pushFrame(LIST_FRAME);
+      frame.elemMetaData = elemMetaData;
+      frame.packed = PackedLists.wrap(data, elemMetaData.type);
+      return data.length / PackedLists.width(elemMetaData.type);
+    }
+
+    int size = countArrayElements();
+    reader.readStartArray();
+
+    Frame frame = pushFrame(LIST_FRAME);
+    frame.elemMetaData = elemMetaData;
+    frame.filter = filter;
+    return size;
+  }
+
+  // Thrift needs the container size before reading it
+  private int countArrayElements() {
+    int size = 0;
+    reader.mark();
+    reader.readStartArray();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      reader.skipValue();
+      size++;
+    }
+    reader.reset();
+    return size;
+  }
+
+  private int countDocumentEntries() {
+    int size = 0;
+    reader.mark();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      reader.skipName();
+      reader.skipValue();
+      size++;
+    }
+    reader.reset();
+    return size;
+  }
+
+  private static byte getTType(FieldValueMetaData fieldValueMetaData) {
+    // An enum type is deserialized as an I32
+    return fieldValueMetaData.type == TType.ENUM ? TType.I32 : fieldValueMetaData.type;
+  }
+
+  @Override
+  public boolean readBool() throws TException {
+    if (isMapKey()) {
+      String key = readMapKey();
+      return "1".equals(key) || Boolean.parseBoolean(key);
+    }
+    beginValue();
+    if (reader.getCurrentBsonType() == BsonType.BOOLEAN) {
+      return reader.readBoolean();
+    }
+    return readLongValue() == 1;
+  }
+
+  @Override
+  public byte readByte() throws TException {
+    if (isMapKey()) {
+      return Byte.parseByte(readMapKey());
+    }
+    beginValue();
+    return (byte) readLongValue();
+  }
+
+  @Override
+  public short readI16() throws TException {
+    if (isMapKey()) {
+      return (short) Integer.parseInt(readMapKey());
+    }
+    beginValue();
+    return (short) readLongValue();
+  }
+
+  @Override
+  public int readI32() throws TException {
+    ByteBuffer packed = peekFrame().packed;
+    if (packed != null) {
+      return packed.getInt();
+    }
+    if (isMapKey()) {
+      return Integer.parseInt(readMapKey());
+    }
+    beginValue();
+    return (int) readLongValue();
+  }
+
+  @Override
+  public long readI64() throws TException {
+    ByteBuffer packed = peekFrame().packed;
+    if (packed != null) {
+      return packed.getLong();
+    }
+    if (isMapKey()) {
+      return Long.parseLong(readMapKey());
+    }
+    beginValue();
+    return readLongValue();
+  }
+
+  @Override
+  public double readDouble() throws TException {
+    ByteBuffer packed = peekFrame().packed;
+    if (packed != null) {
+      return packed.getDouble();
+    }
+    if (isMapKey()) {
+      return Double.parseDouble(readMapKey());
+    }
+    beginValue();
+    switch (reader.getCurrentBsonType()) {
+      case INT32:
+        return reader.readInt32();
+      case INT64:
+        return reader.readInt64();
+      default:
+        return reader.readDouble();
+    }
+  }
+
+  private long readLongValue() throws TException {
+    switch (reader.getCurrentBsonType()) {
+      case INT32:
+        return reader.readInt32();
+      case INT64:
+        return reader.readInt64();
+      case DOUBLE:
+        return (long) reader.readDouble();
+      case BOOLEAN:
+        return reader.readBoolean() ? 1 : 0;
+      default:
+        throw new TException("Unexpected BSON type " + reader.getCurrentBsonType() + " for a number");
+    }
+  }
+
+  @Override
+  public String readString() throws TException {
+    if (isMapKey()) {
+      return readMapKey();
+    }
+
+    Frame frame = peekFrame();
+    beginValue();
+
+    if (reader.getCurrentBsonType() == BsonType.NULL) {
+      reader.readNull();
+      return null;
+    }
+
+    // a secured field or a secured map value (hexadecimal string or binary)
+    if ((frame.kind == STRUCT_FRAME && frame.inSecuredWrap) || (frame.kind == MAP_FRAME && frame.secured)) {
+      Object storedValue;
+      if (reader.getCurrentBsonType() == BsonType.BINARY) {
+        storedValue = reader.readBinaryData().getData();
+      } else {
+        storedValue = reader.readString();
+      }
+      String value = TBSONUnstackedProtocol.getSecuredWrapper().decipherString(storedValue, getSecuredBuffers());
+      if (frame.kind == MAP_FRAME && value == null) {
+        return "";
+      }
+      return value;
+    }
+    return reader.readString();
+  }
+
+  @Override
+  public ByteBuffer readBinary() throws TException {
+    if (isMapKey()) {
+      return ByteBuffer.wrap(readMapKey().getBytes());
+    }
+    beginValue();
+    return ByteBuffer.wrap(reader.readBinaryData().getData());
+  }
+
+  @Override
+  public void writeMessageBegin(TMessage tMessage) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeMessageEnd() throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeStructBegin(TStruct tStruct) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeStructEnd() throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeFieldBegin(TField tField) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeFieldEnd() throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeFieldStop() throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeMapBegin(TMap tMap) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeMapEnd() throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeListBegin(TList tList) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeListEnd() throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeSetBegin(TSet tSet) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeSetEnd() throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeBool(boolean b) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeByte(byte b) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeI16(short i) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeI32(int i) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeI64(long l) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeDouble(double v) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeString(String s) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+
+  @Override
+  public void writeBinary(ByteBuffer byteBuffer) throws TException {
+    throw new TException("TBSONReaderProtocol is read only");
+  }
+}
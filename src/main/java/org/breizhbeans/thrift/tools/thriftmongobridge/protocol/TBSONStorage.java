@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.meta_data.FieldMetaData;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredCache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage options of the Thrift fields, shared by all the serializers.
+ *
+ * A packed field (list of i32, i64 or double) is stored as a single BSON binary (PackedLists).
+ * The readers accept both the packed and the array layouts : a field can be packed on an existing collection.
+ *
+ * The fields of a class with compact keys are stored under their Thrift field id ("1", "2"...) instead of
+ * their name, a field alias (short name) takes precedence over both. The readers always resolve the names and
+ * the ids, and the aliases currently configured : the documents written before the keys change stay readable.
+ */
+public final class TBSONStorage {
+
+  // the ids keys are reserved to the compact mode
+  private static final Pattern ID_KEY = Pattern.compile("-?[0-9]+");
+
+  private static final ConcurrentHashMap<Class<?>, Set<Short>> packedFields = new ConcurrentHashMap<>();
+  private static final Set<Class<?>> compactClasses = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+  private static final ConcurrentHashMap<Class<?>, Map<Short, String>> fieldAliases = new ConcurrentHashMap<>();
+
+  private TBSONStorage() {
+  }
+
+  public static void packFields(Class<? extends TBase> tbase, TFieldIdEnum... fields) throws TException {
+    Map<? extends TFieldIdEnum, FieldMetaData> metaDataMap = FieldMetaData.getStructMetaDataMap(tbase);
+    Set<Short> classPackedFields = packedFields.get(tbase);
+    if (classPackedFields == null) {
+      classPackedFields = Collections.newSetFromMap(new ConcurrentHashMap<Short, Boolean>());
+    }
+
+    for (TFieldIdEnum field : fields) {
+      FieldMetaData fieldMetaData = metaDataMap.get(field);
+      if (fieldMetaData == null || !PackedLists.isPackable(fieldMetaData.valueMetaData)) {
+        throw new TException("Unsupported packed type - FIELD:" + field.getFieldName());
+      }
+      classPackedFields.add(field.getThriftFieldId());
+    }
+
+    packedFields.put(tbase, classPackedFields);
+    changed();
+  }
+
+  public static void unpackFields(Class<? extends TBase> tbase, TFieldIdEnum... fields) {
+    Set<Short> classPackedFields = packedFields.get(tbase);
+    if (classPackedFields != null) {
+      for (TFieldIdEnum field : fields) {
+        classPackedFields.remove(field.getThriftFieldId());
+      }
+    }
+    changed();
+  }
+
+  public static boolean isPacked(Class<? extends TBase> tbase, short id) {
+    Set<Short> classPackedFields = packedFields.get(tbase);
+    return classPackedFields != null && classPackedFields.contains(id);
+  }
+
+  /**
+   * The fields of the class are keyed by their Thrift field id
+   */
+  public static void compactKeys(Class<? extends TBase> tbase) {
+    compactClasses.add(tbase);
+    changed();
+  }
+
+  /**
+   * The field is keyed by the alias
+   * @param alias short BSON key, unique in the class (neither a field name nor a number)
+   */
+  public static void aliasField(Class<? extends TBase> tbase, TFieldIdEnum field, String alias) throws TException {
+    Map<? extends TFieldIdEnum, FieldMetaData> metaDataMap = FieldMetaData.getStructMetaDataMap(tbase);
+    if (!metaDataMap.containsKey(field)) {
+      throw new TException("Unknown field " + field.getFieldName() + " in " + tbase.getName());
+    }
+    if (alias == null || alias.isEmpty() || alias.startsWith("$") || alias.indexOf('.') >= 0 || alias.indexOf('\0') >= 0
+        || ID_KEY.matcher(alias).matches() || "_id".equals(alias) || "securedwrap".equals(alias)) {
+      throw new TException("Invalid field alias " + alias + " - FIELD:" + field.getFieldName());
+    }
+
+    Map<Short, String> classAliases = fieldAliases.get(tbase);
+    if (classAliases == null) {
+      classAliases = new ConcurrentHashMap<>();
+    }
+    for (TFieldIdEnum other : metaDataMap.keySet()) {
+      if (other.getThriftFieldId() != field.getThriftFieldId()
+          && (alias.equals(other.getFieldName()) || alias.equals(classAliases.get(other.getThriftFieldId())))) {
+        throw new TException("Duplicate field alias " + alias + " - FIELD:" + field.getFieldName());
+      }
+    }
+
+    classAliases.put(field.getThriftFieldId(), alias);
+    fieldAliases.put(tbase, classAliases);
+    changed();
+  }
+
+  /**
+   * The fields of the class are keyed by their name (no compact keys, no alias)
+   */
+  public static void defaultKeys(Class<? extends TBase> tbase) {
+    compactClasses.remove(tbase);
+    fieldAliases.remove(tbase);
+    changed();
+  }
+
+  /**
+   * @return BSON key of the field : its alias, its id (compact keys) or its name
+   */
+  public static String getKey(Class<? extends TBase> tbase, TFieldIdEnum field) {
+    Map<Short, String> classAliases = fieldAliases.get(tbase);
+    if (classAliases != null) {
+      String alias = classAliases.get(field.getThriftFieldId());
+      if (alias != null) {
+        return alias;
+      }
+    }
+    if (compactClasses.contains(tbase)) {
+      return Short.toString(field.getThriftFieldId());
+    }
+    return field.getFieldName();
+  }
+
+  /**
+   * Back to the default storage for all the fields
+   */
+  public static void reset() {
+    packedFields.clear();
+    compactClasses.clear();
+    fieldAliases.clear();
+    changed();
+  }
+
+  private static void changed() {
+    // the cached struct metadata and secured query keys hold the storage options
+    TBSONUnstackedProtocol.resetCache();
+    SecuredCache<?, ?> queryKeysCache = TBSONUnstackedProtocol.getSecuredWrapper().getQueryKeysCache();
+    if (queryKeysCache != null) {
+      queryKeysCache.clear();
+    }
+  }
+}
@@ -21,45 +21,56 @@ package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import org.apache.commons.codec.binary.Hex;
 import org.apache.thrift.TBase;
 import org.apache.thrift.TException;
 import org.apache.thrift.TFieldIdEnum;
 import org.apache.thrift.meta_data.*;
 import org.apache.thrift.protocol.*;
 import org.apache.thrift.transport.TTransport;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredBuffers;
 import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrapper;
+import org.bson.types.Binary;
 
-import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.util.*;
 
 public class TBSONUnstackedProtocol extends TProtocol {
 
-  private static ThreadLocal<Stack<ThriftFieldMetadata>> threadSafeFieldsStack = new ThreadLocal<>();
+  // The protocol state belongs to the instance : a protocol (and its serializer) must not be shared between threads
+
+  // Fields being written
+  private ThriftFieldMetadata[] fieldsStack = new ThriftFieldMetadata[16];
+  private int fieldsDepth = 0;
 
   // Contains the Thrift object + DBObject -> IO because I code it the Google IO's day :D
-  private static ThreadLocal<Stack<ThriftIO>> threadSafeSIOStack = new ThreadLocal<>();
+  // the ThriftIO are recycled between documents
+  private ThriftIO[] ioStack = new ThriftIO[16];
+  private int ioDepth = 0;
 
   // Input/Output DBObject and fields
-  private static ThreadLocal<DBObject> threadSafeDBObject = new ThreadLocal<>();
-  private static ThreadLocal<TBase<?, ?>> threadSafeTBase = new ThreadLocal<>();
+  private DBObject dbObject;
+  private TBase<?, ?> tbase;
 
   // Fields filter
-  private static ThreadLocal<Map<Class<?>,List<Short>>> threadSafeFieldIdsFilter = new ThreadLocal<>();
+  private TBSONFieldsFilter fieldsFilter;
+
+  // scratch buffers of the secured fields, created on the first secured field
+  private SecuredBuffers securedBuffers;
+
+  // values of the packed list being written, created on the first packed field
+  private PackedLists.Packer packer;
 
-  //Cache objects Contains the metadata map the TField id Enums
-  private static ThreadLocal<Map<Class<?>,Map<Short, ThriftFieldMetadata>>> threadSafeTFields = new ThreadLocal<>();
-  private static ThreadLocal<Map<Class<?>,Map<String,org.apache.thrift.TFieldIdEnum>>> threadSafeTFieldsIdEnum  = new ThreadLocal<>();
+  // the struct metadata are shared by all the threads (StructDescriptor)
 
   private static final TStruct ANONYMOUS_STRUCT = new TStruct();
   private static final ThriftFieldMetadata STOP_THRIFT_FIELD_METADATA = new ThriftFieldMetadata("STOP FIELD", TType.STOP, (short)0);
 
-  private static TBSONSecuredWrapper tbsonSecuredWrapper = new DefaultUnsecuredWrapper();
+  private static volatile TBSONSecuredWrapper tbsonSecuredWrapper = new DefaultUnsecuredWrapper();
 
   // Secured warpper
   public static void addSecuredWrapper(TBSONSecuredWrapper tbsonSecuredWrapper) {
     TBSONUnstackedProtocol.tbsonSecuredWrapper = tbsonSecuredWrapper;
+    TBSONUnstackedProtocol.resetCache();
   }
 
   public static void resetSecuredWrapper() {
@@ -73,8 +84,7 @@ public class TBSONUnstackedProtocol extends TProtocol {
   }
 
   public static void resetCache() {
-    threadSafeTFields.remove();
-    threadSafeTFieldsIdEnum.remove();
+    StructDescriptor.clear();
   }
 
   /**
@@ -94,172 +104,83 @@ public class TBSONUnstackedProtocol extends TProtocol {
   }
 
   public DBObject getDBObject() {
-    return threadSafeDBObject.get();
+    return dbObject;
   }
 
 
   public void setDBOject(DBObject dbObject) {
-    threadSafeDBObject.set(dbObject);
+    this.dbObject = dbObject;
   }
 
   public void setBaseObject(TBase<?, ?> base) {
-    threadSafeTBase.set(base);
+    this.tbase = base;
     // clear all remaing stacks
-    threadSafeSIOStack.set(null);
-    threadSafeFieldsStack.set(null);
+    clearStacks();
   }
 
-  public void setFieldIdsFilter(TBase<?, ?> base, TFieldIdEnum[] fieldIds) {
-    base.getClass();
-    List<Short> filteredFields = new ArrayList<>();
-
-    for(TFieldIdEnum tFieldIdEnum : fieldIds){
-      filteredFields.add(tFieldIdEnum.getThriftFieldId());
-    }
-    Map<Class<?>,List<Short>> filter = new HashMap<>();
-    filter.put(base.getClass(), filteredFields);
-    threadSafeFieldIdsFilter.set(filter);
+  public void setFieldIdsFilter(TBase<?, ?> base, TFieldIdEnum[] fieldIds) throws TException {
+    fieldsFilter = TBSONFieldsFilter.exclude(base.getClass(), fieldIds);
   }
 
-  private Map<Short, ThriftFieldMetadata> getTBaseFields(Class<? extends TBase> tbase) throws TException {
-    try {
-      // First read if the ThriftFieldMetadata was not already readed
-      Map<Class<?>,Map<Short, ThriftFieldMetadata>> thriftFields = threadSafeTFields.get();
-
-      if(thriftFields==null){
-        thriftFields = new HashMap<>();
-      }
-
-      Map<Short, ThriftFieldMetadata> thriftStructFields = thriftFields.get(tbase);
-
-      // Finded return it
-      if(thriftStructFields!=null){
-        return thriftStructFields;
-      }
-
-      // Load it
-      thriftStructFields = new HashMap<>();
-      Field metafaField = tbase.getField("metaDataMap");
-      Map<?, FieldMetaData> fields = (Map<?, org.apache.thrift.meta_data.FieldMetaData>) metafaField.get(tbase);
-      // list all fields
-      for (Map.Entry<?, FieldMetaData> entry : fields.entrySet()) {
-        TFieldIdEnum field = (TFieldIdEnum) entry.getKey();
-
-        ThriftFieldMetadata tfieldMetadata = new ThriftFieldMetadata();
-
-        // An enum type is deserialized as an I32
-        byte type = entry.getValue().valueMetaData.type;
-        if (TType.ENUM == type) {
-          type = TType.I32;
-        }
-
-        TBSONSecuredWrapper.ThriftSecuredField securedField=tbsonSecuredWrapper.getField(tbase, field.getThriftFieldId());
-
-        tfieldMetadata.tfield = new TField(field.getFieldName(), type, field.getThriftFieldId());
-        tfieldMetadata.fieldMetaData = entry.getValue();
-        tfieldMetadata.tbaseClass = tbase;
-        tfieldMetadata.securedFieldMetaData=securedField;
-        thriftStructFields.put( field.getThriftFieldId(), tfieldMetadata);
-      }
-
-      //store it
-      thriftFields.put(tbase, thriftStructFields);
-      threadSafeTFields.set(thriftFields);
-      return thriftStructFields;
-    } catch(Exception exp) {
-      throw new TException(exp);
-    }
+  public void setFieldsFilter(TBSONFieldsFilter fieldsFilter) {
+    this.fieldsFilter = fieldsFilter;
   }
 
+  static Map<Short, ThriftFieldMetadata> getTBaseFields(Class<? extends TBase> tbase) throws TException {
+    return StructDescriptor.get(tbase).getFields();
+  }
 
-  public org.apache.thrift.TFieldIdEnum getFieldId(Class<? extends TBase> tbase, String fieldName) throws TException {
-
-    try {
-      Map<Class<?>,Map<String,org.apache.thrift.TFieldIdEnum>> thriftTFields = threadSafeTFieldsIdEnum.get();
-
-      if(thriftTFields==null){
-        thriftTFields = new HashMap<>();
-      }
-
-      Map<String,org.apache.thrift.TFieldIdEnum> tfieldIdEnumByName = thriftTFields.get(tbase);
-
-      // Load it in cache
-      if(tfieldIdEnumByName==null) {
-
-        Class<?>[] innerClasses = tbase.getClasses();
-
-        for (Class<?> innerClass : innerClasses) {
-          if ("_Fields".equals(innerClass.getSimpleName())) {
-            Field fieldsByName = innerClass.getDeclaredField("byName");
-            fieldsByName.setAccessible(true);
-
-            tfieldIdEnumByName = (Map<String, org.apache.thrift.TFieldIdEnum>) fieldsByName.get(fieldsByName);
-
-            // store in the thread local
-            thriftTFields.put(tbase, tfieldIdEnumByName);
-            threadSafeTFieldsIdEnum.set(thriftTFields);
-          }
-        }
-      }
-
-      return  tfieldIdEnumByName.get(fieldName);
-
-    } catch (Exception e) {
-      throw new TException(e);
-    }
+  public static org.apache.thrift.TFieldIdEnum getFieldId(Class<? extends TBase> tbase, String fieldName) throws TException {
+    return StructDescriptor.get(tbase).getFieldId(fieldName);
   }
 
 
   @Override
   public void writeStructBegin(TStruct tStruct) throws TException {
     //System.out.println("writeStructBegin " + tStruct.name);
-    Stack<ThriftIO> structClass=threadSafeSIOStack.get();
-    if(structClass == null) {
-      structClass = new Stack<>();
-
-      Class<? extends TBase> thriftClass = threadSafeTBase.get().getClass();
+    if(ioDepth == 0) {
+      Class<? extends TBase> thriftClass = tbase.getClass();
 
       if (tbsonSecuredWrapper.isSecured(thriftClass)) {
-        structClass.push(new ThriftIO(threadSafeTBase.get().getClass(), new BasicDBObject(), new BasicDBObject()));
+        pushIOStack(thriftClass, new BasicDBObject(), new BasicDBObject(), false, false);
       } else {
-        structClass.push(new ThriftIO(threadSafeTBase.get().getClass(), new BasicDBObject()));
+        pushIOStack(thriftClass, new BasicDBObject(), null, false, false);
       }
 
 
     } else {
       // The last field stack contains a struct field or a map field
-      ThriftFieldMetadata lastField = threadSafeFieldsStack.get().peek();
+      ThriftFieldMetadata lastField = peekWriteField();
 
       switch (lastField.fieldMetaData.valueMetaData.type) {
         case TType.MAP:
           MapMetaData mapMetaData = (MapMetaData) lastField.fieldMetaData.valueMetaData;
           if (mapMetaData.valueMetaData.isStruct()) {
-            structClass.push(new ThriftIO(((StructMetaData) mapMetaData.valueMetaData).structClass, new BasicDBObject()));
+            pushIOStack(((StructMetaData) mapMetaData.valueMetaData).structClass, new BasicDBObject(), null, false, false);
           }
           break;
         case TType.LIST:
           ListMetaData listMetaData = (ListMetaData) lastField.fieldMetaData.valueMetaData;
           if (listMetaData.elemMetaData.isStruct()) {
-            structClass.push(new ThriftIO(((StructMetaData) listMetaData.elemMetaData).structClass, new BasicDBObject()));
+            pushIOStack(((StructMetaData) listMetaData.elemMetaData).structClass, new BasicDBObject(), null, false, false);
           }
           break;
         case TType.SET:
           SetMetaData setMetaData = (SetMetaData) lastField.fieldMetaData.valueMetaData;
           if (setMetaData.elemMetaData.isStruct()) {
-            structClass.push(new ThriftIO(((StructMetaData) setMetaData.elemMetaData).structClass, new BasicDBObject()));
+            pushIOStack(((StructMetaData) setMetaData.elemMetaData).structClass, new BasicDBObject(), null, false, false);
           }
           break;
         case TType.STRUCT:
           Class<? extends TBase> structMetadataClass =  ((StructMetaData) lastField.fieldMetaData.valueMetaData).structClass;
           if (tbsonSecuredWrapper.isSecured(structMetadataClass)) {
-            structClass.push(new ThriftIO(structMetadataClass, new BasicDBObject(), new BasicDBObject()));
+            pushIOStack(structMetadataClass, new BasicDBObject(), new BasicDBObject(), false, false);
           } else {
-            structClass.push(new ThriftIO(structMetadataClass, new BasicDBObject()));
+            pushIOStack(structMetadataClass, new BasicDBObject(), null, false, false);
           }
           break;
       }
     }
-    threadSafeSIOStack.set(structClass);
   }
 
   @Override
@@ -267,20 +188,19 @@ public class TBSONUnstackedProtocol extends TProtocol {
     DBObject outputDbObject = collapseIOStack();
 
     if(outputDbObject!=null){
-      threadSafeDBObject.set(outputDbObject);
+      dbObject = outputDbObject;
     }
   }
 
   private DBObject collapseIOStack() throws TException {
     // Get the DBObject produced
-    Stack<ThriftIO> thriftIOStack = threadSafeSIOStack.get();
-    ThriftIO thriftIO = thriftIOStack.pop();
+    ThriftIO thriftIO = popIOStack();
 
     //System.out.println("Collapse thrift IO : " + thriftIO.toString());
 
     //Collapse
-    if(thriftIOStack.size() > 0) {
-      ThriftIO lastThriftIO = thriftIOStack.peek();
+    if(ioDepth > 0) {
+      ThriftIO lastThriftIO = peekIOStack();
 
       if(lastThriftIO.map) {
         // add {key:value} to the current object and reset the key
@@ -295,7 +215,7 @@ public class TBSONUnstackedProtocol extends TProtocol {
         }
 
         // add {fieldName:value} to the current object
-        String fieldName = peekWriteField().tfield.name;
+        String fieldName = peekWriteField().key;
         lastThriftIO.mongoIO.put(fieldName, thriftIO.mongoIO);
 
       }
@@ -334,75 +254,65 @@ public class TBSONUnstackedProtocol extends TProtocol {
   }
 
   private ThriftFieldMetadata popWriteField() throws TException {
-    Stack<ThriftFieldMetadata> writeStack = threadSafeFieldsStack.get();
-    if(writeStack.size()>0) {
-      return writeStack.pop();
+    if(fieldsDepth>0) {
+      ThriftFieldMetadata thriftFieldMetadata = fieldsStack[--fieldsDepth];
+      fieldsStack[fieldsDepth] = null;
+      return thriftFieldMetadata;
     }
     return null;
   }
 
-  private void pushWriteField(Class<? extends TBase> tbase, String fieldName) throws TException {
-    //get the field ID by name
-    org.apache.thrift.TFieldIdEnum tfieldIdEnum = getFieldId(tbase, fieldName);
-    if(tfieldIdEnum!=null) {
-      //pushWriteField(tfieldIdEnum.getThriftFieldId());
-      Stack<ThriftFieldMetadata> writeStack = threadSafeFieldsStack.get();
-
-      // First push
-      if(writeStack==null) {
-        writeStack = new Stack<>();
-      }
-
-      // Take the tbase class at the top of the stack
-      ThriftFieldMetadata thriftFieldMetadata = getTBaseFields(tbase).get(tfieldIdEnum.getThriftFieldId());
-      writeStack.push(thriftFieldMetadata);
-
-      threadSafeFieldsStack.set(writeStack);
-    }
-  }
-
-  private void pushWriteField(Short id) throws TException {
-    Stack<ThriftFieldMetadata> writeStack = threadSafeFieldsStack.get();
-
-    // First push
-    if(writeStack==null) {
-      writeStack = new Stack<>();
-    }
-
-
+  private void pushWriteField(short id) throws TException {
     ThriftIO thriftIO = peekIOStack();
 
     // Take the tbase class at the top of the stack
-    ThriftFieldMetadata thriftFieldMetadata = getTBaseFields(thriftIO.thriftClass).get(id);
-    writeStack.push(thriftFieldMetadata);
+    ThriftFieldMetadata thriftFieldMetadata = StructDescriptor.get(thriftIO.thriftClass).getField(id);
 
-    threadSafeFieldsStack.set(writeStack);
+    if(fieldsDepth == fieldsStack.length) {
+      fieldsStack = Arrays.copyOf(fieldsStack, fieldsDepth * 2);
+    }
+    fieldsStack[fieldsDepth++] = thriftFieldMetadata;
   }
 
   private ThriftFieldMetadata peekWriteField() throws TException {
-    Stack<ThriftFieldMetadata> writeStack = threadSafeFieldsStack.get();
-
-    if(writeStack.size()>0) {
-      return writeStack.peek();
+    if(fieldsDepth>0) {
+      return fieldsStack[fieldsDepth - 1];
     }else{
       return STOP_THRIFT_FIELD_METADATA;
     }
   }
 
-  private void pushIOStack(ThriftIO thriftIO) throws TException {
-    Stack<ThriftIO> stack = threadSafeSIOStack.get();
-    stack.push(thriftIO);
-    threadSafeSIOStack.set(stack);
+  private ThriftIO pushIOStack(Class<? extends TBase> thriftClass, DBObject dbObject, DBObject securedDBObject, boolean map, boolean list) {
+    if(ioDepth == ioStack.length) {
+      ioStack = Arrays.copyOf(ioStack, ioDepth * 2);
+    }
+    ThriftIO thriftIO = ioStack[ioDepth];
+    if(thriftIO == null) {
+      thriftIO = new ThriftIO();
+      ioStack[ioDepth] = thriftIO;
+    }
+    ioDepth++;
+    thriftIO.init(thriftClass, dbObject, securedDBObject, map, list);
+    return thriftIO;
   }
 
   private ThriftIO peekIOStack() throws TException {
-    Stack<ThriftIO> stack = threadSafeSIOStack.get();
-    return stack.peek();
+    return ioStack[ioDepth - 1];
   }
 
+  // the popped ThriftIO is valid until the next push
   private ThriftIO popIOStack() throws TException {
-    Stack<ThriftIO> stack = threadSafeSIOStack.get();
-    return stack.pop();
+    return ioStack[--ioDepth];
+  }
+
+  private void clearStacks() {
+    // release the documents held by the recycled ThriftIO
+    for(int i = 0; i < ioStack.length && ioStack[i] != null; i++) {
+      ioStack[i].init(null, null, null, false, false);
+    }
+    ioDepth = 0;
+    Arrays.fill(fieldsStack, 0, fieldsDepth, null);
+    fieldsDepth = 0;
   }
 
   @Override
@@ -420,7 +330,7 @@ public class TBSONUnstackedProtocol extends TProtocol {
       securedFieldSecuredObject = new BasicDBObject();
     }
 
-    threadSafeSIOStack.get().push(new ThriftIO(null, new BasicDBObject(), securedFieldSecuredObject, true, false));
+    pushIOStack(null, new BasicDBObject(), securedFieldSecuredObject, true, false);
   }
 
   @Override
@@ -429,15 +339,14 @@ public class TBSONUnstackedProtocol extends TProtocol {
     // Collapse the map into the structure
 
     // Get the DBObject produced (the map)
-    Stack<ThriftIO> thriftIOStack = threadSafeSIOStack.get();
-    ThriftIO mapThriftIO = thriftIOStack.pop();
+    ThriftIO mapThriftIO = popIOStack();
 
     // add {fieldName:value} to the current object
     ThriftFieldMetadata field = peekWriteField();
 
-    ThriftIO documentThriftIO = thriftIOStack.peek();
+    ThriftIO documentThriftIO = peekIOStack();
     // write the document (hash)
-    documentThriftIO.mongoIO.put(field.tfield.name, mapThriftIO.mongoIO);
+    documentThriftIO.mongoIO.put(field.key, mapThriftIO.mongoIO);
     // write the secured (hash)
     if (documentThriftIO.securedMongoIO != null) {
       documentThriftIO.securedMongoIO.put(Short.toString(field.tfield.id), mapThriftIO.securedMongoIO);
@@ -447,13 +356,30 @@ public class TBSONUnstackedProtocol extends TProtocol {
   @Override
   public void writeListBegin(TList tList) throws TException {
     //System.out.println("writeListBegin");
+    ThriftIO currentIO = peekIOStack();
+
+    // packed list field : the values go into the packer
+    if (!currentIO.map && !currentIO.list && peekWriteField().packed) {
+      if (packer == null) {
+        packer = new PackedLists.Packer();
+      }
+      packer.reset(tList.size, tList.elemType);
+      pushIOStack(null, null, null, false, true).packing = true;
+      return;
+    }
+
     // Replace the BasicDbObject by a DBList
-    threadSafeSIOStack.get().push(new ThriftIO(null, new BasicDBList(), null, false, true));
+    pushIOStack(null, new BasicDBList(), null, false, true);
   }
 
   @Override
   public void writeListEnd() throws TException {
     //System.out.println("writeListEnd");
+    if (peekIOStack().packing) {
+      popIOStack();
+      peekIOStack().mongoIO.put(peekWriteField().key, new Binary(PackedLists.SUBTYPE, packer.toArray()));
+      return;
+    }
     // collapse the list
     collapseIOStack();
   }
@@ -462,7 +388,7 @@ public class TBSONUnstackedProtocol extends TProtocol {
   public void writeSetBegin(TSet tSet) throws TException {
     //System.out.println("writeSetBegin");
     // Replace the BasicDbObject by a DBList
-    threadSafeSIOStack.get().push(new ThriftIO(null, new BasicDBList(), null, false, true));
+    pushIOStack(null, new BasicDBList(), null, false, true);
   }
 
   @Override
@@ -477,51 +403,83 @@ public class TBSONUnstackedProtocol extends TProtocol {
     writeByte(b ? (byte) 1 : (byte) 0);
   }
 
+  // one sink per type : the map keys are built from the primitive (MapKeys),
+  // a value is boxed only when it is put into the DBObject
+
   @Override
   public void writeByte(byte b) throws TException {
-    writeNumber((int)b);
+    ThriftIO thriftIO = peekIOStack();
+    if (thriftIO.map && thriftIO.key == null) {
+      thriftIO.key = MapKeys.toKey(b);
+      return;
+    }
+    writeNumber(thriftIO, Integer.valueOf(b));
   }
 
   @Override
   public void writeI16(short i) throws TException {
-    writeNumber(i);
+    ThriftIO thriftIO = peekIOStack();
+    if (thriftIO.map && thriftIO.key == null) {
+      thriftIO.key = MapKeys.toKey(i);
+      return;
+    }
+    writeNumber(thriftIO, Short.valueOf(i));
   }
 
   @Override
   public void writeI32(int i) throws TException {
-    writeNumber(i);
+    ThriftIO thriftIO = peekIOStack();
+    if (thriftIO.packing) {
+      packer.putInt(i);
+      return;
+    }
+    if (thriftIO.map && thriftIO.key == null) {
+      thriftIO.key = MapKeys.toKey(i);
+      return;
+    }
+    writeNumber(thriftIO, Integer.valueOf(i));
   }
 
   @Override
   public void writeI64(long l) throws TException {
-    writeNumber(l);
+    ThriftIO thriftIO = peekIOStack();
+    if (thriftIO.packing) {
+      packer.putLong(l);
+      return;
+    }
+    if (thriftIO.map && thriftIO.key == null) {
+      thriftIO.key = MapKeys.toKey(l);
+      return;
+    }
+    writeNumber(thriftIO, Long.valueOf(l));
   }
 
   @Override
   public void writeDouble(double v) throws TException {
-    writeNumber(v);
+    ThriftIO thriftIO = peekIOStack();
+    if (thriftIO.packing) {
+      packer.putDouble(v);
+      return;
+    }
+    if (thriftIO.map && thriftIO.key == null) {
+      thriftIO.key = Double.toString(v);
+      return;
+    }
+    writeNumber(thriftIO, Double.valueOf(v));
   }
 
-  private void writeNumber(Number v) throws TException {
+  private void writeNumber(ThriftIO thriftIO, Number v) throws TException {
     try {
-      ThriftFieldMetadata thriftFieldMetadata = peekWriteField();
-      String key = thriftFieldMetadata.tfield.name;
-      //System.out.println("write " + key + " " + v);
-
-      ThriftIO thriftIO = threadSafeSIOStack.get().peek();
-
-      //specific map treatment for the map key
-      if(thriftIO.map && thriftIO.key==null){
-        thriftIO.key = v.toString();
-      }else if(thriftIO.map){
+      if(thriftIO.map){
         thriftIO.mongoIO.put(thriftIO.key, v);
         thriftIO.key=null;
       }else if(thriftIO.list){
         ((BasicDBList)thriftIO.mongoIO).add(v);
       }else{
-        thriftIO.mongoIO.put(key, v);
+        thriftIO.mongoIO.put(peekWriteField().key, v);
       }
-
+    } catch (TException e) {
+      throw e;
     } catch (Exception e) {
       throw new TException(e);
     }
@@ -529,28 +487,26 @@ public class TBSONUnstackedProtocol extends TProtocol {
 
 
   private void writeSecuredString( String s, ThriftFieldMetadata thriftFieldMetadata, ThriftIO thriftIO) throws Exception {
-    byte[] butf8 = s.getBytes("UTF-8");
-    Object sutf8 = new String(butf8);
-
-
     // MAP SECURED FIELD
     if (thriftIO.map) {
       // the string is the map key
       //keys are unprotected
       if (thriftIO.key==null) {
-        thriftIO.key = (String) sutf8;
+        thriftIO.key = s;
         return;
       } else {
+        ByteBuffer butf8 = getSecuredBuffers().encode(s);
+
         // the string is the value
         // crypt the value and add it to the secured field
-        String securedField = Hex.encodeHexString(TBSONUnstackedProtocol.tbsonSecuredWrapper.cipher(butf8));
+        Object securedField = TBSONUnstackedProtocol.tbsonSecuredWrapper.cipherValue(butf8, securedBuffers);
         thriftIO.securedMongoIO.put(thriftIO.key, securedField);
 
         //hash if requested
         // the the value value is hashed add the hash in the unsecured document
         if (thriftFieldMetadata.securedFieldMetaData.isHash()){
-          sutf8 = TBSONUnstackedProtocol.tbsonSecuredWrapper.digest64(butf8);
-          thriftIO.mongoIO.put(thriftIO.key, sutf8);
+          Object hash = TBSONUnstackedProtocol.tbsonSecuredWrapper.digestValue(s, butf8);
+          thriftIO.mongoIO.put(thriftIO.key, hash);
           thriftIO.key=null;
         }
       }
@@ -559,15 +515,23 @@ public class TBSONUnstackedProtocol extends TProtocol {
 
     // STRING SECURED FIELD
     // ADD IT TO THE SECURED DOCUMENT
-    String securedField = Hex.encodeHexString(TBSONUnstackedProtocol.tbsonSecuredWrapper.cipher(butf8));
+    ByteBuffer butf8 = getSecuredBuffers().encode(s);
+    Object securedField = TBSONUnstackedProtocol.tbsonSecuredWrapper.cipherValue(butf8, securedBuffers);
     thriftIO.securedMongoIO.put(Short.toString(thriftFieldMetadata.tfield.id), securedField);
 
     if (thriftFieldMetadata.securedFieldMetaData.isHash()){
-      Object butf8Hash = TBSONUnstackedProtocol.tbsonSecuredWrapper.digest64(butf8);
-      thriftIO.mongoIO.put(thriftFieldMetadata.tfield.name, butf8Hash);
+      Object butf8Hash = TBSONUnstackedProtocol.tbsonSecuredWrapper.digestValue(s, butf8);
+      thriftIO.mongoIO.put(thriftFieldMetadata.key, butf8Hash);
     }
   }
 
+  private SecuredBuffers getSecuredBuffers() {
+    if (securedBuffers == null) {
+      securedBuffers = new SecuredBuffers();
+    }
+    return securedBuffers;
+  }
+
   private void writeUnsecuredString( String s, ThriftFieldMetadata thriftFieldMetadata, ThriftIO thriftIO) throws Exception {
     byte[] butf8 = s.getBytes("UTF-8");
     Object sutf8 = new String(butf8);
@@ -593,7 +557,7 @@ public class TBSONUnstackedProtocol extends TProtocol {
     }
 
     // classic string case
-    thriftIO.mongoIO.put(thriftFieldMetadata.tfield.name, sutf8);
+    thriftIO.mongoIO.put(thriftFieldMetadata.key, sutf8);
   }
 
 
@@ -602,7 +566,7 @@ public class TBSONUnstackedProtocol extends TProtocol {
   public void writeString(String s) throws TException {
     try {
       //System.out.println("write " + key + " " + s);
-      ThriftIO thriftIO = threadSafeSIOStack.get().peek();
+      ThriftIO thriftIO = peekIOStack();
       // Its a string field
       ThriftFieldMetadata thriftFieldMetadata = peekWriteField();
 
@@ -621,10 +585,10 @@ public class TBSONUnstackedProtocol extends TProtocol {
     //System.out.println("write " + peekWriteField().tfield.name + byteBuffer);
     try {
       ThriftFieldMetadata thriftFieldMetadata = peekWriteField();
-      String key = thriftFieldMetadata.tfield.name;
+      String key = thriftFieldMetadata.key;
       //System.out.println("write binary " + key );
 
-      ThriftIO thriftIO = threadSafeSIOStack.get().peek();
+      ThriftIO thriftIO = peekIOStack();
 
       byte[] b = byteBuffer.array();
 
@@ -654,50 +618,39 @@ public class TBSONUnstackedProtocol extends TProtocol {
 
   }
 
-  private Stack<ThriftFieldMetadata> getFieldsStack(Class<? extends TBase> tbase, DBObject dbObject)  throws TException {
-    // extract the fields (key from MongoDB)
+  private void pushReadIO(Class<? extends TBase> tbase, DBObject dbObject, TBSONFieldsFilter.Node filter)  throws TException {
+    ThriftIO thriftIO = pushIOStack(tbase, dbObject, null, false, false);
+    thriftIO.filter = filter;
 
-    Stack<ThriftFieldMetadata> writeStack = new Stack<>();
+    // extract the fields (key from MongoDB)
+    StructDescriptor descriptor = StructDescriptor.get(tbase);
 
-    for (Map.Entry<String, Object> pair : ((BasicDBObject) dbObject).entrySet()) {
+    for (String key : dbObject.keySet()) {
       //System.out.println("push field " + mongoKey + " of " + tbase.getSimpleName());
-      TFieldIdEnum tfieldIdEnum = getFieldId(tbase, pair.getKey());
-      if (tfieldIdEnum != null) {
-        ThriftFieldMetadata thriftFieldMetadata = getTBaseFields(tbase).get(tfieldIdEnum.getThriftFieldId());
-        writeStack.push(thriftFieldMetadata);
+      ThriftFieldMetadata thriftFieldMetadata = descriptor.getField(key);
+      // the fields skipped by a partial deserialization are never pushed
+      if (thriftFieldMetadata != null && (filter == null || !filter.isSkipped(thriftFieldMetadata.index))) {
+        thriftIO.pushField(thriftFieldMetadata);
       }
     }
 
     // extract secure fields stack
     if (dbObject.containsField("securedwrap")) {
       for(String id : ((DBObject)dbObject.get("securedwrap")).keySet()) {
-        ThriftFieldMetadata thriftFieldMetadata = getTBaseFields(tbase).get(Short.parseShort(id));
-        if (!thriftFieldMetadata.securedFieldMetaData.isHash()) {
-          writeStack.push(thriftFieldMetadata);
+        ThriftFieldMetadata thriftFieldMetadata = descriptor.getField(Short.parseShort(id));
+        if (!thriftFieldMetadata.securedFieldMetaData.isHash() && (filter == null || !filter.isSkipped(thriftFieldMetadata.index))) {
+          thriftIO.pushField(thriftFieldMetadata);
         }
       }
     }
-
-    return writeStack;
   }
 
   @Override
   public TStruct readStructBegin() throws TException {
-    Stack<ThriftIO> structClass=threadSafeSIOStack.get();
-
     // Init the stack with the TBase deserialisation struct
-    if(structClass == null) {
-      //Initialisation of the IO stack
-      structClass = new Stack<>();
-
-      //System.out.println("readStructBegin " + threadSafeTBase.get().getClass().getSimpleName() );
-
-      // extract the fields (key from MongoDB)
-      Stack<ThriftFieldMetadata> fieldsStack = getFieldsStack(threadSafeTBase.get().getClass(), threadSafeDBObject.get());
-
-      structClass.push(new ThriftIO(threadSafeTBase.get().getClass(), threadSafeDBObject.get(), fieldsStack));
-
-      threadSafeSIOStack.set(structClass);
+    if(ioDepth == 0) {
+      //System.out.println("readStructBegin " + tbase.getClass().getSimpleName() );
+      pushReadIO(tbase.getClass(), dbObject, fieldsFilter == null ? null : fieldsFilter.getRoot());
       return ANONYMOUS_STRUCT;
     }
 
@@ -709,39 +662,31 @@ public class TBSONUnstackedProtocol extends TProtocol {
       // Extract the DBObject
       DBObject dbObject = (DBObject)((BasicDBList)currentIO.mongoIO).get(currentIO.containerIndex);
       currentIO.containerIndex++;
-      Stack<ThriftFieldMetadata> fieldsStack = getFieldsStack(currentIO.thriftClass, dbObject);
-      structClass.push(new ThriftIO(currentIO.thriftClass, dbObject, fieldsStack));
-      threadSafeSIOStack.set(structClass);
+      pushReadIO(currentIO.thriftClass, dbObject, currentIO.filter);
       return ANONYMOUS_STRUCT;
     }
 
     if(currentIO.map && currentIO.thriftClass != null) {
       DBObject dbObject = (DBObject) currentIO.mapEntry.getValue();
       currentIO.mapEntry = null;
-      Stack<ThriftFieldMetadata> fieldsStack = getFieldsStack(currentIO.thriftClass, dbObject);
-      structClass.push(new ThriftIO(currentIO.thriftClass, dbObject, fieldsStack));
-      threadSafeSIOStack.set(structClass);
+      pushReadIO(currentIO.thriftClass, dbObject, null);
       return ANONYMOUS_STRUCT;
     }
 
     // the next field is a struct
     // push it on the stack
-    ThriftFieldMetadata thriftFieldMetadata = currentIO.fieldsStack.peek();
+    ThriftFieldMetadata thriftFieldMetadata = currentIO.peekField();
 
     switch(thriftFieldMetadata.tfield.type){
       case TType.STRUCT:
-        // extract the fields (key from MongoDB)
         // Struct related to the field
         Class<? extends TBase> thriftClass = ((StructMetaData)thriftFieldMetadata.fieldMetaData.valueMetaData).structClass;
         // DbObject related to the field
-        DBObject dbObject = (DBObject)peekIOStack().mongoIO.get(thriftFieldMetadata.tfield.name);
-        // extraction of the fields
-        Stack<ThriftFieldMetadata> fieldsStack = getFieldsStack( thriftClass, dbObject);
-        // push the structure
-        structClass.push(new ThriftIO(thriftClass, dbObject, fieldsStack));
+        DBObject dbObject = (DBObject)getStoredValue(currentIO, thriftFieldMetadata);
+        // push the structure and its fields
+        pushReadIO(thriftClass, dbObject, currentIO.filter == null ? null : currentIO.filter.getChild(thriftFieldMetadata.index));
         break;
     }
-    threadSafeSIOStack.set(structClass);
     return ANONYMOUS_STRUCT;
   }
 
@@ -755,40 +700,25 @@ public class TBSONUnstackedProtocol extends TProtocol {
 
   @Override
   public TField readFieldBegin() throws TException {
-    if( peekIOStack().fieldsStack.size() == 0 ) {
+    ThriftIO thriftIO = peekIOStack();
+    if( thriftIO.fieldsCount() == 0 ) {
       return STOP_THRIFT_FIELD_METADATA.tfield;
     }
 
-    ThriftFieldMetadata currentField = peekIOStack().fieldsStack.peek();
-
-    // partial desarialize
-    // IF the field is skipped change the type to void
-    Map<Class<?>, List<Short>> filter = threadSafeFieldIdsFilter.get();
-
-    if(filter!=null) {
-      List<Short> fieldsFiltered =  filter.get(currentField.tbaseClass);
-      if(fieldsFiltered != null && fieldsFiltered.contains(currentField.tfield.id)) {
-        return new TField(currentField.tfield.name, TType.VOID, currentField.tfield.id);
-      }
-    }
-
-    return currentField.tfield;
+    return thriftIO.peekField().tfield;
   }
 
   @Override
   public void readFieldEnd() throws TException {
-    ThriftFieldMetadata lastField = peekIOStack().fieldsStack.pop();
+    ThriftFieldMetadata lastField = peekIOStack().popField();
     //System.out.println("readFieldEnd " + lastField.tfield.name);
   }
 
   @Override
   public TMap readMapBegin() throws TException {
     //System.out.println("readMapBegin");
-    // Get the IO Stack
-    Stack<ThriftIO> stack = threadSafeSIOStack.get();
-
-    ThriftIO currentIO =stack.peek();
-    ThriftFieldMetadata thriftFieldMetadata = currentIO.fieldsStack.peek();
+    ThriftIO currentIO = peekIOStack();
+    ThriftFieldMetadata thriftFieldMetadata = currentIO.peekField();
 
     // field related to the list
     MapMetaData mapMetaData = (MapMetaData) thriftFieldMetadata.fieldMetaData.valueMetaData;
@@ -799,24 +729,21 @@ public class TBSONUnstackedProtocol extends TProtocol {
     if (thriftFieldMetadata.securedFieldMetaData.isSecured()) {
       // from the mongoIO securedWrap for a secured map
       BasicDBObject securedWrap = (BasicDBObject)currentIO.mongoIO.get("securedwrap");
-      securedDObject = (BasicDBObject) securedWrap.get(Short.toString(currentIO.fieldsStack.peek().tfield.id));
+      securedDObject = (BasicDBObject) securedWrap.get(Short.toString(thriftFieldMetadata.tfield.id));
       dbObject = securedDObject;
     } else {
       // from the mongoIO field for an unsecured map
-      dbObject = (BasicDBObject) currentIO.mongoIO.get(currentIO.fieldsStack.peek().tfield.name);
+      dbObject = (BasicDBObject) getStoredValue(currentIO, thriftFieldMetadata);
     }
 
     ThriftIO thriftListIO = null;
     if (mapMetaData.valueMetaData.isStruct()) {
-      thriftListIO = new ThriftIO(((StructMetaData) mapMetaData.valueMetaData).structClass, dbObject, securedDObject, true, false);
+      thriftListIO = pushIOStack(((StructMetaData) mapMetaData.valueMetaData).structClass, dbObject, securedDObject, true, false);
     } else {
-      thriftListIO = new ThriftIO(null, dbObject, securedDObject, true, false);
+      thriftListIO = pushIOStack(null, dbObject, securedDObject, true, false);
     }
     thriftListIO.mapIterator = dbObject.entrySet().iterator();
 
-    stack.push(thriftListIO);
-    threadSafeSIOStack.set(stack);
-
     return new TMap(TType.STRING, TType.STRING,dbObject.size());
   }
 
@@ -830,28 +757,32 @@ public class TBSONUnstackedProtocol extends TProtocol {
   public TList readListBegin() throws TException {
     //System.out.println("readListBegin");
 
-    // Get the IO Stack
-    Stack<ThriftIO> stack = threadSafeSIOStack.get();
-
-    ThriftIO currentIO =stack.peek();
-    ThriftFieldMetadata thriftFieldMetadata = currentIO.fieldsStack.peek();
+    ThriftIO currentIO = peekIOStack();
+    ThriftFieldMetadata thriftFieldMetadata = currentIO.peekField();
 
     // field related to the list
     ListMetaData listMetaData = (ListMetaData) thriftFieldMetadata.fieldMetaData.valueMetaData;
 
+    Object storedList = getStoredValue(currentIO, thriftFieldMetadata);
+
+    // a packed list is decoded from the binary, whatever the current storage options
+    byte[] packedData = PackedLists.getPackedData(storedList);
+    if (packedData != null) {
+      byte elemType = listMetaData.elemMetaData.type;
+      pushIOStack(null, null, null, false, true).packed = PackedLists.wrap(packedData, elemType);
+      return new TList(elemType, packedData.length / PackedLists.width(elemType));
+    }
+
     // extract the DBList
-    BasicDBList dbList = (BasicDBList) currentIO.mongoIO.get(currentIO.fieldsStack.peek().tfield.name);
+    BasicDBList dbList = (BasicDBList) storedList;
 
-    ThriftIO thriftListIO = null;
     if (listMetaData.elemMetaData.isStruct()) {
-      thriftListIO = new ThriftIO(((StructMetaData) listMetaData.elemMetaData).structClass, dbList, null, false, true);
+      ThriftIO listIO = pushIOStack(((StructMetaData) listMetaData.elemMetaData).structClass, dbList, null, false, true);
+      listIO.filter = currentIO.filter == null ? null : currentIO.filter.getChild(thriftFieldMetadata.index);
     } else {
-      thriftListIO = new ThriftIO(null, dbList, null, false, true);
+      pushIOStack(null, dbList, null, false, true);
     }
 
-    stack.push(thriftListIO);
-    threadSafeSIOStack.set(stack);
-
     return new TList(TType.LIST, dbList.size());
   }
 
@@ -865,28 +796,22 @@ public class TBSONUnstackedProtocol extends TProtocol {
   public TSet readSetBegin() throws TException {
     //System.out.println("readSetBegin");
 
-    // Get the IO Stack
-    Stack<ThriftIO> stack = threadSafeSIOStack.get();
-
-    ThriftIO currentIO =stack.peek();
-    ThriftFieldMetadata thriftFieldMetadata = currentIO.fieldsStack.peek();
+    ThriftIO currentIO = peekIOStack();
+    ThriftFieldMetadata thriftFieldMetadata = currentIO.peekField();
 
     // field related to the list
     SetMetaData setMetaData = (SetMetaData) thriftFieldMetadata.fieldMetaData.valueMetaData;
 
     // extract the DBList
-    BasicDBList dbList = (BasicDBList) currentIO.mongoIO.get(currentIO.fieldsStack.peek().tfield.name);
+    BasicDBList dbList = (BasicDBList) getStoredValue(currentIO, thriftFieldMetadata);
 
-    ThriftIO thriftListIO = null;
     if (setMetaData.elemMetaData.isStruct()) {
-      thriftListIO = new ThriftIO(((StructMetaData) setMetaData.elemMetaData).structClass, dbList, null, false, true);
+      ThriftIO setIO = pushIOStack(((StructMetaData) setMetaData.elemMetaData).structClass, dbList, null, false, true);
+      setIO.filter = currentIO.filter == null ? null : currentIO.filter.getChild(thriftFieldMetadata.index);
     } else {
-      thriftListIO = new ThriftIO(null, dbList, null, false, true);
+      pushIOStack(null, dbList, null, false, true);
     }
 
-    stack.push(thriftListIO);
-    threadSafeSIOStack.set(stack);
-
     return new TSet(TType.SET, dbList.size());
   }
 
@@ -909,14 +834,26 @@ public class TBSONUnstackedProtocol extends TProtocol {
   }
 
   public int readI32() throws TException {
+    ByteBuffer packed = peekIOStack().packed;
+    if (packed != null) {
+      return packed.getInt();
+    }
     return ((Number) getCurrentFieldValue(TType.I32)).intValue();
   }
 
   public long readI64() throws TException {
+    ByteBuffer packed = peekIOStack().packed;
+    if (packed != null) {
+      return packed.getLong();
+    }
     return ((Number) getCurrentFieldValue(TType.I64)).longValue();
   }
 
   public double readDouble() throws TException {
+    ByteBuffer packed = peekIOStack().packed;
+    if (packed != null) {
+      return packed.getDouble();
+    }
     return ((Number) getCurrentFieldValue(TType.DOUBLE)).doubleValue();
   }
 
@@ -932,12 +869,10 @@ public class TBSONUnstackedProtocol extends TProtocol {
   }
 
   public void reset() {
-    // reset thread local
-    threadSafeFieldsStack.remove();
-    threadSafeSIOStack.remove();
-    threadSafeTBase.remove();
-    threadSafeFieldIdsFilter.remove();
-    threadSafeDBObject.remove();
+    clearStacks();
+    tbase = null;
+    fieldsFilter = null;
+    dbObject = null;
   }
 
 
@@ -977,28 +912,39 @@ public class TBSONUnstackedProtocol extends TProtocol {
 
       // a secured map have a thriftIO.securedMongoIO not null
       if (thriftIO.securedMongoIO!=null) {
-        byte[] data = TBSONUnstackedProtocol.tbsonSecuredWrapper.decipherValue((String)fieldReaded);
-        fieldReaded = "";
-        if (data!=null) {
-          fieldReaded = new String(data);
-        }
+        String value = TBSONUnstackedProtocol.tbsonSecuredWrapper.decipherString(fieldReaded, getSecuredBuffers());
+        fieldReaded = value != null ? value : "";
       }
       thriftIO.mapEntry = null;
     } else {
       // normal field read
-      ThriftFieldMetadata fieldMetadata = thriftIO.fieldsStack.peek();
+      ThriftFieldMetadata fieldMetadata = thriftIO.peekField();
       if (fieldMetadata.securedFieldMetaData.isSecured()) {
-        byte[] data = TBSONUnstackedProtocol.tbsonSecuredWrapper.decipherSecuredField(fieldMetadata.tfield.id, (DBObject)thriftIO.mongoIO.get("securedwrap"));
-        if (data!=null) {
-          fieldReaded = new String(data);
+        DBObject securedWrap = (DBObject)thriftIO.mongoIO.get("securedwrap");
+        String value = null;
+        if (securedWrap!=null) {
+          value = TBSONUnstackedProtocol.tbsonSecuredWrapper.decipherString(securedWrap.get(Short.toString(fieldMetadata.tfield.id)), getSecuredBuffers());
+        }
+        if (value!=null) {
+          fieldReaded = value;
         }
       } else {
-        fieldReaded = thriftIO.mongoIO.get(fieldMetadata.tfield.name);
+        fieldReaded = getStoredValue(thriftIO, fieldMetadata);
       }
 
     }
     return fieldReaded;
   }
 
-
+  // value of the field stored under its key, or under its name / id by a document written before the keys change
+  private static Object getStoredValue(ThriftIO thriftIO, ThriftFieldMetadata fieldMetadata) {
+    Object value = thriftIO.mongoIO.get(fieldMetadata.key);
+    if (value == null && !fieldMetadata.key.equals(fieldMetadata.tfield.name)) {
+      value = thriftIO.mongoIO.get(fieldMetadata.tfield.name);
+    }
+    if (value == null) {
+      value = thriftIO.mongoIO.get(Short.toString(fieldMetadata.tfield.id));
+    }
+    return value;
+  }
 }
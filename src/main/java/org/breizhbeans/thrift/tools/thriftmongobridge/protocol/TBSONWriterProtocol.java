@@ -0,0 +1,595 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TBaseHelper;
+import org.apache.thrift.TException;
+import org.apache.thrift.meta_data.*;
+import org.apache.thrift.protocol.*;
+import org.apache.thrift.transport.TTransport;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.BsonBinary;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredBuffers;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrapper;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Write only protocol streaming the BSON directly into a BsonWriter.
+ *
+ * The produced document is the same as the DBObject built by the TBSONUnstackedProtocol
+ * but no intermediate BasicDBObject/BasicDBList tree is allocated.
+ *
+ * An instance holds its own state : use one instance per thread.
+ */
+public class TBSONWriterProtocol extends TProtocol {
+
+  private static final byte STRUCT_FRAME = 0;
+  private static final byte LIST_FRAME = 1;
+  private static final byte MAP_FRAME = 2;
+
+  // A struct or a container being written
+  private static class Frame {
+    byte kind;
+    Class<? extends TBase> thriftClass;
+    StructDescriptor descriptor;
+    // current field of a struct
+    ThriftFieldMetadata field;
+    // list/set element or map key and value
+    FieldValueMetaData elemMetaData;
+    FieldValueMetaData keyMetaData;
+    // pending map key
+    String key;
+    // secured wrap of a struct or secured values of a map
+    BsonDocument securedWrap;
+    // hash of a secured map value requested
+    boolean hash;
+    // packed list : the values go into the packer
+    boolean packing;
+  }
+
+  private Frame[] frames = new Frame[8];
+  private int depth = 0;
+
+  private BsonWriter writer;
+  private TBase<?, ?> base;
+
+  // scratch buffers of the secured fields, created on the first secured field
+  private SecuredBuffers securedBuffers;
+
+  // values of the packed list being written, created on the first packed field
+  private PackedLists.Packer packer;
+
+  /**
+   * Factory
+   */
+  public static class Factory implements TProtocolFactory {
+    public TProtocol getProtocol(TTransport trans) {
+      return new TBSONWriterProtocol();
+    }
+  }
+
+  public TBSONWriterProtocol() {
+    super(null);
+  }
+
+  public void setBsonWriter(BsonWriter writer) {
+    this.writer = writer;
+  }
+
+  public void setBaseObject(TBase<?, ?> base) {
+    this.base = base;
+    this.depth = 0;
+  }
+
+  public void reset() {
+    for (int i = 0; i < depth; i++) {
+      frames[i].securedWrap = null;
+    }
+    this.depth = 0;
+    this.writer = null;
+    this.base = null;
+  }
+
+  private Frame pushFrame(byte kind) {
+    if (depth == frames.length) {
+      Frame[] newFrames = new Frame[depth * 2];
+      System.arraycopy(frames, 0, newFrames, 0, depth);
+      frames = newFrames;
+    }
+    Frame frame = frames[depth];
+    if (frame == null) {
+      frame = new Frame();
+      frames[depth] = frame;
+    }
+    depth++;
+
+    frame.kind = kind;
+    frame.thriftClass = null;
+    frame.descriptor = null;
+    frame.field = null;
+    frame.elemMetaData = null;
+    frame.keyMetaData = null;
+    frame.key = null;
+    frame.securedWrap = null;
+    frame.hash = false;
+    frame.packing = false;
+    return frame;
+  }
+
+  private Frame peekFrame() {
+    return frames[depth - 1];
+  }
+
+  private Frame popFrame() {
+    return frames[--depth];
+  }
+
+  // metadata of the next value written in the current frame
+  private FieldValueMetaData currentValueMetaData() {
+    Frame frame = peekFrame();
+    switch (frame.kind) {
+      case STRUCT_FRAME:
+        return frame.field.fieldMetaData.valueMetaData;
+      case MAP_FRAME:
+        return frame.key == null ? frame.keyMetaData : frame.elemMetaData;
+      default:
+        return frame.elemMetaData;
+    }
+  }
+
+  // true if the value is a map key : only stored until the map value is written
+  private boolean isMapKey() {
+    if (depth == 0) {
+      return false;
+    }
+    Frame frame = peekFrame();
+    return frame.kind == MAP_FRAME && frame.key == null;
+  }
+
+  // writes the BSON name of the next value
+  private void writeValueName() {
+    if (depth == 0) {
+      return;
+    }
+    Frame frame = peekFrame();
+    switch (frame.kind) {
+      case STRUCT_FRAME:
+        writer.writeName(frame.field.key);
+        break;
+      case MAP_FRAME:
+        writer.writeName(frame.key);
+        frame.key = null;
+        break;
+    }
+  }
+
+  @Override
+  public void writeStructBegin(TStruct tStruct) throws TException {
+    Class<? extends TBase> thriftClass;
+
+    if (depth == 0) {
+      thriftClass = base.getClass();
+    } else {
+      if (isMapKey()) {
+        throw new TException("Unsupported map key type : struct");
+      }
+      thriftClass = ((StructMetaData) currentValueMetaData()).structClass;
+      writeValueName();
+    }
+
+    Frame frame = pushFrame(STRUCT_FRAME);
+    frame.thriftClass = thriftClass;
+    frame.descriptor = StructDescriptor.get(thriftClass);
+    if (TBSONUnstackedProtocol.getSecuredWrapper().isSecured(thriftClass)) {
+      frame.securedWrap = new BsonDocument();
+    }
+    writer.writeStartDocument();
+  }
+
+  @Override
+  public void writeStructEnd() throws TException {
+    Frame frame = popFrame();
+
+    // Dont forget to add the secured wrap
+    if (frame.securedWrap != null) {
+      writer.writeName("securedwrap");
+      writeBsonDocument(frame.securedWrap);
+      frame.securedWrap = null;
+    }
+    writer.writeEndDocument();
+  }
+
+  private void writeBsonDocument(BsonDocument document) {
+    writer.writeStartDocument();
+    for (Map.Entry<String, BsonValue> entry : document.entrySet()) {
+      writer.writeName(entry.getKey());
+      BsonValue value = entry.getValue();
+      if (value.isDocument()) {
+        writeBsonDocument(value.asDocument());
+      } else if (value.isBinary()) {
+        writer.writeBinaryData(value.asBinary());
+      } else {
+        writer.writeString(value.asString().getValue());
+      }
+    }
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public void writeMessageBegin(TMessage tMessage) throws TException {
+
+  }
+
+  @Override
+  public void writeMessageEnd() throws TException {
+
+  }
+
+  @Override
+  public void writeFieldBegin(TField tField) throws TException {
+    Frame frame = peekFrame();
+    frame.field = frame.descriptor.getField(tField.id);
+  }
+
+  @Override
+  public void writeFieldEnd() throws TException {
+    peekFrame().field = null;
+  }
+
+  @Override
+  public void writeFieldStop() throws TException {
+
+  }
+
+  @Override
+  public void writeMapBegin(TMap tMap) throws TException {
+    if (isMapKey()) {
+      throw new TException("Unsupported map key type : map");
+    }
+    MapMetaData mapMetaData = (MapMetaData) currentValueMetaData();
+
+    // a secured map is always a struct field
+    Frame parent = peekFrame();
+    boolean secured = parent.kind == STRUCT_FRAME && parent.field.securedFieldMetaData.isSecured();
+    boolean hash = secured && parent.field.securedFieldMetaData.isHash();
+
+    writeValueName();
+
+    Frame frame = pushFrame(MAP_FRAME);
+    frame.keyMetaData = mapMetaData.keyMetaData;
+    frame.elemMetaData = mapMetaData.valueMetaData;
+    if (secured) {
+      frame.securedWrap = new BsonDocument();
+      frame.hash = hash;
+    }
+    writer.writeStartDocument();
+  }
+
+  @Override
+  public void writeMapEnd() throws TException {
+    Frame frame = popFrame();
+    writer.writeEndDocument();
+
+    // write the secured values into the struct secured wrap
+    if (frame.securedWrap != null) {
+      Frame parent = peekFrame();
+      if (parent.securedWrap != null) {
+        parent.securedWrap.put(Short.toString(parent.field.tfield.id), frame.securedWrap);
+      }
+      frame.securedWrap = null;
+    }
+  }
+
+  @Override
+  public void writeListBegin(TList tList) throws TException {
+    // packed list field
+    if (depth > 0 && peekFrame().kind == STRUCT_FRAME && peekFrame().field.packed) {
+      if (packer == null) {
+        packer = new PackedLists.Packer();
+      }
+      packer.reset(tList.size, tList.elemType);
+      writeValueName();
+      pushFrame(LIST_FRAME).packing = true;
+      return;
+    }
+    writeCollectionBegin();
+  }
+
+  @Override
+  public void writeListEnd() throws TException {
+    if (popFrame().packing) {
+      writer.writeBinaryData(new BsonBinary(PackedLists.SUBTYPE, packer.toArray()));
+      return;
+    }
+    writer.writeEndArray();
+  }
+
+  @Override
+  public void writeSetBegin(TSet tSet) throws TException {
+    writeCollectionBegin();
+  }
+
+  @Override
+  public void writeSetEnd() throws TException {
+    popFrame();
+    writer.writeEndArray();
+  }
+
+  private void writeCollectionBegin() throws TException {
+    if (isMapKey()) {
+      throw new TException("Unsupported map key type : collection");
+    }
+    FieldValueMetaData valueMetaData = currentValueMetaData();
+    FieldValueMetaData elemMetaData;
+    if (valueMetaData instanceof ListMetaData) {
+      elemMetaData = ((ListMetaData) valueMetaData).elemMetaData;
+    } else {
+      elemMetaData = ((SetMetaData) valueMetaData).elemMetaData;
+    }
+
+    writeValueName();
+
+    Frame frame = pushFrame(LIST_FRAME);
+    frame.elemMetaData = elemMetaData;
+    writer.writeStartArray();
+  }
+
+  @Override
+  public void writeBool(boolean b) throws TException {
+    writeByte(b ? (byte) 1 : (byte) 0);
+  }
+
+  @Override
+  public void writeByte(byte b) throws TException {
+    writeI32(b);
+  }
+
+  @Override
+  public void writeI16(short i) throws TException {
+    writeI32(i);
+  }
+
+  @Override
+  public void writeI32(int i) throws TException {
+    if (peekFrame().packing) {
+      packer.putInt(i);
+      return;
+    }
+    if (isMapKey()) {
+      peekFrame().key = MapKeys.toKey(i);
+      return;
+    }
+    writeValueName();
+    writer.writeInt32(i);
+  }
+
+  @Override
+  public void writeI64(long l) throws TException {
+    if (peekFrame().packing) {
+      packer.putLong(l);
+      return;
+    }
+    if (isMapKey()) {
+      peekFrame().key = MapKeys.toKey(l);
+      return;
+    }
+    writeValueName();
+    writer.writeInt64(l);
+  }
+
+  @Override
+  public void writeDouble(double v) throws TException {
+    if (peekFrame().packing) {
+      packer.putDouble(v);
+      return;
+    }
+    if (isMapKey()) {
+      peekFrame().key = Double.toString(v);
+      return;
+    }
+    writeValueName();
+    writer.writeDouble(v);
+  }
+
+  @Override
+  public void writeString(String s) throws TException {
+    if (isMapKey()) {
+      peekFrame().key = s;
+      return;
+    }
+
+    Frame frame = peekFrame();
+
+    // SECURED MAP VALUE
+    if (frame.kind == MAP_FRAME && frame.securedWrap != null) {
+      writeSecuredMapValue(s, frame);
+      return;
+    }
+
+    // SECURED STRING FIELD
+    if (frame.kind == STRUCT_FRAME && frame.field.securedFieldMetaData.isSecured()) {
+      writeSecuredString(s, frame);
+      return;
+    }
+
+    writeValueName();
+    writer.writeString(s);
+  }
+
+  private void writeSecuredMapValue(String s, Frame frame) throws TException {
+    TBSONSecuredWrapper securedWrapper = TBSONUnstackedProtocol.getSecuredWrapper();
+    ByteBuffer butf8 = getSecuredBuffers().encode(s);
+
+    // keys are unprotected
+    frame.securedWrap.put(frame.key, securedValue(securedWrapper, butf8));
+
+    // the the value value is hashed add the hash in the unsecured document
+    if (frame.hash) {
+      writer.writeInt64(frame.key, securedWrapper.digestValue(s, butf8));
+    }
+    frame.key = null;
+  }
+
+  private void writeSecuredString(String s, Frame frame) throws TException {
+    TBSONSecuredWrapper securedWrapper = TBSONUnstackedProtocol.getSecuredWrapper();
+    ThriftFieldMetadata thriftFieldMetadata = frame.field;
+    ByteBuffer butf8 = getSecuredBuffers().encode(s);
+
+    // ADD IT TO THE SECURED DOCUMENT
+    frame.securedWrap.put(Short.toString(thriftFieldMetadata.tfield.id), securedValue(securedWrapper, butf8));
+
+    if (thriftFieldMetadata.securedFieldMetaData.isHash()) {
+      writer.writeInt64(thriftFieldMetadata.key, securedWrapper.digestValue(s, butf8));
+    }
+  }
+
+  // ciphered value in the storage format of the wrapper
+  private BsonValue securedValue(TBSONSecuredWrapper securedWrapper, ByteBuffer butf8) throws TException {
+    Object securedField = securedWrapper.cipherValue(butf8, securedBuffers);
+    if (securedField instanceof byte[]) {
+      return new BsonBinary((byte[]) securedField);
+    }
+    return new BsonString((String) securedField);
+  }
+
+  private SecuredBuffers getSecuredBuffers() {
+    if (securedBuffers == null) {
+      securedBuffers = new SecuredBuffers();
+    }
+    return securedBuffers;
+  }
+
+  @Override
+  public void writeBinary(ByteBuffer byteBuffer) throws TException {
+    byte[] b = TBaseHelper.byteBufferToByteArray(byteBuffer);
+
+    if (isMapKey()) {
+      peekFrame().key = new String(b);
+      return;
+    }
+    writeValueName();
+    writer.writeBinaryData(new BsonBinary(b));
+  }
+
+  @Override
+  public TMessage readMessageBegin() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public void readMessageEnd() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public TStruct readStructBegin() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public void readStructEnd() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public TField readFieldBegin() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public void readFieldEnd() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public TMap readMapBegin() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public void readMapEnd() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public TList readListBegin() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public void readListEnd() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public TSet readSetBegin() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public void readSetEnd() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public boolean readBool() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public byte readByte() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public short readI16() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public int readI32() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public long readI64() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public double readDouble() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public String readString() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+
+  @Override
+  public ByteBuffer readBinary() throws TException {
+    throw new TException("TBSONWriterProtocol is write only");
+  }
+}
@@ -26,14 +26,21 @@ import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrappe
 public class ThriftFieldMetadata {
 
   public TField tfield;
+  // BSON key : the field name, its id or its alias (TBSONStorage)
+  public String key;
   public FieldMetaData fieldMetaData;
   public Class<? extends TBase> tbaseClass;
   public TBSONSecuredWrapper.ThriftSecuredField securedFieldMetaData;
+  // position in the struct declaration order
+  public int index;
+  // list stored as a packed binary (TBSONStorage)
+  public boolean packed;
 
   public ThriftFieldMetadata() {
 
   }
   public ThriftFieldMetadata(String name, byte type, short id) {
     tfield = new TField(name, type, id);
+    key = name;
   }
 }
@@ -21,12 +21,20 @@ package org.breizhbeans.thrift.tools.thriftmongobridge.protocol;
 import com.mongodb.DBObject;
 import org.apache.thrift.TBase;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Stack;
 
+/**
+ * A struct or a container of the TBSONUnstackedProtocol.
+ * The protocol recycles its ThriftIO between documents (see init)
+ */
 public class ThriftIO {
 
+  public ThriftIO() {
+  }
+
   public ThriftIO(Class<? extends TBase> thriftClass, DBObject dbObject) {
     this(thriftClass, dbObject, null, false, false);
   }
@@ -35,34 +43,73 @@ public class ThriftIO {
     this(thriftClass, dbObject, securedDBObject, false, false);
   }
 
-  public ThriftIO(Class<? extends TBase> thriftClass, DBObject dbObject, Stack<ThriftFieldMetadata> fieldsStack) {
-    this(thriftClass, dbObject, null, false, false);
-    this.fieldsStack = fieldsStack;
+  public ThriftIO(Class<? extends TBase> thriftClass, DBObject dbObject, boolean map) {
+    this(thriftClass, dbObject, null, map, false);
   }
 
-  public ThriftIO(Class<? extends TBase> thriftClass, DBObject dbObject, Boolean map) {
-    this(thriftClass, dbObject, null, map, false);
+  public ThriftIO(Class<? extends TBase> thriftClass, DBObject dbObject, DBObject securedDBObject, boolean map, boolean list) {
+    init(thriftClass, dbObject, securedDBObject, map, list);
   }
 
-  public ThriftIO(Class<? extends TBase> thriftClass, DBObject dbObject, DBObject securedDBObject, Boolean map, Boolean list) {
+  public void init(Class<? extends TBase> thriftClass, DBObject dbObject, DBObject securedDBObject, boolean map, boolean list) {
     this.thriftClass=thriftClass;
     this.mongoIO = dbObject;
     this.securedMongoIO = securedDBObject;
     this.map = map;
     this.list = list;
+    this.key = null;
+    this.containerIndex = 0;
+    this.mapIterator = null;
+    this.mapEntry = null;
+    this.filter = null;
+    this.packing = false;
+    this.packed = null;
+    // keep the array, drop the references
+    Arrays.fill(fieldsStack, 0, fieldsCount, null);
+    this.fieldsCount = 0;
   }
 
   public Class<? extends TBase> thriftClass;
   public DBObject mongoIO;
   public DBObject securedMongoIO;
 
-  public Boolean map;
-  public Boolean list;
+  public boolean map;
+  public boolean list;
   public String key;
   public int containerIndex = 0;
 
   public Iterator<Map.Entry<String, Object>> mapIterator;
   public Map.Entry<String, Object> mapEntry = null;
-  public Stack<ThriftFieldMetadata> fieldsStack;
 
+  // partial deserialization of the struct (or of the list elements)
+  public TBSONFieldsFilter.Node filter;
+
+  // packed list being written (values in the protocol packer) or read
+  public boolean packing;
+  public ByteBuffer packed;
+
+  // fields to read, the next one on the top
+  private ThriftFieldMetadata[] fieldsStack = new ThriftFieldMetadata[8];
+  private int fieldsCount = 0;
+
+  public void pushField(ThriftFieldMetadata field) {
+    if (fieldsCount == fieldsStack.length) {
+      fieldsStack = Arrays.copyOf(fieldsStack, fieldsCount * 2);
+    }
+    fieldsStack[fieldsCount++] = field;
+  }
+
+  public ThriftFieldMetadata peekField() {
+    return fieldsStack[fieldsCount - 1];
+  }
+
+  public ThriftFieldMetadata popField() {
+    ThriftFieldMetadata field = fieldsStack[--fieldsCount];
+    fieldsStack[fieldsCount] = null;
+    return field;
+  }
+
+  public int fieldsCount() {
+    return fieldsCount;
+  }
 }
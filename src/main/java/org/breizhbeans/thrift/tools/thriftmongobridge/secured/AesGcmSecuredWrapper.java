@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.secured;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Secured wrapper based on AES-GCM (ciphering) and HMAC-SHA256 (digest64), requires a Java 8+ runtime.
+ *
+ * The encryption, nonce and hash keys are derived from a single AES key (16, 24 or 32 bytes).
+ * A ciphered value is the 12 bytes nonce followed by the GCM ciphertext and its 16 bytes tag.
+ *
+ * By default the nonce is synthetic (HMAC of the value) : the same value gives the same ciphered value,
+ * getBSON equality queries on the securedwrap keep working. With a random nonce two ciphers of a value differ,
+ * the lookups must use the hashed fields.
+ *
+ * The Cipher and Mac instances are confined to the calling thread and reused.
+ */
+public class AesGcmSecuredWrapper extends TBSONSecuredWrapper {
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final String HMAC = "HmacSHA256";
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+
+  private final SecretKeySpec encryptionKey;
+  private final SecretKeySpec nonceKey;
+  private final SecretKeySpec hashKey;
+  private final boolean randomNonce;
+
+  private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+    @Override
+    protected ThreadState initialValue() {
+      return new ThreadState();
+    }
+  };
+
+  // crypto instances and scratch arrays of a thread
+  private final class ThreadState {
+    final Cipher encrypt;
+    final Cipher decrypt;
+    final Mac nonceMac;
+    final Mac hashMac;
+    final byte[] nonce = new byte[NONCE_LENGTH];
+    final byte[] lastNonce = new byte[NONCE_LENGTH];
+    final byte[] mac = new byte[32];
+    boolean encryptInitialized;
+    SecureRandom random;
+    TSerializer serializer;
+    TDeserializer deserializer;
+
+    ThreadState() {
+      try {
+        encrypt = Cipher.getInstance(TRANSFORMATION);
+        decrypt = Cipher.getInstance(TRANSFORMATION);
+        nonceMac = Mac.getInstance(HMAC);
+        nonceMac.init(nonceKey);
+        hashMac = Mac.getInstance(HMAC);
+        hashMac.init(hashKey);
+      } catch (Exception exp) {
+        throw new IllegalStateException(exp);
+      }
+    }
+  }
+
+  /**
+   * Synthetic nonces
+   * @param aesKey 16, 24 or 32 bytes
+   */
+  public AesGcmSecuredWrapper(byte[] aesKey) throws Exception {
+    this(aesKey, false);
+  }
+
+  /**
+   * @param aesKey 16, 24 or 32 bytes
+   * @param randomNonce true for random nonces (non deterministic ciphered values)
+   */
+  public AesGcmSecuredWrapper(byte[] aesKey, boolean randomNonce) throws Exception {
+    if (aesKey == null || (aesKey.length != 16 && aesKey.length != 24 && aesKey.length != 32)) {
+      throw new IllegalArgumentException("AES key of 16, 24 or 32 bytes expected");
+    }
+    this.encryptionKey = new SecretKeySpec(Arrays.copyOf(deriveKey(aesKey, "encryption"), aesKey.length), "AES");
+    this.nonceKey = new SecretKeySpec(deriveKey(aesKey, "nonce"), HMAC);
+    this.hashKey = new SecretKeySpec(deriveKey(aesKey, "digest"), HMAC);
+    this.randomNonce = randomNonce;
+  }
+
+  private static byte[] deriveKey(byte[] aesKey, String label) throws Exception {
+    Mac mac = Mac.getInstance(HMAC);
+    mac.init(new SecretKeySpec(aesKey, HMAC));
+    return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public long digest64(byte[] data) throws TException {
+    ThreadState state = threadState.get();
+    state.hashMac.update(data);
+    return hash(state);
+  }
+
+  @Override
+  public long digest64(ByteBuffer data) throws TException {
+    ThreadState state = threadState.get();
+    int start = data.position();
+    state.hashMac.update(data);
+    data.position(start);
+    return hash(state);
+  }
+
+  private static long hash(ThreadState state) throws TException {
+    try {
+      state.hashMac.doFinal(state.mac, 0);
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (state.mac[i] & 0xFF);
+    }
+    return h;
+  }
+
+  @Override
+  public int cipherOutputSize(int inputLength) {
+    return NONCE_LENGTH + inputLength + TAG_LENGTH;
+  }
+
+  @Override
+  public int decipherOutputSize(int inputLength) {
+    return Math.max(0, inputLength - NONCE_LENGTH - TAG_LENGTH);
+  }
+
+  @Override
+  public byte[] cipher(byte[] data) throws TException {
+    ByteBuffer dst = ByteBuffer.allocate(cipherOutputSize(data.length));
+    cipher(ByteBuffer.wrap(data), dst);
+    return dst.array();
+  }
+
+  @Override
+  public int cipher(ByteBuffer src, ByteBuffer dst) throws TException {
+    ThreadState state = threadState.get();
+    try {
+      if (randomNonce) {
+        if (state.random == null) {
+          state.random = new SecureRandom();
+        }
+        state.random.nextBytes(state.nonce);
+      } else {
+        int start = src.position();
+        state.nonceMac.update(src);
+        src.position(start);
+        state.nonceMac.doFinal(state.mac, 0);
+        System.arraycopy(state.mac, 0, state.nonce, 0, NONCE_LENGTH);
+      }
+      initEncrypt(state);
+      dst.put(state.nonce);
+      return NONCE_LENGTH + state.encrypt.doFinal(src, dst);
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+
+  private void initEncrypt(ThreadState state) throws Exception {
+    // the JDK refuses to init twice in a row an encrypting GCM cipher with the same nonce.
+    // A synthetic nonce repeats only for the same value (same nonce, same plaintext, same ciphertext : nothing leaks),
+    // the cipher goes through another nonce first. A repeated random nonce is a real reuse : the JDK check is kept
+    if (!randomNonce && state.encryptInitialized && Arrays.equals(state.nonce, state.lastNonce)) {
+      state.lastNonce[0] ^= 1;
+      state.encrypt.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_LENGTH * 8, state.lastNonce));
+    }
+    state.encrypt.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_LENGTH * 8, state.nonce));
+    System.arraycopy(state.nonce, 0, state.lastNonce, 0, NONCE_LENGTH);
+    state.encryptInitialized = true;
+  }
+
+  @Override
+  public byte[] decipher(byte[] data) throws TException {
+    ByteBuffer dst = ByteBuffer.allocate(decipherOutputSize(data.length));
+    int length = decipher(ByteBuffer.wrap(data), dst);
+    return length == dst.capacity() ? dst.array() : Arrays.copyOf(dst.array(), length);
+  }
+
+  @Override
+  public int decipher(ByteBuffer src, ByteBuffer dst) throws TException {
+    if (src.remaining() < NONCE_LENGTH + TAG_LENGTH) {
+      throw new TException("Ciphered value too short - LENGTH:" + src.remaining());
+    }
+    ThreadState state = threadState.get();
+    try {
+      src.get(state.nonce);
+      state.decrypt.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(TAG_LENGTH * 8, state.nonce));
+      return state.decrypt.doFinal(src, dst);
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+
+  @Override
+  public byte[] cipher(TBase<?, ?> thriftObject) throws TException {
+    ThreadState state = threadState.get();
+    if (state.serializer == null) {
+      state.serializer = new TSerializer(new TCompactProtocol.Factory());
+    }
+    return cipher(state.serializer.serialize(thriftObject));
+  }
+
+  @Override
+  public TBase<?, ?> decipher(byte[] data, TBase<?, ?> thriftObject) throws TException {
+    ThreadState state = threadState.get();
+    if (state.deserializer == null) {
+      state.deserializer = new TDeserializer(new TCompactProtocol.Factory());
+    }
+    state.deserializer.deserialize(thriftObject, decipher(data));
+    return thriftObject;
+  }
+}
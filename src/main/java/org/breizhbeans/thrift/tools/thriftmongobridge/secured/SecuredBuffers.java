@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.secured;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scratch buffers of the secured fields (UTF-8 input, ciphered / deciphered output).
+ * An instance is owned by a protocol and is not thread safe, the buffers grow on demand and are reused.
+ */
+public final class SecuredBuffers {
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+  private ByteBuffer input = ByteBuffer.allocate(256);
+  private ByteBuffer output = ByteBuffer.allocate(256);
+
+  /**
+   * @return the UTF-8 bytes of the value, ready to be read
+   */
+  public ByteBuffer encode(String value) {
+    int maxSize = (int) (value.length() * (double) encoder.maxBytesPerChar());
+    if (input.capacity() < maxSize) {
+      input = ByteBuffer.allocate(maxSize);
+    }
+    input.clear();
+    encoder.reset();
+    CoderResult result = encoder.encode(CharBuffer.wrap(value), input, true);
+    if (!result.isUnderflow()) {
+      // unpaired surrogates, same replacement than String.getBytes
+      input.clear();
+      input.put(value.getBytes(StandardCharsets.UTF_8));
+    } else {
+      encoder.flush(input);
+    }
+    input.flip();
+    return input;
+  }
+
+  /**
+   * @return the bytes of the hexadecimal value, ready to be read
+   */
+  public ByteBuffer decodeHex(String hexValue) {
+    int length = hexValue.length();
+    if ((length & 1) != 0) {
+      throw new IllegalArgumentException("Odd number of characters");
+    }
+    if (input.capacity() < length / 2) {
+      input = ByteBuffer.allocate(length / 2);
+    }
+    input.clear();
+    for (int i = 0; i < length; i += 2) {
+      input.put((byte) ((hexDigit(hexValue.charAt(i)) << 4) | hexDigit(hexValue.charAt(i + 1))));
+    }
+    input.flip();
+    return input;
+  }
+
+  /**
+   * @return the output buffer cleared, with a capacity of at least size bytes
+   */
+  public ByteBuffer output(int size) {
+    if (output.capacity() < size) {
+      output = ByteBuffer.allocate(size);
+    }
+    output.clear();
+    return output;
+  }
+
+  /**
+   * @return the remaining bytes decoded as an UTF-8 String
+   */
+  public static String toUTF8String(ByteBuffer data) {
+    if (data.hasArray()) {
+      String value = new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), StandardCharsets.UTF_8);
+      data.position(data.limit());
+      return value;
+    }
+    return new String(toArray(data), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the remaining bytes as a lowercase hexadecimal String
+   */
+  public static String toHex(ByteBuffer data) {
+    char[] hex = new char[data.remaining() * 2];
+    int i = 0;
+    while (data.hasRemaining()) {
+      int b = data.get() & 0xFF;
+      hex[i++] = HEX_DIGITS[b >>> 4];
+      hex[i++] = HEX_DIGITS[b & 0x0F];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * @return a copy of the remaining bytes
+   */
+  public static byte[] toArray(ByteBuffer data) {
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    return bytes;
+  }
+
+  private static int hexDigit(char c) {
+    int digit = Character.digit(c, 16);
+    if (digit < 0) {
+      throw new IllegalArgumentException("Illegal hexadecimal character " + c);
+    }
+    return digit;
+  }
+}
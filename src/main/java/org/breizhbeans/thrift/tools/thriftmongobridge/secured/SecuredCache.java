@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.secured;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded concurrent cache of the secured wrapper (digests, query keys).
+ * The entries are spread on locked segments, each segment evicts its eldest entry (LRU or FIFO) when full.
+ */
+public final class SecuredCache<K, V> {
+  private static final int MAX_SEGMENTS = 16;
+
+  public enum Eviction {
+    // least recently read entry first
+    LRU,
+    // first inserted entry first, a read doesn't reorder the segment
+    FIFO
+  }
+
+  private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+    private final int capacity;
+    long hits;
+    long misses;
+    long evictions;
+
+    Segment(int capacity, boolean accessOrder) {
+      super(16, 0.75f, accessOrder);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      if (size() > capacity) {
+        evictions++;
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private final Segment<K, V>[] segments;
+  private final int maxSize;
+  private final Eviction eviction;
+
+  /**
+   * @param maxSize maximum number of entries
+   * @param eviction entries evicted first
+   */
+  @SuppressWarnings("unchecked")
+  public SecuredCache(int maxSize, Eviction eviction) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    if (eviction == null) {
+      throw new IllegalArgumentException("eviction is null");
+    }
+    // at least 16 entries per segment
+    int count = 1;
+    while (count < MAX_SEGMENTS && count * 32 <= maxSize) {
+      count <<= 1;
+    }
+    this.segments = new Segment[count];
+    // the remainder goes to the first segments
+    for (int i = 0; i < count; i++) {
+      int capacity = maxSize / count + (i < maxSize % count ? 1 : 0);
+      segments[i] = new Segment<>(capacity, eviction == Eviction.LRU);
+    }
+    this.maxSize = maxSize;
+    this.eviction = eviction;
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & (segments.length - 1)];
+  }
+
+  /**
+   * @return the cached value, null on a miss
+   */
+  public V get(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      V value = segment.get(key);
+      if (value == null) {
+        segment.misses++;
+      } else {
+        segment.hits++;
+      }
+      return value;
+    }
+  }
+
+  public void put(K key, V value) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.put(key, value);
+    }
+  }
+
+  public void clear() {
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long getHits() {
+    long hits = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        hits += segment.hits;
+      }
+    }
+    return hits;
+  }
+
+  public long getMisses() {
+    long misses = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        misses += segment.misses;
+      }
+    }
+    return misses;
+  }
+
+  public long getEvictions() {
+    long evictions = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        evictions += segment.evictions;
+      }
+    }
+    return evictions;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public Eviction getEviction() {
+    return eviction;
+  }
+
+  @Override
+  public String toString() {
+    return "SecuredCache(maxSize:" + maxSize + ", eviction:" + eviction + ", size:" + size()
+        + ", hits:" + getHits() + ", misses:" + getMisses() + ", evictions:" + getEvictions() + ")";
+  }
+}
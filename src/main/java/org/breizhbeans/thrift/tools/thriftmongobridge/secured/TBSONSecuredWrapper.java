@@ -27,10 +27,15 @@ import org.apache.thrift.TFieldIdEnum;
 import org.apache.thrift.meta_data.FieldMetaData;
 import org.apache.thrift.meta_data.MapMetaData;
 import org.apache.thrift.protocol.TType;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONStorage;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.types.Binary;
 
-import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -67,6 +72,87 @@ public abstract class TBSONSecuredWrapper {
 
   private ConcurrentHashMap<Class<? extends TBase>, Map<Short, ThriftSecuredField>> securedFields = new ConcurrentHashMap<>();
 
+  private volatile SecuredFieldFormat fieldFormat = SecuredFieldFormat.HEX;
+
+  /**
+   * Storage of the ciphered values written from now on, the values stored in both formats are readable
+   */
+  public void setFieldFormat(SecuredFieldFormat fieldFormat) {
+    if (fieldFormat == null) {
+      throw new IllegalArgumentException("fieldFormat is null");
+    }
+    this.fieldFormat = fieldFormat;
+  }
+
+  public SecuredFieldFormat getFieldFormat() {
+    return fieldFormat;
+  }
+
+  // optional caches, null when disabled
+  private volatile SecuredCache<String, Long> digestCache;
+  private volatile SecuredCache<QueryKey, String[]> queryKeysCache;
+
+  // (class, field, prefix) of a getBSON query
+  private static final class QueryKey {
+    private final Class<?> tbase;
+    private final short id;
+    private final String prefix;
+
+    QueryKey(Class<?> tbase, short id, String prefix) {
+      this.tbase = tbase;
+      this.id = id;
+      this.prefix = prefix;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof QueryKey)) {
+        return false;
+      }
+      QueryKey other = (QueryKey) o;
+      return id == other.id && tbase == other.tbase && prefix.equals(other.prefix);
+    }
+
+    @Override
+    public int hashCode() {
+      return (tbase.hashCode() * 31 + id) * 31 + prefix.hashCode();
+    }
+  }
+
+  /**
+   * Memoizes the digest of the hashed values (getBSON queries and hashed fields writes).
+   * The cache holds the clear values in memory : use it for low cardinality values.
+   */
+  public void enableDigestCache(int maxSize, SecuredCache.Eviction eviction) {
+    digestCache = new SecuredCache<>(maxSize, eviction);
+  }
+
+  /**
+   * Memoizes the getBSON keys per (class, field, prefix)
+   */
+  public void enableQueryKeysCache(int maxSize, SecuredCache.Eviction eviction) {
+    queryKeysCache = new SecuredCache<>(maxSize, eviction);
+  }
+
+  public void disableCaches() {
+    digestCache = null;
+    queryKeysCache = null;
+  }
+
+  /**
+   * @return the digest cache (hits, misses, evictions), null when disabled
+   */
+  public SecuredCache<String, Long> getDigestCache() {
+    return digestCache;
+  }
+
+  /**
+   * @return the query keys cache (hits, misses, evictions), null when disabled
+   */
+  public SecuredCache<?, ?> getQueryKeysCache() {
+    return queryKeysCache;
+  }
+
   public void secureThriftFields(Class<? extends TBase> tbase, boolean hash, TFieldIdEnum... fields) throws Exception {
     Map<Short, ThriftSecuredField> classSecuredFields = securedFields.get(tbase);
     if(classSecuredFields==null) {
@@ -119,10 +205,12 @@ public abstract class TBSONSecuredWrapper {
     }
 
     securedFields.put(tbase,classSecuredFields);
+    resetCache();
   }
 
   public void removeAll() {
     securedFields.clear();
+    resetCache();
   }
 
   public void removeSecuredField(Class<? extends TBase> tbase, TFieldIdEnum field) {
@@ -130,13 +218,22 @@ public abstract class TBSONSecuredWrapper {
     if(classSecuredFields!=null) {
       classSecuredFields.remove(field.getThriftFieldId());
     }
+    resetCache();
   }
 
   public void removeSecuredClass(Class<?> tbase) {
     securedFields.remove(tbase);
+    resetCache();
   }
 
 
+  // the cached struct metadata only hold the fields of the installed wrapper (addSecuredWrapper resets them)
+  private void resetCache() {
+    if (TBSONUnstackedProtocol.getSecuredWrapper() == this) {
+      TBSONUnstackedProtocol.resetCache();
+    }
+  }
+
   public boolean isSecured(Class<? extends TBase> tbase) {
     Map<Short, ThriftSecuredField> classSecuredFields = securedFields.get(tbase);
     if (classSecuredFields!=null && classSecuredFields.size()>0) {
@@ -161,12 +258,95 @@ public abstract class TBSONSecuredWrapper {
   }
 
   public byte[] decipherSecuredField(Short id, DBObject securedWraper) {
+    String key = Short.toString(id);
+    return decipherStoredValue(securedWraper.get(key));
+  }
+
+  /**
+   * @param storedValue ciphered value as stored : hexadecimal String, byte[] or Binary
+   * @return deciphered value, null if the value can't be deciphered
+   */
+  public byte[] decipherStoredValue(Object storedValue) {
+    if (storedValue instanceof String) {
+      return decipherValue((String) storedValue);
+    }
     try {
-      String key = Short.toString(id);
-      String hexValue = (String) securedWraper.get(key);
-      byte[] protectedData = Hex.decodeHex(hexValue.toCharArray());
+      if (storedValue instanceof byte[]) {
+        return decipher((byte[]) storedValue);
+      }
+      if (storedValue instanceof Binary) {
+        return decipher(((Binary) storedValue).getData());
+      }
+    } catch(Exception exp) {
 
-      return decipher(protectedData);
+    }
+    return null;
+  }
+
+  /**
+   * @param data value to protect
+   * @return the ciphered value in the storage format : hexadecimal String or byte[]
+   */
+  public Object cipherValue(byte[] data) throws TException {
+    byte[] ciphered = cipher(data);
+    if (fieldFormat == SecuredFieldFormat.BINARY) {
+      return ciphered;
+    }
+    return Hex.encodeHexString(ciphered);
+  }
+
+  /**
+   * Ciphers a value with the buffers SPI, the protocols call it with their own buffers
+   * @param data UTF-8 value to protect, its position is left unchanged
+   * @param buffers scratch buffers of the caller
+   * @return the ciphered value in the storage format : hexadecimal String or byte[]
+   */
+  public Object cipherValue(ByteBuffer data, SecuredBuffers buffers) throws TException {
+    int start = data.position();
+    try {
+      int size = cipherOutputSize(data.remaining());
+      if (size < 0) {
+        return cipherValue(SecuredBuffers.toArray(data));
+      }
+      ByteBuffer output = buffers.output(size);
+      cipher(data, output);
+      output.flip();
+      if (fieldFormat == SecuredFieldFormat.BINARY) {
+        return SecuredBuffers.toArray(output);
+      }
+      return SecuredBuffers.toHex(output);
+    } finally {
+      data.position(start);
+    }
+  }
+
+  /**
+   * Deciphers a stored value with the buffers SPI
+   * @param storedValue ciphered value as stored : hexadecimal String, byte[] or Binary
+   * @param buffers scratch buffers of the caller
+   * @return the deciphered String, null if the value can't be deciphered
+   */
+  public String decipherString(Object storedValue, SecuredBuffers buffers) {
+    try {
+      ByteBuffer data;
+      if (storedValue instanceof String) {
+        data = buffers.decodeHex((String) storedValue);
+      } else if (storedValue instanceof byte[]) {
+        data = ByteBuffer.wrap((byte[]) storedValue);
+      } else if (storedValue instanceof Binary) {
+        data = ByteBuffer.wrap(((Binary) storedValue).getData());
+      } else {
+        return null;
+      }
+
+      int size = decipherOutputSize(data.remaining());
+      if (size < 0) {
+        return new String(decipher(SecuredBuffers.toArray(data)), StandardCharsets.UTF_8);
+      }
+      ByteBuffer output = buffers.output(size);
+      decipher(data, output);
+      output.flip();
+      return SecuredBuffers.toUTF8String(output);
     } catch(Exception exp) {
 
     }
@@ -185,43 +365,79 @@ public abstract class TBSONSecuredWrapper {
 
 
   public DBObject getBSON(String prefix, Class<? extends TBase> tbase, TFieldIdEnum field, String value) throws TException {
-    try {
-      DBObject bson = new BasicDBObject();
+    DBObject bson = new BasicDBObject();
 
-      ThriftSecuredField securedField = getField(tbase, field.getThriftFieldId());
+    ThriftSecuredField securedField = getField(tbase, field.getThriftFieldId());
 
-      StringBuilder builder = new StringBuilder();
+    String[] keys = getQueryKeys(prefix, tbase, field);
 
-      if (prefix != null && prefix.length() > 0) {
-        builder.append(prefix);
-        builder.append(".");
-      }
+    if (!securedField.isSecured()) {
+      bson.put( keys[0], value);
+    }
 
-      builder.append(field.getFieldName());
+    // adds the hash if necessary (on the UTF-8 bytes like the serializers)
+    if (securedField.isHash()) {
+      bson.put( keys[0] , digestValue(value));
+    }
 
-      if (!securedField.isSecured()) {
-        bson.put( builder.toString(), value);
-      }
+    // adds the wrapped value if necessary
+    bson.put( keys[1], cipherValue(value.getBytes(StandardCharsets.UTF_8)));
+    return bson;
+  }
 
-      // adds the hash if necessary
-      if (securedField.isHash()) {
-        bson.put( builder.toString() , digest64(value.getBytes()));
+  // field key (TBSONStorage) and securedwrap key of a query
+  private String[] getQueryKeys(String prefix, Class<? extends TBase> tbase, TFieldIdEnum field) {
+    SecuredCache<QueryKey, String[]> cache = queryKeysCache;
+    QueryKey queryKey = null;
+    if (cache != null) {
+      queryKey = new QueryKey(tbase, field.getThriftFieldId(), prefix != null ? prefix : "");
+      String[] keys = cache.get(queryKey);
+      if (keys != null) {
+        return keys;
       }
+    }
 
-      builder = new StringBuilder();
+    String start = (prefix != null && prefix.length() > 0) ? prefix + "." : "";
+    String[] keys = new String[] { start + TBSONStorage.getKey(tbase, field), start + "securedwrap." + field.getThriftFieldId() };
 
-      if (prefix != null && prefix.length() > 0) {
-        builder.append(prefix);
-        builder.append(".");
-      }
-      builder.append("securedwrap.");
-      builder.append(Short.toString(field.getThriftFieldId()));
-      // adds the wrapped value if necessary
-      bson.put( builder.toString(), Hex.encodeHexString(cipher(value.getBytes("UTF-8"))));
-      return bson;
-    } catch (UnsupportedEncodingException e) {
-      throw new TException(e);
+    if (cache != null) {
+      cache.put(queryKey, keys);
+    }
+    return keys;
+  }
+
+  /**
+   * @return 64bits hash value of the UTF-8 bytes of the value, memoized when the digest cache is enabled
+   */
+  public long digestValue(String value) throws TException {
+    SecuredCache<String, Long> cache = digestCache;
+    if (cache == null) {
+      return digest64(value.getBytes(StandardCharsets.UTF_8));
+    }
+    Long digest = cache.get(value);
+    if (digest == null) {
+      digest = digest64(value.getBytes(StandardCharsets.UTF_8));
+      cache.put(value, digest);
+    }
+    return digest;
+  }
+
+  /**
+   * @param value hashed value
+   * @param utf8 UTF-8 bytes of the value, hashed on a cache miss (position left unchanged)
+   * @return 64bits hash value, memoized when the digest cache is enabled
+   */
+  public long digestValue(String value, ByteBuffer utf8) throws TException {
+    SecuredCache<String, Long> cache = digestCache;
+    if (cache == null) {
+      return digest64(utf8);
+    }
+    Long digest = cache.get(value);
+    if (digest == null) {
+      digest = digest64(utf8);
+      cache.put(value, digest);
     }
+    return digest;
   }
 
   /**
@@ -230,6 +446,62 @@ public abstract class TBSONSecuredWrapper {
    */
   abstract public long digest64(byte[] data) throws TException;
 
+  /**
+   * Buffers SPI, the default implementation copies the data and calls digest64(byte[])
+   * @param data remaining bytes to hash, its position is left unchanged
+   * @return  64bits hash value of the input data
+   */
+  public long digest64(ByteBuffer data) throws TException {
+    return digest64(SecuredBuffers.toArray(data.duplicate()));
+  }
+
+  /**
+   * Buffers SPI, size hint of the destination of cipher(ByteBuffer, ByteBuffer)
+   * @param inputLength number of bytes to cipher
+   * @return maximum number of ciphered bytes, a negative value when unknown (the byte[] methods are used)
+   */
+  public int cipherOutputSize(int inputLength) {
+    return -1;
+  }
+
+  /**
+   * Buffers SPI, size hint of the destination of decipher(ByteBuffer, ByteBuffer)
+   * @param inputLength number of bytes to decipher
+   * @return maximum number of deciphered bytes, a negative value when unknown (the byte[] methods are used)
+   */
+  public int decipherOutputSize(int inputLength) {
+    return -1;
+  }
+
+  /**
+   * Buffers SPI, the default implementation copies the data and calls cipher(byte[])
+   * @param src remaining bytes to crypt, consumed
+   * @param dst destination written from its position, of at least cipherOutputSize remaining bytes
+   * @return number of bytes written
+   */
+  public int cipher(ByteBuffer src, ByteBuffer dst) throws TException {
+    return put(cipher(SecuredBuffers.toArray(src)), dst);
+  }
+
+  /**
+   * Buffers SPI, the default implementation copies the data and calls decipher(byte[])
+   * @param src remaining coded bytes, consumed
+   * @param dst destination written from its position, of at least decipherOutputSize remaining bytes
+   * @return number of bytes written
+   */
+  public int decipher(ByteBuffer src, ByteBuffer dst) throws TException {
+    return put(decipher(SecuredBuffers.toArray(src)), dst);
+  }
+
+  private static int put(byte[] data, ByteBuffer dst) throws TException {
+    try {
+      dst.put(data);
+      return data.length;
+    } catch (BufferOverflowException e) {
+      throw new TException("Destination buffer too small - REMAINING:" + dst.remaining() + " SIZE:" + data.length);
+    }
+  }
+
 
   /**
    * @param data to crypt
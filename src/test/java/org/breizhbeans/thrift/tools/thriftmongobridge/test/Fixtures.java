@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Thrift objects shared by the tests
+ */
+final class Fixtures {
+
+  private Fixtures() {
+  }
+
+  static BSonThrift newBSonThrift() {
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("string value");
+    bsonThrift.setOneBool(true);
+    bsonThrift.setOneBigInteger(123456789012L);
+    bsonThrift.setOneInter(42);
+    bsonThrift.setAnotherThrift(new AnotherThrift("str1", 32));
+    bsonThrift.addToOneStringList("toto1");
+    bsonThrift.putToOneStringMap("key1", "value1");
+    bsonThrift.setThriftEnum(ThriftEnum.VALUE_TWO);
+    bsonThrift.addToOneDoubleList(8.123);
+    return bsonThrift;
+  }
+
+  static Conversation newConversation() {
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    conversation.setAdId(2);
+    conversation.addToContributors("USER1");
+    conversation.addToTags("TAG1");
+    for (int i = 0; i < 3; i++) {
+      Message message = new Message();
+      message.setDate(i);
+      message.setTalker("USER" + i);
+      message.addToReadedBy("USER" + (i + 1));
+      message.setSubject("subject " + i);
+      message.setContent("content " + i);
+      conversation.addToMessages(message);
+    }
+    return conversation;
+  }
+
+  // distinct ids from 0
+  static List<Conversation> conversations(int size) {
+    List<Conversation> conversations = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      Conversation conversation = new Conversation();
+      conversation.setId(i);
+      conversation.addToTags("TAG" + i);
+      Message message = new Message();
+      message.setDate(i);
+      message.setTalker("USER" + i);
+      conversation.addToMessages(message);
+      conversations.add(conversation);
+    }
+    return conversations;
+  }
+
+  static Set<String> keys(String... keys) {
+    return new HashSet<>(Arrays.asList(keys));
+  }
+}
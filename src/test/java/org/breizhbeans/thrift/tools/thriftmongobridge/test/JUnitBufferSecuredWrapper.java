@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import org.apache.thrift.TException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JUnitSecuredWrapper implementing the buffers SPI with thread confined ciphers
+ */
+public class JUnitBufferSecuredWrapper extends JUnitSecuredWrapper {
+
+  private final SecretKeySpec skeyspec = new SecretKeySpec("strong ke or die".getBytes(), "AES");
+
+  private final ThreadLocal<Cipher> encryptCipher = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher(Cipher.ENCRYPT_MODE);
+    }
+  };
+  private final ThreadLocal<Cipher> decryptCipher = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher(Cipher.DECRYPT_MODE);
+    }
+  };
+
+  final AtomicInteger bufferCiphers = new AtomicInteger();
+  final AtomicInteger bufferDeciphers = new AtomicInteger();
+
+  public JUnitBufferSecuredWrapper() throws Exception {
+  }
+
+  private Cipher newCipher(int mode) {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+      cipher.init(mode, skeyspec);
+      return cipher;
+    } catch (Exception exp) {
+      throw new IllegalStateException(exp);
+    }
+  }
+
+  @Override
+  public int cipherOutputSize(int inputLength) {
+    return encryptCipher.get().getOutputSize(inputLength);
+  }
+
+  @Override
+  public int decipherOutputSize(int inputLength) {
+    return decryptCipher.get().getOutputSize(inputLength);
+  }
+
+  @Override
+  public int cipher(ByteBuffer src, ByteBuffer dst) throws TException {
+    bufferCiphers.incrementAndGet();
+    try {
+      return encryptCipher.get().doFinal(src, dst);
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+
+  @Override
+  public int decipher(ByteBuffer src, ByteBuffer dst) throws TException {
+    bufferDeciphers.incrementAndGet();
+    try {
+      return decryptCipher.get().doFinal(src, dst);
+    } catch (Exception exp) {
+      throw new TException(exp);
+    }
+  }
+}
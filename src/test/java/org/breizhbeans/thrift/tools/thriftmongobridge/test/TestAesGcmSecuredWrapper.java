@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBObject;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.AesGcmSecuredWrapper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredFieldFormat;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrapper;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestAesGcmSecuredWrapper {
+  private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testSerializeDeserialize() throws Exception {
+    for (SecuredFieldFormat format : SecuredFieldFormat.values()) {
+      addWrapper(new AesGcmSecuredWrapper(KEY), format);
+      BSonComposite bsonComposite = newComposite();
+
+      TBSONSerializer serializer = new TBSONSerializer();
+      TBSONDeserializer deserializer = new TBSONDeserializer();
+
+      DBObject dbObject = serializer.serialize(bsonComposite);
+      BSonComposite actual = new BSonComposite();
+      deserializer.deserialize(actual, dbObject);
+      Assert.assertEquals(bsonComposite, actual);
+
+      RawBsonDocument document = serializer.serializeRaw(bsonComposite);
+      actual = new BSonComposite();
+      deserializer.deserialize(actual, document);
+      Assert.assertEquals(bsonComposite, actual);
+
+      // the hash of the hashed field
+      long hash = TBSONUnstackedProtocol.getSecuredWrapper().digest64("one string".getBytes("UTF-8"));
+      Assert.assertEquals(hash, ((DBObject) dbObject.get("bsonThrift")).get("oneString"));
+    }
+  }
+
+  @Test
+  public void testSyntheticNonce() throws Exception {
+    TBSONSecuredWrapper wrapper = new AesGcmSecuredWrapper(KEY);
+    byte[] data = "value".getBytes("UTF-8");
+
+    // deterministic : equality queries on the ciphered values
+    byte[] ciphered = wrapper.cipher(data);
+    Assert.assertArrayEquals(ciphered, wrapper.cipher(data));
+    Assert.assertEquals(12 + data.length + 16, ciphered.length);
+    Assert.assertFalse(Arrays.equals(ciphered, wrapper.cipher("other".getBytes("UTF-8"))));
+    Assert.assertArrayEquals(data, wrapper.decipher(ciphered));
+
+    // the same value twice through the buffers
+    for (int i = 0; i < 2; i++) {
+      ByteBuffer dst = ByteBuffer.allocate(wrapper.cipherOutputSize(data.length));
+      Assert.assertEquals(ciphered.length, wrapper.cipher(ByteBuffer.wrap(data), dst));
+      Assert.assertArrayEquals(ciphered, dst.array());
+    }
+  }
+
+  @Test
+  public void testRandomNonce() throws Exception {
+    TBSONSecuredWrapper wrapper = new AesGcmSecuredWrapper(KEY, true);
+    byte[] data = "value".getBytes("UTF-8");
+
+    byte[] ciphered = wrapper.cipher(data);
+    Assert.assertFalse(Arrays.equals(ciphered, wrapper.cipher(data)));
+    Assert.assertArrayEquals(data, wrapper.decipher(ciphered));
+    Assert.assertArrayEquals(data, wrapper.decipher(wrapper.cipher(data)));
+  }
+
+  @Test
+  public void testTamperedValue() throws Exception {
+    TBSONSecuredWrapper wrapper = new AesGcmSecuredWrapper(KEY);
+    byte[] ciphered = wrapper.cipher("value".getBytes("UTF-8"));
+    ciphered[ciphered.length - 1] ^= 1;
+
+    try {
+      wrapper.decipher(ciphered);
+      Assert.fail("tampered value");
+    } catch (TException e) {
+      // expected
+    }
+    try {
+      wrapper.decipher(new byte[8]);
+      Assert.fail("too short value");
+    } catch (TException e) {
+      // expected
+    }
+    // another key can't decipher
+    try {
+      new AesGcmSecuredWrapper("fedcba9876543210".getBytes()).decipher(wrapper.cipher("value".getBytes("UTF-8")));
+      Assert.fail("another key");
+    } catch (TException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDigest64() throws Exception {
+    TBSONSecuredWrapper wrapper = new AesGcmSecuredWrapper(KEY);
+    byte[] data = "value".getBytes("UTF-8");
+
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    Assert.assertEquals(wrapper.digest64(data), wrapper.digest64(buffer));
+    Assert.assertEquals(0, buffer.position());
+    Assert.assertEquals(wrapper.digest64(data), wrapper.digest64(data));
+    Assert.assertTrue(wrapper.digest64(data) != wrapper.digest64("other".getBytes("UTF-8")));
+    Assert.assertTrue(wrapper.digest64(data) != new AesGcmSecuredWrapper("fedcba9876543210".getBytes()).digest64(data));
+  }
+
+  @Test
+  public void testThriftObject() throws Exception {
+    TBSONSecuredWrapper wrapper = new AesGcmSecuredWrapper(KEY);
+    BSonComposite bsonComposite = newComposite();
+
+    BSonComposite actual = new BSonComposite();
+    wrapper.decipher(wrapper.cipher(bsonComposite), actual);
+    Assert.assertEquals(bsonComposite, actual);
+  }
+
+  @Test
+  public void testInvalidKey() throws Exception {
+    try {
+      new AesGcmSecuredWrapper("short".getBytes());
+      Assert.fail("invalid key");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testConcurrentThreads() throws Exception {
+    final TBSONSecuredWrapper wrapper = new AesGcmSecuredWrapper(KEY);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        final int thread = t;
+        futures.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            for (int i = 0; i < 500; i++) {
+              byte[] data = ("value " + thread + " " + i).getBytes("UTF-8");
+              if (!Arrays.equals(data, wrapper.decipher(wrapper.cipher(data)))) {
+                return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> future : futures) {
+        Assert.assertTrue(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private void addWrapper(TBSONSecuredWrapper wrapper, SecuredFieldFormat format) throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(wrapper);
+    wrapper.setFieldFormat(format);
+    wrapper.secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+    wrapper.secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+  }
+
+  private BSonComposite newComposite() {
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("one string");
+    bsonThrift.putToOneStringMap("key1", "value1");
+    bsonThrift.putToOneStringMap("key2", "value2");
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(bsonThrift);
+    return bsonComposite;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBObject;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.ThriftMongoHelper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class TestBatch {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testBatchKeepsOrder() throws Exception {
+    List<Conversation> conversations = Fixtures.conversations(1000);
+
+    List<DBObject> dbObjects = ThriftMongoHelper.thrift2DBObjects(conversations);
+    Assert.assertEquals(conversations.size(), dbObjects.size());
+
+    TBSONSerializer serializer = new TBSONSerializer();
+    for (int i = 0; i < conversations.size(); i++) {
+      Assert.assertEquals(serializer.serialize(conversations.get(i)), dbObjects.get(i));
+    }
+
+    Assert.assertEquals(conversations, ThriftMongoHelper.DBObjects2Thrift(dbObjects, Conversation.class));
+  }
+
+  @Test
+  public void testRawBatch() throws Exception {
+    List<Conversation> conversations = Fixtures.conversations(500);
+
+    List<RawBsonDocument> documents = ThriftMongoHelper.thrift2RawDocuments(conversations);
+    Assert.assertEquals(conversations, ThriftMongoHelper.rawDocuments2Thrift(documents, Conversation.class));
+  }
+
+  @Test
+  public void testSmallBatches() throws Exception {
+    Assert.assertTrue(ThriftMongoHelper.thrift2DBObjects(new ArrayList<Conversation>()).isEmpty());
+
+    // not a random access list
+    List<Conversation> conversations = new LinkedList<>(Fixtures.conversations(3));
+    List<DBObject> dbObjects = ThriftMongoHelper.thrift2DBObjects(conversations);
+    Assert.assertEquals(conversations, ThriftMongoHelper.DBObjects2Thrift(new LinkedList<>(dbObjects), Conversation.class));
+  }
+
+  @Test
+  public void testBatchPool() throws Exception {
+    ForkJoinPool defaultPool = ThriftMongoHelper.getBatchPool();
+    ForkJoinPool forkJoinPool = new ForkJoinPool(3);
+    try {
+      ThriftMongoHelper.setBatchPool(forkJoinPool);
+      Assert.assertSame(forkJoinPool, ThriftMongoHelper.getBatchPool());
+
+      List<Conversation> conversations = Fixtures.conversations(1000);
+      Assert.assertEquals(conversations, ThriftMongoHelper.DBObjects2Thrift(ThriftMongoHelper.thrift2DBObjects(conversations), Conversation.class));
+    } finally {
+      ThriftMongoHelper.setBatchPool(defaultPool);
+      forkJoinPool.shutdown();
+    }
+  }
+}
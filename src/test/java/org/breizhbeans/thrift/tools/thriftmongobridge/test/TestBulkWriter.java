@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.ThriftBulkWriter;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestBulkWriter {
+
+  // collection recording the insertMany batches
+  private static class CollectionHandler implements InvocationHandler {
+    final List<List<RawBsonDocument>> batches = new ArrayList<>();
+    volatile CountDownLatch blocker;
+    volatile boolean failing;
+    volatile boolean crashing;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (!"insertMany".equals(method.getName())) {
+        throw new UnsupportedOperationException(method.getName());
+      }
+      if (blocker != null) {
+        blocker.await();
+      }
+      if (failing) {
+        throw new MongoException("insert failure");
+      }
+      if (crashing) {
+        throw new StackOverflowError("insert crash");
+      }
+      synchronized (batches) {
+        batches.add(new ArrayList<>((List<RawBsonDocument>) args[0]));
+      }
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    MongoCollection<RawBsonDocument> collection() {
+      return (MongoCollection<RawBsonDocument>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, this);
+    }
+  }
+
+  private static class CountingListener implements ThriftBulkWriter.Listener {
+    final AtomicInteger batches = new AtomicInteger();
+    final AtomicLong documents = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    @Override
+    public void onBatch(int documents, long bytes, long latencyNanos) {
+      batches.incrementAndGet();
+      this.documents.addAndGet(documents);
+    }
+
+    @Override
+    public void onFailure(int documents, Exception exp) {
+      failures.addAndGet(documents);
+    }
+  }
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    CollectionHandler handler = new CollectionHandler();
+    CountingListener listener = new CountingListener();
+    final ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(handler.collection(), 2, 100, 50, Integer.MAX_VALUE, listener);
+
+    Thread[] producers = new Thread[4];
+    for (int p = 0; p < producers.length; p++) {
+      final int producer = p;
+      producers[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 1000; i++) {
+              writer.write(new Conversation().setId(producer * 1000 + i));
+            }
+          } catch (Exception exp) {
+            throw new RuntimeException(exp);
+          }
+        }
+      });
+      producers[p].start();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    writer.flush();
+
+    Assert.assertEquals(4000, writer.getWrittenCount());
+    Assert.assertEquals(0, writer.getFailedCount());
+    Assert.assertEquals(4000, listener.documents.get());
+    Assert.assertEquals(handler.batches.size(), writer.getBatchCount());
+    Assert.assertEquals(handler.batches.size(), listener.batches.get());
+
+    Set<Integer> ids = new HashSet<>();
+    TBSONDeserializer deserializer = new TBSONDeserializer();
+    for (List<RawBsonDocument> batch : handler.batches) {
+      Assert.assertTrue(batch.size() <= 50);
+      for (RawBsonDocument document : batch) {
+        Conversation conversation = new Conversation();
+        deserializer.deserialize(conversation, document);
+        ids.add(conversation.getId());
+      }
+    }
+    Assert.assertEquals(4000, ids.size());
+
+    writer.close();
+  }
+
+  @Test
+  public void testBatchBytes() throws Exception {
+    CollectionHandler handler = new CollectionHandler();
+    ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(handler.collection(), 1, 1000, 1000, 100, null);
+    for (int i = 0; i < 100; i++) {
+      writer.write(new Conversation().setId(i).setAdId(i));
+    }
+    writer.close();
+
+    Assert.assertEquals(100, writer.getWrittenCount());
+    for (List<RawBsonDocument> batch : handler.batches) {
+      int bytes = 0;
+      for (RawBsonDocument document : batch) {
+        bytes += document.getByteBuffer().remaining();
+      }
+      Assert.assertTrue(batch.size() == 1 || bytes <= 100);
+    }
+  }
+
+  @Test
+  public void testBackpressure() throws Exception {
+    CollectionHandler handler = new CollectionHandler();
+    handler.blocker = new CountDownLatch(1);
+    ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(handler.collection(), 1, 1, 1, Integer.MAX_VALUE, null);
+
+    // the first is being written, the second one fills the queue
+    writer.write(new Conversation().setId(1));
+    writer.write(new Conversation().setId(2));
+    Assert.assertFalse(writer.write(new Conversation().setId(3), 100, TimeUnit.MILLISECONDS));
+
+    handler.blocker.countDown();
+    writer.flush();
+    Assert.assertEquals(2, writer.getWrittenCount());
+    writer.close();
+  }
+
+  @Test
+  public void testFailedBatches() throws Exception {
+    CollectionHandler handler = new CollectionHandler();
+    handler.failing = true;
+    CountingListener listener = new CountingListener();
+    ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(handler.collection(), 2, 100, 10, Integer.MAX_VALUE, listener);
+
+    for (int i = 0; i < 100; i++) {
+      writer.write(new Conversation().setId(i));
+    }
+    writer.flush();
+
+    Assert.assertEquals(0, writer.getWrittenCount());
+    Assert.assertEquals(100, writer.getFailedCount());
+    Assert.assertEquals(100, listener.failures.get());
+    writer.close();
+  }
+
+  @Test
+  public void testFailingListener() throws Exception {
+    CollectionHandler handler = new CollectionHandler();
+    ThriftBulkWriter.Listener listener = new ThriftBulkWriter.Listener() {
+      @Override
+      public void onBatch(int documents, long bytes, long latencyNanos) {
+        throw new IllegalStateException("onBatch");
+      }
+
+      @Override
+      public void onFailure(int documents, Exception exp) {
+        throw new IllegalStateException("onFailure");
+      }
+    };
+    ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(handler.collection(), 1, 100, 10, Integer.MAX_VALUE, listener);
+
+    for (int i = 0; i < 50; i++) {
+      writer.write(new Conversation().setId(i));
+    }
+    writer.flush();
+    handler.failing = true;
+    for (int i = 0; i < 50; i++) {
+      writer.write(new Conversation().setId(i));
+    }
+    writer.flush();
+
+    // the worker survived the listener
+    Assert.assertEquals(50, writer.getWrittenCount());
+    Assert.assertEquals(50, writer.getFailedCount());
+    writer.close();
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    CollectionHandler handler = new CollectionHandler();
+    handler.crashing = true;
+    final AtomicLong failures = new AtomicLong();
+    final AtomicReference<Throwable> cause = new AtomicReference<>();
+    ThriftBulkWriter.Listener listener = new ThriftBulkWriter.Listener() {
+      @Override
+      public void onBatch(int documents, long bytes, long latencyNanos) {
+      }
+
+      @Override
+      public void onFailure(int documents, Exception exp) {
+        failures.addAndGet(documents);
+        cause.set(exp.getCause());
+        throw new AssertionError("onFailure");
+      }
+    };
+    ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(handler.collection(), 2, 100, 10, Integer.MAX_VALUE, listener);
+
+    // the workers survive the errors of the collection and of the listener
+    for (int i = 0; i < 100; i++) {
+      writer.write(new Conversation().setId(i));
+    }
+    writer.flush();
+    Assert.assertEquals(100, writer.getFailedCount());
+    Assert.assertEquals(100, failures.get());
+    Assert.assertTrue(cause.get() instanceof StackOverflowError);
+
+    handler.crashing = false;
+    for (int i = 0; i < 100; i++) {
+      writer.write(new Conversation().setId(i));
+    }
+    writer.close();
+    Assert.assertEquals(100, writer.getWrittenCount());
+  }
+
+  @Test
+  public void testCloseWhileWriting() throws Exception {
+    CollectionHandler handler = new CollectionHandler();
+    final ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(handler.collection(), 1, 1, 1, Integer.MAX_VALUE, null);
+    final AtomicLong queued = new AtomicLong();
+
+    Thread[] producers = new Thread[4];
+    for (int p = 0; p < producers.length; p++) {
+      producers[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              writer.write(new Conversation().setId(1));
+              queued.incrementAndGet();
+            }
+          } catch (TException exp) {
+            // closed
+          } catch (InterruptedException exp) {
+            throw new RuntimeException(exp);
+          }
+        }
+      });
+      producers[p].start();
+    }
+    Thread.sleep(50);
+    writer.close();
+    for (Thread producer : producers) {
+      producer.join();
+    }
+
+    // every accepted object is written before close returns
+    writer.flush();
+    Assert.assertEquals(queued.get(), writer.getWrittenCount());
+  }
+
+  @Test
+  public void testCloseTwice() throws Exception {
+    CollectionHandler handler = new CollectionHandler();
+    ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(handler.collection(), 4, 1, 10, Integer.MAX_VALUE, null);
+    writer.write(new Conversation().setId(1));
+
+    // more workers than the queue capacity, the second close has no worker to stop
+    writer.close();
+    writer.close();
+    Assert.assertEquals(1, writer.getWrittenCount());
+  }
+
+  @Test(expected = TException.class)
+  public void testWriteAfterClose() throws Exception {
+    ThriftBulkWriter<Conversation> writer = new ThriftBulkWriter<>(new CollectionHandler().collection());
+    writer.close();
+    writer.write(new Conversation().setId(1));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.MongoClient;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.codec.ThriftCodecProvider;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCodec {
+
+  private CodecRegistry codecRegistry;
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    codecRegistry = CodecRegistries.fromRegistries(MongoClient.getDefaultCodecRegistry(), CodecRegistries.fromProviders(new ThriftCodecProvider()));
+  }
+
+  @Test
+  public void testCodecRoundTrip() throws Exception {
+    AnotherThrift anotherThrift = new AnotherThrift();
+    anotherThrift.setAnotherString("str1");
+    anotherThrift.setAnotherInteger(32);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("string value");
+    inputBsonThrift.setOneBigInteger(123456789012L);
+    inputBsonThrift.setAnotherThrift(anotherThrift);
+    inputBsonThrift.addToOneStringList("toto1");
+    inputBsonThrift.putToOneObjectMapAsValue("key1", new AnotherThrift("value1", 1));
+    inputBsonThrift.putToMapEnum(ThriftEnum.VALUE_ONE, "test");
+
+    Codec<BSonThrift> codec = codecRegistry.get(BSonThrift.class);
+    RawBsonDocument document = new RawBsonDocument(inputBsonThrift, codec);
+
+    // same document as the DBObject serializer
+    Assert.assertEquals(new TBSONSerializer().serializeRaw(inputBsonThrift), document);
+    Assert.assertEquals(inputBsonThrift, document.decode(codec));
+  }
+
+  @Test
+  public void testCodecSecuredFields() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("secret");
+    inputBsonThrift.putToOneStringMap("key1", "value1");
+
+    Codec<BSonThrift> codec = codecRegistry.get(BSonThrift.class);
+    RawBsonDocument document = new RawBsonDocument(inputBsonThrift, codec);
+
+    Assert.assertTrue(document.containsKey("securedwrap"));
+    Assert.assertEquals(inputBsonThrift, document.decode(codec));
+  }
+
+  @Test
+  public void testCodecNestedInDocument() throws Exception {
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    conversation.addToContributors("USER1");
+    Message message = new Message();
+    message.setDate(1);
+    message.setTalker("USER1");
+    conversation.addToMessages(message);
+
+    // the codec is picked by the registry for a value of a Document
+    Document document = new Document("_id", 1).append("conversation", conversation);
+    RawBsonDocument rawDocument = new RawBsonDocument(document, codecRegistry.get(Document.class));
+
+    // decoded from a non binary reader
+    BsonDocument conversationDocument = rawDocument.getDocument("conversation");
+    Conversation actualConversation = codecRegistry.get(Conversation.class).decode(new BsonDocumentReader(conversationDocument), DecoderContext.builder().build());
+
+    Assert.assertEquals(conversation, actualConversation);
+  }
+
+  @Test
+  public void testProviderRestrictedClasses() throws Exception {
+    ThriftCodecProvider provider = new ThriftCodecProvider(BSonThrift.class);
+
+    Assert.assertNotNull(provider.get(BSonThrift.class, codecRegistry));
+    Assert.assertSame(provider.get(BSonThrift.class, codecRegistry), provider.get(BSonThrift.class, codecRegistry));
+    Assert.assertNull(provider.get(AnotherThrift.class, codecRegistry));
+    Assert.assertNull(provider.get(String.class, codecRegistry));
+  }
+}
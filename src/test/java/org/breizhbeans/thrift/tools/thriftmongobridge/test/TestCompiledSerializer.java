@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import org.apache.thrift.TBase;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.compiled.CompiledStructCodec;
+import org.breizhbeans.thrift.tools.thriftmongobridge.compiled.TBSONCompiledSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCompiledSerializer {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testCompiledComposite() throws Exception {
+    AnotherThrift anotherThrift = new AnotherThrift();
+    anotherThrift.setAnotherString("str1");
+    anotherThrift.setAnotherInteger(32);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("string value");
+    inputBsonThrift.setOneBool(true);
+    inputBsonThrift.setOneBigInteger(123456789012L);
+    inputBsonThrift.setAnotherThrift(anotherThrift);
+    inputBsonThrift.setThriftEnum(ThriftEnum.VALUE_THREE);
+    inputBsonThrift.setBinaryData("binary data".getBytes());
+    inputBsonThrift.addToOneStringList("toto1");
+    inputBsonThrift.addToOneStringSet("set1");
+    inputBsonThrift.addToOneDoubleList(8.123);
+    inputBsonThrift.putToOneStringMap("key1", "value1");
+    inputBsonThrift.putToOneObjectMapAsValue("key2", new AnotherThrift("value2", 2));
+    inputBsonThrift.putToMapEnum(ThriftEnum.VALUE_ONE, "test");
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(inputBsonThrift);
+
+    assertSameDocument(bsonComposite);
+    Assert.assertTrue(CompiledStructCodec.get(BSonThrift.class).isCompiled());
+  }
+
+  @Test
+  public void testCompiledTTypes() throws Exception {
+    BSonTTypes bsonTTypes = new BSonTTypes();
+    bsonTTypes.setTtypeString("string");
+    bsonTTypes.setTtypeBool(true);
+    bsonTTypes.setTtypeI16((short) 16);
+    bsonTTypes.setTtypeI32(32);
+    bsonTTypes.setTtypeI64(64L);
+    bsonTTypes.setTtypeBinary("binary".getBytes());
+    bsonTTypes.setTtypeDouble(1.5);
+    bsonTTypes.setTtypeByte((byte) 8);
+    bsonTTypes.setTtypeEnum(ThriftEnum.VALUE_TWO);
+    bsonTTypes.addToTtypeListDouble(2.5);
+    bsonTTypes.addToTtypeSetDouble(3.5);
+    bsonTTypes.putToTtypeMapDouble("key", 4.5);
+
+    assertSameDocument(bsonTTypes);
+  }
+
+  @Test
+  public void testCompiledObjectList() throws Exception {
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    conversation.addToContributors("USER1");
+    for (int i = 0; i < 3; i++) {
+      Message message = new Message();
+      message.setDate(i);
+      message.setTalker("USER" + i);
+      message.addToReadedBy("USER" + (i + 1));
+      conversation.addToMessages(message);
+    }
+
+    assertSameDocument(conversation);
+  }
+
+  @Test
+  public void testSecuredStructDelegated() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("secret");
+    inputBsonThrift.putToOneStringMap("key1", "value1");
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(inputBsonThrift);
+
+    // the composite is compiled, the secured struct goes through the protocols
+    Assert.assertTrue(CompiledStructCodec.get(BSonComposite.class).isCompiled());
+    Assert.assertFalse(CompiledStructCodec.get(BSonThrift.class).isCompiled());
+    assertSameDocument(bsonComposite);
+  }
+
+  private void assertSameDocument(TBase<?, ?> thriftObject) throws Exception {
+    RawBsonDocument expected = new TBSONSerializer().serializeRaw(thriftObject);
+    RawBsonDocument actual = new TBSONCompiledSerializer().serialize(thriftObject);
+    Assert.assertEquals(expected, actual);
+
+    // both readers give the same object
+    TBase<?, ?> compiledRead = new TBSONCompiledSerializer().deserialize(actual, thriftObject.getClass());
+    Assert.assertEquals(thriftObject, compiledRead);
+
+    TBase<?, ?> protocolRead = thriftObject.getClass().newInstance();
+    new TBSONDeserializer().deserialize(protocolRead, actual);
+    Assert.assertEquals(thriftObject, protocolRead);
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDiff;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONStorage;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.AesGcmSecuredWrapper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestDiff {
+  private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    TBSONStorage.reset();
+  }
+
+  @After
+  public void tearDown() {
+    TBSONStorage.reset();
+  }
+
+  @Test
+  public void testSameObject() throws Exception {
+    BSonThrift bsonThrift = Fixtures.newBSonThrift();
+    bsonThrift.setBinaryData("binary data".getBytes());
+    Assert.assertTrue(new TBSONDiff().update(bsonThrift, bsonThrift.deepCopy()).keySet().isEmpty());
+  }
+
+  @Test
+  public void testTopLevelFields() throws Exception {
+    BSonThrift before = Fixtures.newBSonThrift();
+    before.setBinaryData("binary data".getBytes());
+    BSonThrift after = before.deepCopy();
+    after.setOneInter(43);
+    after.unsetOneString();
+    after.setBinaryData("new data".getBytes());
+    after.addToOneStringList("toto2");
+
+    DBObject update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("oneInter", "binaryData", "oneStringList"), ((DBObject) update.get("$set")).keySet());
+    Assert.assertEquals(Fixtures.keys("oneString"), ((DBObject) update.get("$unset")).keySet());
+    Assert.assertEquals(43, ((DBObject) update.get("$set")).get("oneInter"));
+    Assert.assertEquals(Arrays.asList("toto1", "toto2"), ((DBObject) update.get("$set")).get("oneStringList"));
+  }
+
+  @Test
+  public void testNestedStructsAndMaps() throws Exception {
+    BSonThrift bsonThrift = Fixtures.newBSonThrift();
+    bsonThrift.putToOneStringMap("key2", "value2");
+    bsonThrift.putToOneObjectMapAsValue("key1", new AnotherThrift("value1", 1));
+    bsonThrift.putToMapEnum(ThriftEnum.VALUE_ONE, "one");
+    BSonComposite before = new BSonComposite("simple string", bsonThrift);
+
+    BSonComposite after = before.deepCopy();
+    after.getBsonThrift().getAnotherThrift().setAnotherString("str2");
+    after.getBsonThrift().getOneStringMap().remove("key1");
+    after.getBsonThrift().putToOneStringMap("key2", "value2 bis");
+    after.getBsonThrift().putToOneStringMap("key3", "value3");
+    after.getBsonThrift().getOneObjectMapAsValue().get("key1").setAnotherInteger(2);
+    after.getBsonThrift().putToMapEnum(ThriftEnum.VALUE_THREE, "three");
+
+    DBObject update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("bsonThrift.anotherThrift.anotherString", "bsonThrift.oneStringMap.key2", "bsonThrift.oneStringMap.key3",
+        "bsonThrift.oneObjectMapAsValue.key1.anotherInteger", "bsonThrift.mapEnum.3"), ((DBObject) update.get("$set")).keySet());
+    Assert.assertEquals(Fixtures.keys("bsonThrift.oneStringMap.key1"), ((DBObject) update.get("$unset")).keySet());
+
+    // a struct set or unset as a whole
+    after = before.deepCopy();
+    after.getBsonThrift().unsetAnotherThrift();
+    update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("bsonThrift.anotherThrift"), ((DBObject) update.get("$unset")).keySet());
+    update = assertUpdate(after, before);
+    Assert.assertEquals(Fixtures.keys("bsonThrift.anotherThrift"), ((DBObject) update.get("$set")).keySet());
+  }
+
+  @Test
+  public void testMapKeyNotInPath() throws Exception {
+    BSonThrift before = Fixtures.newBSonThrift();
+    BSonThrift after = Fixtures.newBSonThrift();
+    after.putToOneStringMap("key.2", "value2");
+
+    DBObject update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("oneStringMap"), ((DBObject) update.get("$set")).keySet());
+  }
+
+  @Test
+  public void testConversation() throws Exception {
+    Conversation before = Fixtures.newConversation();
+    Conversation after = before.deepCopy();
+    after.addToTags("TAG2");
+    after.getMessages().get(1).setSubject("Another subject");
+
+    // the lists are replaced
+    DBObject update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("tags", "messages"), ((DBObject) update.get("$set")).keySet());
+    Assert.assertNull(update.get("$unset"));
+  }
+
+  @Test
+  public void testCompactKeys() throws Exception {
+    TBSONStorage.compactKeys(BSonThrift.class);
+    BSonComposite before = new BSonComposite("simple string", Fixtures.newBSonThrift());
+    BSonComposite after = before.deepCopy();
+    after.getBsonThrift().setOneInter(43);
+    after.getBsonThrift().getAnotherThrift().setAnotherInteger(33);
+
+    DBObject update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("bsonThrift.4", "bsonThrift.6.anotherInteger"), ((DBObject) update.get("$set")).keySet());
+  }
+
+  @Test
+  public void testSecuredFields() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+
+    BSonComposite before = new BSonComposite("simple string", Fixtures.newBSonThrift());
+    Assert.assertTrue(new TBSONDiff().update(before, before.deepCopy()).keySet().isEmpty());
+
+    BSonComposite after = before.deepCopy();
+    after.setSimpleString("another string");
+    after.getBsonThrift().setOneString("another value");
+    after.getBsonThrift().putToOneStringMap("key3", "value3");
+
+    // the hash and the ciphered value
+    DBObject update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("securedwrap.1", "bsonThrift.oneString", "bsonThrift.securedwrap.1", "bsonThrift.oneStringMap", "bsonThrift.securedwrap.8"),
+        ((DBObject) update.get("$set")).keySet());
+
+    after.unsetSimpleString();
+    after.getBsonThrift().unsetOneString();
+    update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("securedwrap.1", "bsonThrift.oneString", "bsonThrift.securedwrap.1"), ((DBObject) update.get("$unset")).keySet());
+  }
+
+  @Test
+  public void testRandomNonceSecuredFields() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new AesGcmSecuredWrapper(KEY, true));
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, false, BSonThrift._Fields.ONE_STRING);
+
+    // a new ciphered value on each serialization : the unchanged secured fields are compared in clear
+    BSonThrift before = Fixtures.newBSonThrift();
+    BSonThrift after = Fixtures.newBSonThrift();
+    after.setOneInter(43);
+    DBObject update = assertUpdate(before, after);
+    Assert.assertEquals(Fixtures.keys("oneInter"), ((DBObject) update.get("$set")).keySet());
+  }
+
+  @Test(expected = TException.class)
+  public void testDifferentClasses() throws Exception {
+    TBase before = Fixtures.newBSonThrift();
+    TBase after = new BSonComposite();
+    new TBSONDiff().update(before, after);
+  }
+
+  // the update applied on the stored document gives the new version
+  private static <T extends TBase<?, ?>> DBObject assertUpdate(T before, T after) throws Exception {
+    DBObject update = new TBSONDiff().update(before, after);
+    DBObject document = new TBSONSerializer().serialize(before);
+    apply(document, update);
+
+    T actual = (T) before.getClass().newInstance();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(after, actual);
+    return update;
+  }
+
+  private static void apply(DBObject document, DBObject update) {
+    DBObject set = (DBObject) update.get("$set");
+    if (set != null) {
+      for (String path : set.keySet()) {
+        String[] keys = path.split("\\.");
+        parent(document, keys).put(keys[keys.length - 1], set.get(path));
+      }
+    }
+    DBObject unset = (DBObject) update.get("$unset");
+    if (unset != null) {
+      for (String path : unset.keySet()) {
+        String[] keys = path.split("\\.");
+        parent(document, keys).removeField(keys[keys.length - 1]);
+      }
+    }
+  }
+
+  private static DBObject parent(DBObject document, String[] keys) {
+    DBObject parent = document;
+    for (int i = 0; i < keys.length - 1; i++) {
+      DBObject child = (DBObject) parent.get(keys[i]);
+      if (child == null) {
+        child = new BasicDBObject();
+        parent.put(keys[i], child);
+      }
+      parent = child;
+    }
+    return parent;
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.LazyThriftDocument;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONProjection;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.compiled.TBSONCompiledSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONStorage;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class TestFieldKeys {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    TBSONStorage.reset();
+  }
+
+  @After
+  public void tearDown() {
+    TBSONStorage.reset();
+  }
+
+  @Test
+  public void testCompactKeys() throws Exception {
+    TBSONStorage.compactKeys(BSonThrift.class);
+    BSonThrift bsonThrift = Fixtures.newBSonThrift();
+
+    DBObject dbObject = new TBSONSerializer().serialize(bsonThrift);
+    Assert.assertEquals("string value", dbObject.get("1"));
+    Assert.assertEquals(123456789012L, dbObject.get("3"));
+    Assert.assertEquals("str1", ((DBObject) dbObject.get("6")).get("anotherString"));
+    Assert.assertFalse(dbObject.containsField("oneString"));
+
+    assertSameDocument(bsonThrift, dbObject);
+  }
+
+  @Test
+  public void testFieldAliases() throws Exception {
+    TBSONStorage.aliasField(BSonThrift.class, BSonThrift._Fields.ONE_STRING, "s");
+    TBSONStorage.aliasField(BSonThrift.class, BSonThrift._Fields.ONE_STRING_MAP, "m");
+    BSonThrift bsonThrift = Fixtures.newBSonThrift();
+
+    DBObject dbObject = new TBSONSerializer().serialize(bsonThrift);
+    Assert.assertEquals("string value", dbObject.get("s"));
+    Assert.assertEquals("value1", ((DBObject) dbObject.get("m")).get("key1"));
+    Assert.assertEquals(123456789012L, dbObject.get("oneBigInteger"));
+    assertSameDocument(bsonThrift, dbObject);
+
+    // an alias takes precedence over the compact key
+    TBSONStorage.compactKeys(BSonThrift.class);
+    dbObject = new TBSONSerializer().serialize(bsonThrift);
+    Assert.assertEquals("string value", dbObject.get("s"));
+    Assert.assertEquals(123456789012L, dbObject.get("3"));
+    assertSameDocument(bsonThrift, dbObject);
+  }
+
+  @Test
+  public void testNestedCompactKeys() throws Exception {
+    TBSONStorage.compactKeys(Message.class);
+    Conversation conversation = Fixtures.newConversation();
+
+    DBObject dbObject = new TBSONSerializer().serialize(conversation);
+    DBObject message = (DBObject) ((List<?>) dbObject.get("messages")).get(0);
+    Assert.assertEquals("USER0", message.get("2"));
+    assertSameDocument(conversation, dbObject);
+
+    // the projection keys follow the storage
+    TBSONProjection projection = TBSONProjection.include(Conversation.class, Conversation._Fields.ID)
+        .path(Conversation._Fields.MESSAGES, Message._Fields.TALKER);
+    Assert.assertEquals(Arrays.asList("id", "messages.2"), projection.getKeys());
+  }
+
+  @Test
+  public void testNameDocumentReadWithCompactKeys() throws Exception {
+    BSonThrift bsonThrift = Fixtures.newBSonThrift();
+    DBObject dbObject = new TBSONSerializer().serialize(bsonThrift);
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonThrift);
+
+    TBSONStorage.compactKeys(BSonThrift.class);
+    TBSONStorage.aliasField(BSonThrift.class, BSonThrift._Fields.ONE_INTER, "i");
+    assertReadable(bsonThrift, dbObject, document);
+  }
+
+  @Test
+  public void testCompactDocumentReadWithNames() throws Exception {
+    TBSONStorage.compactKeys(BSonThrift.class);
+    BSonThrift bsonThrift = Fixtures.newBSonThrift();
+    DBObject dbObject = new TBSONSerializer().serialize(bsonThrift);
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonThrift);
+
+    TBSONStorage.defaultKeys(BSonThrift.class);
+    Assert.assertTrue(new TBSONSerializer().serialize(bsonThrift).containsField("oneString"));
+    assertReadable(bsonThrift, dbObject, document);
+  }
+
+  @Test
+  public void testCompactDocumentIsSmaller() throws Exception {
+    Conversation conversation = Fixtures.newConversation();
+    int namesSize = new TBSONSerializer().serializeRaw(conversation).getByteBuffer().remaining();
+
+    TBSONStorage.compactKeys(Conversation.class);
+    TBSONStorage.compactKeys(Message.class);
+    int compactSize = new TBSONSerializer().serializeRaw(conversation).getByteBuffer().remaining();
+
+    Assert.assertTrue(compactSize < namesSize);
+  }
+
+  @Test
+  public void testSecuredCompactKeys() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+    TBSONStorage.compactKeys(BSonThrift.class);
+    BSonThrift bsonThrift = Fixtures.newBSonThrift();
+
+    DBObject dbObject = new TBSONSerializer().serialize(bsonThrift);
+    // hash under the compact key, ciphered value under the id of the securedwrap
+    Assert.assertTrue(dbObject.get("1") instanceof Long);
+    Assert.assertTrue(((DBObject) dbObject.get("securedwrap")).containsField("1"));
+    assertSameDocument(bsonThrift, dbObject);
+
+    DBObject query = TBSONUnstackedProtocol.getSecuredWrapper().getBSON("bsonThrift", BSonThrift.class, BSonThrift._Fields.ONE_STRING, "string value");
+    Assert.assertEquals(dbObject.get("1"), query.get("bsonThrift.1"));
+    Assert.assertTrue(query.containsField("bsonThrift.securedwrap.1"));
+  }
+
+  @Test
+  public void testInvalidAliases() throws Exception {
+    String[] aliases = { "", "$s", "a.b", "12", "-1", "_id", "securedwrap", "oneBool" };
+    for (String alias : aliases) {
+      try {
+        TBSONStorage.aliasField(BSonThrift.class, BSonThrift._Fields.ONE_STRING, alias);
+        Assert.fail("alias " + alias);
+      } catch (TException e) {
+        // expected
+      }
+    }
+
+    // the aliases are unique in the class
+    TBSONStorage.aliasField(BSonThrift.class, BSonThrift._Fields.ONE_STRING, "s");
+    TBSONStorage.aliasField(BSonThrift.class, BSonThrift._Fields.ONE_STRING, "t");
+    TBSONStorage.aliasField(BSonThrift.class, BSonThrift._Fields.ONE_BOOL, "s");
+    try {
+      TBSONStorage.aliasField(BSonThrift.class, BSonThrift._Fields.ONE_INTER, "t");
+      Assert.fail("duplicate alias");
+    } catch (TException e) {
+      // expected
+    }
+  }
+
+  private static void assertSameDocument(TBase<?, ?> thriftObject, DBObject dbObject) throws Exception {
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(thriftObject);
+    Assert.assertEquals(dbObject.toString(), decode(document).toString());
+    Assert.assertEquals(document, new TBSONCompiledSerializer().serialize(thriftObject));
+
+    TBase<?, ?> actual = thriftObject.getClass().newInstance();
+    new TBSONDeserializer().deserialize(actual, dbObject);
+    Assert.assertEquals(thriftObject, actual);
+
+    actual = thriftObject.getClass().newInstance();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(thriftObject, actual);
+
+    Assert.assertEquals(thriftObject, new TBSONCompiledSerializer().deserialize(document, thriftObject.getClass()));
+  }
+
+  private static void assertReadable(BSonThrift expected, DBObject dbObject, RawBsonDocument document) throws Exception {
+    BSonThrift actual = new BSonThrift();
+    new TBSONDeserializer().deserialize(actual, dbObject);
+    Assert.assertEquals(expected, actual);
+
+    actual = new BSonThrift();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(expected, actual);
+
+    actual = new BSonThrift();
+    new TBSONDeserializer().deserialize(actual, decode(document));
+    Assert.assertEquals(expected, actual);
+
+    Assert.assertEquals(expected, new TBSONCompiledSerializer().deserialize(document, BSonThrift.class));
+
+    LazyThriftDocument<BSonThrift> lazy = new TBSONDeserializer().lazyDeserialize(document, BSonThrift.class);
+    Assert.assertEquals(expected, lazy.toThrift());
+    Assert.assertEquals(expected.getOneString(), lazy.getFieldValue(BSonThrift._Fields.ONE_STRING));
+    Assert.assertEquals((Object) expected.getOneInter(), lazy.getFieldValue(BSonThrift._Fields.ONE_INTER));
+  }
+
+  private static DBObject decode(RawBsonDocument document) {
+    byte[] bytes = new byte[document.getByteBuffer().remaining()];
+    document.getByteBuffer().get(bytes);
+    return new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+  }
+}
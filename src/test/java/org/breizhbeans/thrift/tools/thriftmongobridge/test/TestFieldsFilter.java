@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONProjection;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONFieldsFilter;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFieldsFilter {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testFilterNodes() throws Exception {
+    TBSONFieldsFilter filter = TBSONFieldsFilter.includePaths(Conversation.class, "id", "messages.talker");
+
+    TBSONFieldsFilter.Node root = filter.getRoot();
+    Assert.assertFalse(root.isSkipped(0));
+    Assert.assertTrue(root.isSkipped(1));
+    Assert.assertTrue(root.isSkipped(2));
+    Assert.assertTrue(root.isSkipped(3));
+    Assert.assertFalse(root.isSkipped(4));
+    Assert.assertNull(root.getChild(0));
+
+    TBSONFieldsFilter.Node messages = root.getChild(4);
+    Assert.assertTrue(messages.isSkipped(0));
+    Assert.assertFalse(messages.isSkipped(1));
+    Assert.assertTrue(messages.isSkipped(3));
+
+    // a field read entirely covers its sub paths
+    TBSONFieldsFilter covering = TBSONFieldsFilter.includePaths(Conversation.class, "messages", "messages.talker");
+    Assert.assertFalse(covering.getRoot().isSkipped(4));
+    Assert.assertNull(covering.getRoot().getChild(4));
+  }
+
+  @Test
+  public void testExcludeNestedPaths() throws Exception {
+    Conversation conversation = Fixtures.newConversation();
+
+    Conversation expected = Fixtures.newConversation();
+    expected.unsetTags();
+    for (Message message : expected.getMessages()) {
+      message.unsetSubject();
+    }
+
+    assertPartialDeserialize(conversation, expected, TBSONFieldsFilter.excludePaths(Conversation.class, "messages.subject", "tags"));
+  }
+
+  @Test
+  public void testIncludeNestedPaths() throws Exception {
+    Conversation conversation = Fixtures.newConversation();
+
+    Conversation expected = new Conversation();
+    expected.setId(conversation.getId());
+    for (Message message : conversation.getMessages()) {
+      expected.addToMessages(new Message().setTalker(message.getTalker()));
+    }
+
+    assertPartialDeserialize(conversation, expected, TBSONFieldsFilter.includePaths(Conversation.class, "id", "messages.talker"));
+
+    // the messages are read entirely
+    Conversation expectedMessages = new Conversation();
+    expectedMessages.setId(conversation.getId());
+    expectedMessages.setMessages(conversation.getMessages());
+    assertPartialDeserialize(conversation, expectedMessages, TBSONFieldsFilter.include(Conversation.class, Conversation._Fields.MESSAGES, Conversation._Fields.ID));
+  }
+
+  @Test
+  public void testIncludeComposite() throws Exception {
+    AnotherThrift anotherThrift = new AnotherThrift("another string", 32);
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("string value");
+    bsonThrift.setOneBigInteger(123456789012L);
+    bsonThrift.setAnotherThrift(anotherThrift);
+    bsonThrift.putToOneStringMap("key1", "value1");
+    BSonComposite composite = new BSonComposite();
+    composite.setSimpleString("simple string");
+    composite.setBsonThrift(bsonThrift);
+
+    BSonComposite expected = new BSonComposite();
+    expected.setBsonThrift(new BSonThrift().setAnotherThrift(new AnotherThrift().setAnotherString("another string")));
+
+    TBSONProjection projection = TBSONProjection.include(BSonComposite.class)
+        .path(BSonComposite._Fields.BSON_THRIFT, BSonThrift._Fields.ANOTHER_THRIFT, AnotherThrift._Fields.ANOTHER_STRING);
+
+    assertPartialDeserialize(composite, expected, projection.toFieldsFilter());
+    assertPartialDeserialize(composite, expected, TBSONFieldsFilter.includePaths(BSonComposite.class, "bsonThrift.anotherThrift.anotherString"));
+  }
+
+  @Test
+  public void testSecuredFields() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("one string");
+    bsonThrift.setOneInter(42);
+    bsonThrift.putToOneStringMap("key1", "value1");
+    BSonComposite composite = new BSonComposite();
+    composite.setSimpleString("simple string");
+    composite.setBsonThrift(bsonThrift);
+
+    BSonComposite included = new BSonComposite();
+    included.setBsonThrift(new BSonThrift().setOneString("one string"));
+    assertPartialDeserialize(composite, included, TBSONFieldsFilter.includePaths(BSonComposite.class, "bsonThrift.oneString"));
+
+    BSonComposite excluded = new BSonComposite();
+    excluded.setBsonThrift(new BSonThrift().setOneString("one string").setOneInter(42));
+    assertPartialDeserialize(composite, excluded, TBSONFieldsFilter.excludePaths(BSonComposite.class, "simpleString", "bsonThrift.oneStringMap"));
+  }
+
+  @Test(expected = TException.class)
+  public void testUnknownPath() throws Exception {
+    TBSONFieldsFilter.includePaths(Conversation.class, "messages.unknown");
+  }
+
+  @Test(expected = TException.class)
+  public void testFilterOfAnotherClass() throws Exception {
+    DBObject dbObject = new TBSONSerializer().serialize(Fixtures.newConversation());
+    new TBSONDeserializer().partialDeserialize(new Message(), dbObject, TBSONFieldsFilter.includePaths(Conversation.class, "id"));
+  }
+
+  private static <T extends TBase<?, ?>> void assertPartialDeserialize(T thriftObject, T expected, TBSONFieldsFilter filter) throws Exception {
+    TBSONSerializer serializer = new TBSONSerializer();
+    TBSONDeserializer deserializer = new TBSONDeserializer();
+
+    DBObject dbObject = serializer.serialize(thriftObject);
+    TBase<?, ?> actual = expected.getClass().newInstance();
+    deserializer.partialDeserialize(actual, dbObject, filter);
+    Assert.assertEquals(expected, actual);
+
+    RawBsonDocument document = serializer.serializeRaw(thriftObject);
+    TBase<?, ?> actualRaw = expected.getClass().newInstance();
+    deserializer.partialDeserialize(actualRaw, document, filter);
+    Assert.assertEquals(expected, actualRaw);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.LazyThriftDocument;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestLazyThriftDocument {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testFieldAccess() throws Exception {
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("string value");
+    bsonThrift.setOneBool(true);
+    bsonThrift.setOneBigInteger(123456789012L);
+    bsonThrift.setAnotherThrift(new AnotherThrift("another string", 32));
+    bsonThrift.setThriftEnum(ThriftEnum.VALUE_TWO);
+    bsonThrift.setBinaryData("binary data".getBytes());
+    bsonThrift.addToOneStringList("toto1");
+    bsonThrift.putToMapEnum(ThriftEnum.VALUE_ONE, "test");
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonThrift);
+    LazyThriftDocument<BSonThrift> lazy = new TBSONDeserializer().lazyDeserialize(document, BSonThrift.class);
+
+    Assert.assertTrue(lazy.isSet(BSonThrift._Fields.ONE_STRING));
+    Assert.assertFalse(lazy.isSet(BSonThrift._Fields.ONE_STRING_SET));
+    Assert.assertNull(lazy.getFieldValue(BSonThrift._Fields.ONE_STRING_SET));
+
+    Assert.assertEquals("string value", lazy.getFieldValue(BSonThrift._Fields.ONE_STRING));
+    Assert.assertEquals(true, lazy.getFieldValue(BSonThrift._Fields.ONE_BOOL));
+    Assert.assertEquals(123456789012L, lazy.getFieldValue(BSonThrift._Fields.ONE_BIG_INTEGER));
+    Assert.assertEquals(new AnotherThrift("another string", 32), lazy.getFieldValue(BSonThrift._Fields.ANOTHER_THRIFT));
+    Assert.assertEquals(ThriftEnum.VALUE_TWO, lazy.getFieldValue(BSonThrift._Fields.THRIFT_ENUM));
+    Assert.assertArrayEquals("binary data".getBytes(), (byte[]) lazy.getFieldValue(BSonThrift._Fields.BINARY_DATA));
+    Assert.assertEquals(Arrays.asList("toto1"), lazy.getFieldValue(BSonThrift._Fields.ONE_STRING_LIST));
+    Assert.assertEquals(bsonThrift.getMapEnum(), lazy.getFieldValue(BSonThrift._Fields.MAP_ENUM));
+
+    Assert.assertEquals(bsonThrift, lazy.toThrift());
+    Assert.assertSame(document, lazy.getDocument());
+  }
+
+  @Test
+  public void testStoredDocument() throws Exception {
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    conversation.addToTags("TAG1");
+    for (int i = 0; i < 3; i++) {
+      Message message = new Message();
+      message.setDate(i);
+      message.setTalker("USER" + i);
+      conversation.addToMessages(message);
+    }
+
+    // a document stored with an _id
+    DBObject dbObject = new TBSONSerializer().serialize(conversation);
+    dbObject.put("_id", new ObjectId());
+    RawBsonDocument document = new RawBsonDocument(new DefaultDBEncoder().encode(dbObject));
+
+    LazyThriftDocument<Conversation> lazy = new TBSONDeserializer().lazyDeserialize(document, Conversation.class);
+
+    Assert.assertEquals(conversation.getMessages(), lazy.getFieldValue(Conversation._Fields.MESSAGES));
+    Assert.assertEquals(1, lazy.getFieldValue(Conversation._Fields.ID));
+    Assert.assertEquals(conversation, lazy.toThrift());
+    // read from the materialized object
+    Assert.assertEquals(Arrays.asList("TAG1"), lazy.getFieldValue(Conversation._Fields.TAGS));
+  }
+
+  @Test
+  public void testSecuredFields() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, false, BSonThrift._Fields.ONE_STRING_MAP);
+
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("secret");
+    bsonThrift.setOneInter(42);
+    bsonThrift.putToOneStringMap("key1", "value1");
+    bsonThrift.putToOneStringMap("key2", "value2");
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonThrift);
+    LazyThriftDocument<BSonThrift> lazy = new TBSONDeserializer().lazyDeserialize(document, BSonThrift.class);
+
+    Assert.assertEquals("secret", lazy.getFieldValue(BSonThrift._Fields.ONE_STRING));
+    Assert.assertEquals(bsonThrift.getOneStringMap(), lazy.getFieldValue(BSonThrift._Fields.ONE_STRING_MAP));
+    Assert.assertEquals(42, lazy.getFieldValue(BSonThrift._Fields.ONE_INTER));
+    Assert.assertEquals(bsonThrift, lazy.toThrift());
+  }
+
+  @Test(expected = TException.class)
+  public void testFieldOfAnotherClass() throws Exception {
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(new BSonThrift().setOneString("value"));
+    new TBSONDeserializer().lazyDeserialize(document, BSonThrift.class).getFieldValue(Message._Fields.CONTENT);
+  }
+}
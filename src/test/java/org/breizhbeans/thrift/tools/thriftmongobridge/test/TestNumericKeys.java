@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.compiled.TBSONCompiledSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.MapKeys;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestNumericKeys {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testMapKeys() throws Exception {
+    // the cached keys are shared
+    Assert.assertSame(MapKeys.toKey(42), MapKeys.toKey(42));
+    Assert.assertSame(MapKeys.toKey(42), MapKeys.toKey(42L));
+
+    long[] values = { Long.MIN_VALUE, Integer.MIN_VALUE, -129, -128, -1, 0, 1, 1023, 1024, Integer.MAX_VALUE, Long.MAX_VALUE };
+    for (long value : values) {
+      Assert.assertEquals(Long.toString(value), MapKeys.toKey(value));
+      if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+        Assert.assertEquals(Integer.toString((int) value), MapKeys.toKey((int) value));
+      }
+    }
+  }
+
+  @Test
+  public void testNumericMaps() throws Exception {
+    BSonNumericMaps numericMaps = newNumericMaps();
+
+    // DBObject
+    DBObject dbObject = new TBSONSerializer().serialize(numericMaps);
+    Assert.assertEquals(123456789012L, ((DBObject) dbObject.get("countersI32")).get("7"));
+    Assert.assertEquals(-5L, ((DBObject) dbObject.get("countersI32")).get("-200"));
+    Assert.assertEquals("short", ((DBObject) dbObject.get("labelsI16")).get("12"));
+    Assert.assertEquals(3, ((DBObject) dbObject.get("countersByte")).get("-3"));
+    Assert.assertEquals("half", ((DBObject) dbObject.get("labelsDouble")).get("0.5"));
+
+    BSonNumericMaps actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, dbObject);
+    Assert.assertEquals(numericMaps, actual);
+
+    // raw and compiled serializers write the same document
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(numericMaps);
+    Assert.assertEquals(document, new TBSONCompiledSerializer().serialize(numericMaps));
+
+    byte[] bytes = new byte[document.getByteBuffer().remaining()];
+    document.getByteBuffer().get(bytes);
+    Assert.assertEquals(dbObject.toString(), new DefaultDBDecoder().decode(bytes, (DBCollection) null).toString());
+
+    actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(numericMaps, actual);
+  }
+
+  private BSonNumericMaps newNumericMaps() {
+    BSonNumericMaps numericMaps = new BSonNumericMaps();
+    for (int i = 0; i < 10; i++) {
+      numericMaps.putToCountersI32(i, 123456789005L + i);
+      numericMaps.putToCountersI64(i * 1000L, i / 2.0);
+      numericMaps.addToValuesI64(i * 1000000000000L);
+    }
+    numericMaps.putToCountersI32(-200, -5L);
+    numericMaps.putToCountersI32(5000, 5L);
+    numericMaps.putToCountersI64(Long.MAX_VALUE, 1.5);
+    numericMaps.putToLabelsI16((short) 12, "short");
+    numericMaps.putToLabelsI16(Short.MIN_VALUE, "min");
+    numericMaps.putToCountersByte((byte) -3, 3);
+    numericMaps.putToLabelsDouble(0.5, "half");
+    return numericMaps;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.compiled.TBSONCompiledSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.PackedLists;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONStorage;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.bson.types.Binary;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class TestPackedLists {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    TBSONStorage.reset();
+  }
+
+  @After
+  public void tearDown() {
+    TBSONStorage.reset();
+  }
+
+  @Test
+  public void testPackedDocument() throws Exception {
+    packNumericLists();
+    BSonNumericMaps numericLists = newNumericLists();
+
+    // DBObject
+    DBObject dbObject = new TBSONSerializer().serialize(numericLists);
+    Binary valuesI64 = (Binary) dbObject.get("valuesI64");
+    Assert.assertEquals(PackedLists.SUBTYPE, valuesI64.getType());
+    Assert.assertEquals(4 * 8, valuesI64.length());
+    Assert.assertEquals(3 * 4, ((Binary) dbObject.get("valuesI32")).length());
+    Assert.assertEquals(5 * 8, ((Binary) dbObject.get("valuesDouble")).length());
+
+    BSonNumericMaps actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, dbObject);
+    Assert.assertEquals(numericLists, actual);
+
+    // raw and compiled serializers write the same document
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(numericLists);
+    Assert.assertEquals(document, new TBSONCompiledSerializer().serialize(numericLists));
+
+    actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(numericLists, actual);
+    Assert.assertEquals(numericLists, new TBSONCompiledSerializer().deserialize(document, BSonNumericMaps.class));
+
+    // a document read from the database
+    actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, decode(document));
+    Assert.assertEquals(numericLists, actual);
+    Assert.assertEquals(dbObject.toString(), decode(document).toString());
+  }
+
+  @Test
+  public void testPackedDocumentIsSmaller() throws Exception {
+    BSonNumericMaps numericLists = new BSonNumericMaps();
+    for (int i = 0; i < 100; i++) {
+      numericLists.addToValuesI64(i * 1000L);
+      numericLists.addToValuesDouble(i / 3.0);
+    }
+    int arraySize = new TBSONSerializer().serializeRaw(numericLists).getByteBuffer().remaining();
+
+    packNumericLists();
+    int packedSize = new TBSONSerializer().serializeRaw(numericLists).getByteBuffer().remaining();
+
+    Assert.assertTrue(packedSize < arraySize);
+  }
+
+  @Test
+  public void testNestedPackedList() throws Exception {
+    TBSONStorage.packFields(BSonThrift.class, BSonThrift._Fields.ONE_DOUBLE_LIST);
+
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("string value");
+    bsonThrift.addToOneDoubleList(8.123);
+    bsonThrift.addToOneDoubleList(-0.5);
+    bsonThrift.addToOneStringList("toto1");
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(bsonThrift);
+
+    DBObject dbObject = new TBSONSerializer().serialize(bsonComposite);
+    Assert.assertTrue(((DBObject) dbObject.get("bsonThrift")).get("oneDoubleList") instanceof Binary);
+
+    BSonComposite actual = new BSonComposite();
+    new TBSONDeserializer().deserialize(actual, dbObject);
+    Assert.assertEquals(bsonComposite, actual);
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonComposite);
+    Assert.assertEquals(dbObject.toString(), decode(document).toString());
+    actual = new BSonComposite();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(bsonComposite, actual);
+  }
+
+  @Test
+  public void testEmptyList() throws Exception {
+    packNumericLists();
+    BSonNumericMaps numericLists = new BSonNumericMaps();
+    numericLists.setValuesI64(new ArrayList<Long>());
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(numericLists);
+    Assert.assertEquals(numericLists, new TBSONCompiledSerializer().deserialize(document, BSonNumericMaps.class));
+
+    BSonNumericMaps actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, new TBSONSerializer().serialize(numericLists));
+    Assert.assertEquals(numericLists, actual);
+  }
+
+  @Test
+  public void testArrayDocumentReadWhenPacked() throws Exception {
+    BSonNumericMaps numericLists = newNumericLists();
+    DBObject dbObject = new TBSONSerializer().serialize(numericLists);
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(numericLists);
+
+    packNumericLists();
+    assertReadable(numericLists, dbObject, document);
+  }
+
+  @Test
+  public void testPackedDocumentReadWhenUnpacked() throws Exception {
+    packNumericLists();
+    BSonNumericMaps numericLists = newNumericLists();
+    DBObject dbObject = new TBSONSerializer().serialize(numericLists);
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(numericLists);
+
+    TBSONStorage.unpackFields(BSonNumericMaps.class, BSonNumericMaps._Fields.VALUES_I64, BSonNumericMaps._Fields.VALUES_I32, BSonNumericMaps._Fields.VALUES_DOUBLE);
+    Assert.assertFalse(new TBSONSerializer().serialize(numericLists).get("valuesI64") instanceof Binary);
+    assertReadable(numericLists, dbObject, document);
+  }
+
+  @Test(expected = TException.class)
+  public void testUnsupportedStringList() throws Exception {
+    TBSONStorage.packFields(BSonThrift.class, BSonThrift._Fields.ONE_STRING_LIST);
+  }
+
+  @Test(expected = TException.class)
+  public void testUnsupportedMap() throws Exception {
+    TBSONStorage.packFields(BSonNumericMaps.class, BSonNumericMaps._Fields.COUNTERS_I32);
+  }
+
+  private static void assertReadable(BSonNumericMaps expected, DBObject dbObject, RawBsonDocument document) throws Exception {
+    BSonNumericMaps actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, dbObject);
+    Assert.assertEquals(expected, actual);
+
+    actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(expected, actual);
+
+    actual = new BSonNumericMaps();
+    new TBSONDeserializer().deserialize(actual, decode(document));
+    Assert.assertEquals(expected, actual);
+
+    Assert.assertEquals(expected, new TBSONCompiledSerializer().deserialize(document, BSonNumericMaps.class));
+  }
+
+  private static DBObject decode(RawBsonDocument document) {
+    byte[] bytes = new byte[document.getByteBuffer().remaining()];
+    document.getByteBuffer().get(bytes);
+    return new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+  }
+
+  private static void packNumericLists() throws TException {
+    TBSONStorage.packFields(BSonNumericMaps.class, BSonNumericMaps._Fields.VALUES_I64, BSonNumericMaps._Fields.VALUES_I32, BSonNumericMaps._Fields.VALUES_DOUBLE);
+  }
+
+  private static BSonNumericMaps newNumericLists() {
+    BSonNumericMaps numericLists = new BSonNumericMaps();
+    numericLists.putToCountersI32(7, 42L);
+    numericLists.addToValuesI64(Long.MIN_VALUE);
+    numericLists.addToValuesI64(-1L);
+    numericLists.addToValuesI64(0L);
+    numericLists.addToValuesI64(Long.MAX_VALUE);
+    numericLists.addToValuesI32(Integer.MIN_VALUE);
+    numericLists.addToValuesI32(12);
+    numericLists.addToValuesI32(Integer.MAX_VALUE);
+    numericLists.addToValuesDouble(0.5);
+    numericLists.addToValuesDouble(-0.0);
+    numericLists.addToValuesDouble(Double.MAX_VALUE);
+    numericLists.addToValuesDouble(Double.NaN);
+    numericLists.addToValuesDouble(Double.NEGATIVE_INFINITY);
+    return numericLists;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.thrift.TBase;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONStorage;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestPatch {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    TBSONStorage.reset();
+  }
+
+  @After
+  public void tearDown() {
+    TBSONStorage.reset();
+  }
+
+  @Test
+  public void testEmptyPatch() throws Exception {
+    Assert.assertTrue(new TBSONSerializer().serializePatch(new BSonThrift()).keySet().isEmpty());
+  }
+
+  @Test
+  public void testSetFieldsOnly() throws Exception {
+    BSonThrift patch = new BSonThrift();
+    patch.setOneInter(43);
+    patch.putToOneStringMap("key3", "value3");
+    patch.setThriftEnum(ThriftEnum.VALUE_THREE);
+
+    // the unset primitives (oneBool, oneBigInteger) are not in the patch
+    DBObject update = new TBSONSerializer().serializePatch(patch);
+    Assert.assertEquals(Fixtures.keys("oneInter", "oneStringMap", "thriftEnum"), ((DBObject) update.get("$set")).keySet());
+    Assert.assertEquals(43, ((DBObject) update.get("$set")).get("oneInter"));
+
+    BSonThrift expected = Fixtures.newBSonThrift();
+    expected.setOneInter(43);
+    expected.getOneStringMap().clear();
+    expected.putToOneStringMap("key3", "value3");
+    expected.setThriftEnum(ThriftEnum.VALUE_THREE);
+    assertPatched(Fixtures.newBSonThrift(), update, expected);
+  }
+
+  @Test
+  public void testNestedPatch() throws Exception {
+    BSonComposite stored = new BSonComposite("simple string", Fixtures.newBSonThrift());
+
+    AnotherThrift anotherThrift = new AnotherThrift();
+    anotherThrift.setAnotherInteger(33);
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setAnotherThrift(anotherThrift);
+    bsonThrift.addToOneStringList("toto2");
+    BSonComposite patch = new BSonComposite();
+    patch.setBsonThrift(bsonThrift);
+
+    DBObject update = new TBSONSerializer().serializePatch(patch);
+    Assert.assertEquals(Fixtures.keys("bsonThrift.anotherThrift.anotherInteger", "bsonThrift.oneStringList"), ((DBObject) update.get("$set")).keySet());
+
+    BSonComposite expected = stored.deepCopy();
+    expected.getBsonThrift().getAnotherThrift().setAnotherInteger(33);
+    expected.getBsonThrift().setOneStringList(Arrays.asList("toto2"));
+    assertPatched(stored, update, expected);
+  }
+
+  @Test
+  public void testCompactKeysPatch() throws Exception {
+    TBSONStorage.compactKeys(BSonThrift.class);
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("another value");
+    BSonComposite patch = new BSonComposite();
+    patch.setBsonThrift(bsonThrift);
+
+    DBObject update = new TBSONSerializer().serializePatch(patch);
+    Assert.assertEquals(Fixtures.keys("bsonThrift.1"), ((DBObject) update.get("$set")).keySet());
+  }
+
+  @Test
+  public void testSecuredPatch() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("another value");
+    BSonComposite patch = new BSonComposite();
+    patch.setSimpleString("another string");
+    patch.setBsonThrift(bsonThrift);
+
+    // the ciphered values and the hash
+    DBObject update = new TBSONSerializer().serializePatch(patch);
+    DBObject set = (DBObject) update.get("$set");
+    Assert.assertEquals(Fixtures.keys("securedwrap.1", "bsonThrift.oneString", "bsonThrift.securedwrap.1"), set.keySet());
+    Assert.assertEquals(TBSONUnstackedProtocol.getSecuredWrapper().digestValue("another value"), set.get("bsonThrift.oneString"));
+
+    BSonComposite stored = new BSonComposite("simple string", Fixtures.newBSonThrift());
+    BSonComposite expected = stored.deepCopy();
+    expected.setSimpleString("another string");
+    expected.getBsonThrift().setOneString("another value");
+    assertPatched(stored, update, expected);
+  }
+
+  // the patch applied on the stored document
+  private static <T extends TBase<?, ?>> void assertPatched(T stored, DBObject update, T expected) throws Exception {
+    DBObject document = new TBSONSerializer().serialize(stored);
+    DBObject set = (DBObject) update.get("$set");
+    for (String path : set.keySet()) {
+      String[] keys = path.split("\\.");
+      DBObject parent = document;
+      for (int i = 0; i < keys.length - 1; i++) {
+        DBObject child = (DBObject) parent.get(keys[i]);
+        if (child == null) {
+          child = new BasicDBObject();
+          parent.put(keys[i], child);
+        }
+        parent = child;
+      }
+      parent.put(keys[keys.length - 1], set.get(path));
+    }
+
+    T actual = (T) stored.getClass().newInstance();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONProjection;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class TestProjection {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testIncludeFields() throws Exception {
+    TBSONProjection projection = TBSONProjection.include(Conversation.class, Conversation._Fields.TAGS, Conversation._Fields.ID);
+
+    Assert.assertTrue(projection.isInclusion());
+    Assert.assertEquals(Arrays.asList("id", "tags"), projection.getKeys());
+
+    DBObject expected = new BasicDBObject("id", 1).append("tags", 1);
+    Assert.assertEquals(expected, projection.toDBObject());
+
+    BsonDocument expectedDocument = new BsonDocument("id", new BsonInt32(1)).append("tags", new BsonInt32(1));
+    Assert.assertEquals(expectedDocument, projection.toBsonDocument());
+  }
+
+  @Test
+  public void testNestedPaths() throws Exception {
+    TBSONProjection projection = TBSONProjection.include(Conversation.class, Conversation._Fields.ID)
+        .path(Conversation._Fields.MESSAGES, Message._Fields.SUBJECT)
+        .path(Conversation._Fields.MESSAGES, Message._Fields.TALKER);
+
+    Assert.assertEquals(Arrays.asList("id", "messages.subject", "messages.talker"), projection.getKeys());
+
+    TBSONProjection compositeProjection = TBSONProjection.include(BSonComposite.class)
+        .path(BSonComposite._Fields.BSON_THRIFT, BSonThrift._Fields.ANOTHER_THRIFT, AnotherThrift._Fields.ANOTHER_STRING);
+
+    Assert.assertEquals(Arrays.asList("bsonThrift.anotherThrift.anotherString"), compositeProjection.getKeys());
+  }
+
+  @Test
+  public void testParentPathCoversSubPaths() throws Exception {
+    TBSONProjection projection = TBSONProjection.include(Conversation.class, Conversation._Fields.MESSAGES)
+        .path(Conversation._Fields.MESSAGES, Message._Fields.SUBJECT);
+
+    Assert.assertEquals(Arrays.asList("messages"), projection.getKeys());
+  }
+
+  @Test
+  public void testExcludeMatchesPartialDeserialize() throws Exception {
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    conversation.setAdId(2);
+    conversation.addToTags("TAG1");
+    conversation.addToContributors("USER1");
+    Message message = new Message();
+    message.setTalker("USER1");
+    message.setSubject("subject");
+    conversation.addToMessages(message);
+
+    DBObject dbObject = new TBSONSerializer().serialize(conversation);
+
+    TBSONProjection projection = TBSONProjection.exclude(Conversation.class, Conversation._Fields.MESSAGES, Conversation._Fields.CONTRIBUTORS);
+    Assert.assertFalse(projection.isInclusion());
+    Assert.assertEquals(new BasicDBObject("contributors", 0).append("messages", 0), projection.toDBObject());
+
+    // the document sent by the server
+    DBObject projected = new BasicDBObject(dbObject.toMap());
+    for (String key : projection.getKeys()) {
+      projected.removeField(key);
+    }
+
+    Conversation expected = new Conversation();
+    new TBSONDeserializer().partialDeserialize(expected, dbObject, Conversation._Fields.MESSAGES, Conversation._Fields.CONTRIBUTORS);
+
+    Conversation actual = new Conversation();
+    new TBSONDeserializer().deserialize(actual, projected);
+
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testSecuredFields() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+
+    TBSONProjection projection = TBSONProjection.include(BSonComposite.class, BSonComposite._Fields.SIMPLE_STRING)
+        .path(BSonComposite._Fields.BSON_THRIFT, BSonThrift._Fields.ONE_STRING);
+
+    // the hash is stored under the field name, the ciphered value in the securedwrap
+    Assert.assertEquals(Arrays.asList("bsonThrift.oneString", "bsonThrift.securedwrap.1", "securedwrap.1"), projection.getKeys());
+
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("secret");
+    bsonThrift.setOneInter(42);
+    BSonComposite composite = new BSonComposite();
+    composite.setSimpleString("simple string");
+    composite.setBsonThrift(bsonThrift);
+
+    DBObject dbObject = new TBSONSerializer().serialize(composite);
+
+    // the document sent by the server
+    DBObject projectedBsonThrift = new BasicDBObject();
+    DBObject bsonThriftObject = (DBObject) dbObject.get("bsonThrift");
+    projectedBsonThrift.put("oneString", bsonThriftObject.get("oneString"));
+    projectedBsonThrift.put("securedwrap", bsonThriftObject.get("securedwrap"));
+    DBObject projected = new BasicDBObject("securedwrap", dbObject.get("securedwrap")).append("bsonThrift", projectedBsonThrift);
+
+    BSonComposite actual = new BSonComposite();
+    new TBSONDeserializer().deserialize(actual, projected);
+
+    BSonComposite expected = new BSonComposite();
+    expected.setSimpleString("simple string");
+    expected.setBsonThrift(new BSonThrift().setOneString("secret"));
+
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test(expected = TException.class)
+  public void testUnknownField() throws Exception {
+    TBSONProjection.include(Conversation.class).path(Conversation._Fields.MESSAGES, AnotherThrift._Fields.ANOTHER_STRING);
+  }
+
+  @Test(expected = TException.class)
+  public void testPathThroughScalar() throws Exception {
+    TBSONProjection.include(Conversation.class).path(Conversation._Fields.ID, Message._Fields.SUBJECT);
+  }
+}
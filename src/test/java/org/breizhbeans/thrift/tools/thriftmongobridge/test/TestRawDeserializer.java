@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRawDeserializer {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testRawCompositeNLevel() throws Exception {
+    AnotherThrift anotherThrift = new AnotherThrift();
+    anotherThrift.setAnotherString("str1");
+    anotherThrift.setAnotherInteger(32);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("string value");
+    inputBsonThrift.setOneBool(true);
+    inputBsonThrift.setOneBigInteger(123456789012L);
+    inputBsonThrift.setAnotherThrift(anotherThrift);
+    inputBsonThrift.setThriftEnum(ThriftEnum.VALUE_THREE);
+    inputBsonThrift.setBinaryData("binary data".getBytes());
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(inputBsonThrift);
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonComposite);
+
+    BSonComposite actualThriftObject = new BSonComposite();
+    new TBSONDeserializer().deserialize(actualThriftObject, document);
+
+    Assert.assertEquals(bsonComposite, actualThriftObject);
+  }
+
+  @Test
+  public void testRawContainers() throws Exception {
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.addToOneStringList("toto1");
+    inputBsonThrift.addToOneStringList("toto1");
+    inputBsonThrift.addToOneStringSet("set1");
+    inputBsonThrift.addToOneStringSet("set2");
+    inputBsonThrift.addToOneDoubleList(8.123);
+    inputBsonThrift.addToOneDoubleList(8.129);
+    inputBsonThrift.putToOneStringMap("key1", "value1");
+    inputBsonThrift.putToOneStringMap("key2", "value2");
+    inputBsonThrift.putToOneObjectMapAsValue("key1", new AnotherThrift("value1", 1));
+    inputBsonThrift.putToOneObjectMapAsValue("key2", new AnotherThrift("value2", 2));
+    inputBsonThrift.putToMapEnum(ThriftEnum.VALUE_ONE, "test");
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(inputBsonThrift);
+
+    BSonThrift actualThriftObject = new BSonThrift();
+    new TBSONDeserializer().deserialize(actualThriftObject, document);
+
+    Assert.assertEquals(inputBsonThrift, actualThriftObject);
+  }
+
+  @Test
+  public void testRawObjectListFromDBObject() throws Exception {
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    conversation.addToContributors("USER1");
+    for (int i = 0; i < 3; i++) {
+      Message message = new Message();
+      message.setDate(i);
+      message.setTalker("USER" + i);
+      message.addToReadedBy("USER" + (i + 1));
+      conversation.addToMessages(message);
+    }
+
+    // a document written by the DBObject serializer and stored with an _id
+    DBObject dbObject = new TBSONSerializer().serialize(conversation);
+    dbObject.put("_id", new ObjectId());
+    RawBsonDocument document = new RawBsonDocument(new DefaultDBEncoder().encode(dbObject));
+
+    Conversation actualThriftObject = new Conversation();
+    new TBSONDeserializer().deserialize(actualThriftObject, document);
+
+    Assert.assertEquals(conversation, actualThriftObject);
+  }
+
+  @Test
+  public void testRawPartialDeserialize() throws Exception {
+    AnotherThrift anotherThrift = new AnotherThrift();
+    anotherThrift.setAnotherString("str1");
+    anotherThrift.setAnotherInteger(32);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("string value");
+    inputBsonThrift.setAnotherThrift(anotherThrift);
+    inputBsonThrift.setOneInter(123456789);
+    inputBsonThrift.setOneBool(true);
+    inputBsonThrift.setOneBigInteger(42);
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(inputBsonThrift);
+
+    BSonThrift actualThriftObject = new BSonThrift();
+    new TBSONDeserializer().partialDeserialize(actualThriftObject, document, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_INTER);
+
+    BSonThrift expectedBsonThrift = new BSonThrift();
+    expectedBsonThrift.setAnotherThrift(anotherThrift);
+    expectedBsonThrift.setOneBool(true);
+    expectedBsonThrift.setOneBigInteger(42);
+
+    Assert.assertEquals(expectedBsonThrift, actualThriftObject);
+  }
+
+  @Test
+  public void testRawSecuredFields() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("one string");
+    inputBsonThrift.putToOneStringMap("key1", "value1");
+    inputBsonThrift.putToOneStringMap("key2", "value2");
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(inputBsonThrift);
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonComposite);
+
+    BSonComposite actualThriftObject = new BSonComposite();
+    new TBSONDeserializer().deserialize(actualThriftObject, document);
+
+    Assert.assertEquals(bsonComposite, actualThriftObject);
+  }
+}
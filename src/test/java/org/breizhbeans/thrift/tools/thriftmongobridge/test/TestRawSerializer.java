@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.apache.thrift.TBase;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Message;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRawSerializer {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testRawComposite() throws Exception {
+    AnotherThrift anotherThrift = new AnotherThrift();
+    anotherThrift.setAnotherString("str1");
+    anotherThrift.setAnotherInteger(32);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("string value");
+    inputBsonThrift.setOneBool(true);
+    inputBsonThrift.setOneBigInteger(123456789012L);
+    inputBsonThrift.setAnotherThrift(anotherThrift);
+    inputBsonThrift.setThriftEnum(ThriftEnum.VALUE_TWO);
+    inputBsonThrift.setBinaryData("binary data".getBytes());
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(inputBsonThrift);
+
+    assertSameDocument(bsonComposite, new BSonComposite());
+  }
+
+  @Test
+  public void testRawContainers() throws Exception {
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.addToOneStringList("toto1");
+    inputBsonThrift.addToOneStringList("toto2");
+    inputBsonThrift.addToOneStringSet("set1");
+    inputBsonThrift.addToOneDoubleList(8.123);
+    inputBsonThrift.putToOneStringMap("key1", "value1");
+    inputBsonThrift.putToOneObjectMapAsValue("key2", new AnotherThrift("value2", 2));
+    inputBsonThrift.putToMapEnum(ThriftEnum.VALUE_ONE, "test");
+
+    assertSameDocument(inputBsonThrift, new BSonThrift());
+  }
+
+  @Test
+  public void testRawObjectList() throws Exception {
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    conversation.addToContributors("USER1");
+    conversation.addToTags("TAG1");
+    for (int i = 0; i < 3; i++) {
+      Message message = new Message();
+      message.setDate(i);
+      message.setTalker("USER" + i);
+      message.addToReadedBy("USER" + (i + 1));
+      message.setSubject("A very nice subject");
+      conversation.addToMessages(message);
+    }
+
+    assertSameDocument(conversation, new Conversation());
+  }
+
+  @Test
+  public void testRawSecuredFields() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("secret");
+    inputBsonThrift.putToOneStringMap("key1", "value1");
+
+    assertSameDocument(inputBsonThrift, new BSonThrift());
+  }
+
+  private void assertSameDocument(TBase<?, ?> thriftObject, TBase<?, ?> emptyThriftObject) throws Exception {
+    TBSONSerializer tbsonSerializer = new TBSONSerializer();
+
+    DBObject expectedDbObject = tbsonSerializer.serialize(thriftObject);
+    RawBsonDocument rawBsonDocument = tbsonSerializer.serializeRaw(thriftObject);
+
+    byte[] bytes = new byte[rawBsonDocument.getByteBuffer().remaining()];
+    rawBsonDocument.getByteBuffer().get(bytes);
+    DBObject actualDbObject = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+
+    Assert.assertEquals(expectedDbObject.toString(), actualDbObject.toString());
+
+    // the raw document is readable back
+    new TBSONDeserializer().deserialize(emptyThriftObject, actualDbObject);
+    Assert.assertEquals(thriftObject, emptyThriftObject);
+  }
+}
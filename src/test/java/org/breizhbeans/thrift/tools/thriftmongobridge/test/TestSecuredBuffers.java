@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredBuffers;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredFieldFormat;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrapper;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class TestSecuredBuffers {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testSameDocumentsAsByteArrays() throws Exception {
+    for (SecuredFieldFormat format : SecuredFieldFormat.values()) {
+      BSonComposite bsonComposite = newComposite("simple string");
+
+      addWrapper(new JUnitSecuredWrapper(), format);
+      DBObject expectedDbObject = new TBSONSerializer().serialize(bsonComposite);
+      RawBsonDocument expectedDocument = new TBSONSerializer().serializeRaw(bsonComposite);
+
+      JUnitBufferSecuredWrapper bufferWrapper = new JUnitBufferSecuredWrapper();
+      addWrapper(bufferWrapper, format);
+      DBObject dbObject = new TBSONSerializer().serialize(bsonComposite);
+      RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonComposite);
+
+      Assert.assertEquals(expectedDbObject.toString(), dbObject.toString());
+      Assert.assertEquals(expectedDocument, document);
+      // oneString, 2 map values and simpleString per document
+      Assert.assertEquals(8, bufferWrapper.bufferCiphers.get());
+
+      BSonComposite actual = new BSonComposite();
+      new TBSONDeserializer().deserialize(actual, expectedDbObject);
+      Assert.assertEquals(bsonComposite, actual);
+
+      actual = new BSonComposite();
+      new TBSONDeserializer().deserialize(actual, expectedDocument);
+      Assert.assertEquals(bsonComposite, actual);
+      Assert.assertEquals(8, bufferWrapper.bufferDeciphers.get());
+    }
+  }
+
+  @Test
+  public void testGrowingBuffers() throws Exception {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      builder.append("é€").append(i);
+    }
+    BSonComposite bsonComposite = newComposite(builder.toString());
+
+    for (SecuredFieldFormat format : SecuredFieldFormat.values()) {
+      addWrapper(new JUnitBufferSecuredWrapper(), format);
+      TBSONSerializer serializer = new TBSONSerializer();
+      TBSONDeserializer deserializer = new TBSONDeserializer();
+
+      // the same serializer reuses its buffers
+      for (int i = 0; i < 2; i++) {
+        BSonComposite actual = new BSonComposite();
+        deserializer.deserialize(actual, serializer.serialize(bsonComposite));
+        Assert.assertEquals(bsonComposite, actual);
+
+        RawBsonDocument document = serializer.serializeRaw(bsonComposite);
+        actual = new BSonComposite();
+        deserializer.deserialize(actual, document);
+        Assert.assertEquals(bsonComposite, actual);
+
+        // the hash is computed on the UTF-8 bytes
+        byte[] bytes = new byte[document.getByteBuffer().remaining()];
+        document.getByteBuffer().get(bytes);
+        DBObject dbObject = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+        long hash = TBSONUnstackedProtocol.getSecuredWrapper().digest64(builder.toString().getBytes("UTF-8"));
+        Assert.assertEquals(hash, ((DBObject) dbObject.get("bsonThrift")).get("oneString"));
+      }
+    }
+  }
+
+  @Test
+  public void testDefaultAdapters() throws Exception {
+    TBSONSecuredWrapper wrapper = new JUnitSecuredWrapper();
+    byte[] data = "value to protect".getBytes("UTF-8");
+
+    ByteBuffer dst = ByteBuffer.allocate(64);
+    int length = wrapper.cipher(ByteBuffer.wrap(data), dst);
+    dst.flip();
+    Assert.assertEquals(length, dst.remaining());
+    byte[] ciphered = SecuredBuffers.toArray(dst);
+    Assert.assertArrayEquals(wrapper.cipher(data), ciphered);
+
+    dst.clear();
+    wrapper.decipher(ByteBuffer.wrap(ciphered), dst);
+    dst.flip();
+    Assert.assertEquals("value to protect", SecuredBuffers.toUTF8String(dst));
+
+    ByteBuffer src = ByteBuffer.wrap(data);
+    Assert.assertEquals(wrapper.digest64(data), wrapper.digest64(src));
+    Assert.assertEquals(0, src.position());
+
+    Assert.assertEquals(-1, wrapper.cipherOutputSize(data.length));
+
+    try {
+      wrapper.cipher(ByteBuffer.wrap(data), ByteBuffer.allocate(4));
+      Assert.fail("short destination");
+    } catch (TException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testHexConversions() throws Exception {
+    SecuredBuffers buffers = new SecuredBuffers();
+    byte[] data = new byte[] { 0, 1, 0x7F, (byte) 0x80, (byte) 0xFF };
+
+    String hex = SecuredBuffers.toHex(ByteBuffer.wrap(data));
+    Assert.assertEquals("00017f80ff", hex);
+    Assert.assertArrayEquals(data, SecuredBuffers.toArray(buffers.decodeHex(hex)));
+
+    // an invalid value is not readable
+    TBSONSecuredWrapper wrapper = new JUnitBufferSecuredWrapper();
+    Assert.assertNull(wrapper.decipherString("0g", buffers));
+    Assert.assertNull(wrapper.decipherString("abc", buffers));
+  }
+
+  private void addWrapper(TBSONSecuredWrapper wrapper, SecuredFieldFormat format) throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(wrapper);
+    wrapper.setFieldFormat(format);
+    wrapper.secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+    wrapper.secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+  }
+
+  private BSonComposite newComposite(String value) {
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString(value);
+    bsonThrift.putToOneStringMap("key1", "value1");
+    bsonThrift.putToOneStringMap("key2", value);
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString(value);
+    bsonComposite.setBsonThrift(bsonThrift);
+    return bsonComposite;
+  }
+}
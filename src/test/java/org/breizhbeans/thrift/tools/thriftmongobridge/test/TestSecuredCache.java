@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBObject;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredCache;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrapper;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSecuredCache {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testLRU() throws Exception {
+    SecuredCache<String, Long> cache = new SecuredCache<>(2, SecuredCache.Eviction.LRU);
+    cache.put("a", 1L);
+    cache.put("b", 2L);
+    // a is read : b is the least recently used
+    Assert.assertEquals(Long.valueOf(1L), cache.get("a"));
+    cache.put("c", 3L);
+
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals(Long.valueOf(1L), cache.get("a"));
+    Assert.assertEquals(Long.valueOf(3L), cache.get("c"));
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals(3, cache.getHits());
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(1, cache.getEvictions());
+  }
+
+  @Test
+  public void testFIFO() throws Exception {
+    SecuredCache<String, Long> cache = new SecuredCache<>(2, SecuredCache.Eviction.FIFO);
+    cache.put("a", 1L);
+    cache.put("b", 2L);
+    Assert.assertEquals(Long.valueOf(1L), cache.get("a"));
+    cache.put("c", 3L);
+
+    // the first inserted goes first even if it was read
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals(Long.valueOf(2L), cache.get("b"));
+    Assert.assertEquals(1, cache.getEvictions());
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    SecuredCache<Integer, Integer> cache = new SecuredCache<>(1000, SecuredCache.Eviction.LRU);
+    for (int i = 0; i < 10000; i++) {
+      cache.put(i, i);
+    }
+    Assert.assertTrue(cache.size() <= 1000);
+    Assert.assertEquals(10000 - cache.size(), cache.getEvictions());
+
+    cache.clear();
+    Assert.assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testDigestCache() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONSecuredWrapper wrapper = TBSONUnstackedProtocol.getSecuredWrapper();
+    wrapper.secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("FR");
+    bsonThrift.putToOneStringMap("key1", "FR");
+    DBObject expected = new TBSONSerializer().serialize(bsonThrift);
+    DBObject expectedQuery = wrapper.getBSON("prefix", BSonThrift.class, BSonThrift._Fields.ONE_STRING, "FR");
+
+    wrapper.enableDigestCache(100, SecuredCache.Eviction.LRU);
+    TBSONSerializer serializer = new TBSONSerializer();
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(expected.toString(), serializer.serialize(bsonThrift).toString());
+      Assert.assertEquals(expected.get("oneString"), serializer.serializeRaw(bsonThrift).getInt64("oneString").getValue());
+    }
+    Assert.assertEquals(expectedQuery, wrapper.getBSON("prefix", BSonThrift.class, BSonThrift._Fields.ONE_STRING, "FR"));
+
+    // one value : a single miss, the next digests are hits
+    SecuredCache<String, Long> cache = wrapper.getDigestCache();
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(12, cache.getHits());
+    Assert.assertEquals(Long.valueOf(wrapper.digest64("FR".getBytes("UTF-8"))), cache.get("FR"));
+
+    wrapper.disableCaches();
+    Assert.assertNull(wrapper.getDigestCache());
+  }
+
+  @Test
+  public void testQueryKeysCache() throws Exception {
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONSecuredWrapper wrapper = TBSONUnstackedProtocol.getSecuredWrapper();
+    wrapper.secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING);
+
+    DBObject expected = wrapper.getBSON("bsonThrift", BSonThrift.class, BSonThrift._Fields.ONE_STRING, "value");
+    DBObject expectedNoPrefix = wrapper.getBSON(null, BSonThrift.class, BSonThrift._Fields.ONE_STRING, "value");
+    Assert.assertTrue(expected.containsField("bsonThrift.oneString"));
+    Assert.assertTrue(expected.containsField("bsonThrift.securedwrap.1"));
+    Assert.assertTrue(expectedNoPrefix.containsField("securedwrap.1"));
+
+    wrapper.enableQueryKeysCache(10, SecuredCache.Eviction.LRU);
+    for (int i = 0; i < 2; i++) {
+      Assert.assertEquals(expected, wrapper.getBSON("bsonThrift", BSonThrift.class, BSonThrift._Fields.ONE_STRING, "value"));
+      Assert.assertEquals(expectedNoPrefix, wrapper.getBSON(null, BSonThrift.class, BSonThrift._Fields.ONE_STRING, "value"));
+      Assert.assertEquals(expectedNoPrefix, wrapper.getBSON("", BSonThrift.class, BSonThrift._Fields.ONE_STRING, "value"));
+    }
+    Assert.assertEquals(2, wrapper.getQueryKeysCache().size());
+    Assert.assertEquals(2, wrapper.getQueryKeysCache().getMisses());
+    Assert.assertEquals(4, wrapper.getQueryKeysCache().getHits());
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.SecuredFieldFormat;
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSecuredFormat {
+
+  @Before
+  public void setup() throws Exception {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING, BSonThrift._Fields.ONE_STRING_MAP);
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonComposite.class, false, BSonComposite._Fields.SIMPLE_STRING);
+  }
+
+  @Test
+  public void testBinaryDBObject() throws Exception {
+    TBSONUnstackedProtocol.getSecuredWrapper().setFieldFormat(SecuredFieldFormat.BINARY);
+    BSonComposite bsonComposite = newComposite();
+
+    DBObject dbObject = new TBSONSerializer().serialize(bsonComposite);
+
+    String simpleStringId = Short.toString(BSonComposite._Fields.SIMPLE_STRING.getThriftFieldId());
+    Object stored = ((DBObject) dbObject.get("securedwrap")).get(simpleStringId);
+    Assert.assertTrue(stored instanceof byte[]);
+    Assert.assertArrayEquals(TBSONUnstackedProtocol.getSecuredWrapper().cipher("simple string".getBytes("UTF-8")), (byte[]) stored);
+
+    BSonComposite actual = new BSonComposite();
+    new TBSONDeserializer().deserialize(actual, dbObject);
+    Assert.assertEquals(bsonComposite, actual);
+
+    // once stored and read back
+    DBObject decoded = new DefaultDBDecoder().decode(new DefaultDBEncoder().encode(dbObject), (DBCollection) null);
+    actual = new BSonComposite();
+    new TBSONDeserializer().deserialize(actual, decoded);
+    Assert.assertEquals(bsonComposite, actual);
+  }
+
+  @Test
+  public void testBinaryRaw() throws Exception {
+    TBSONUnstackedProtocol.getSecuredWrapper().setFieldFormat(SecuredFieldFormat.BINARY);
+    BSonComposite bsonComposite = newComposite();
+
+    RawBsonDocument document = new TBSONSerializer().serializeRaw(bsonComposite);
+
+    String simpleStringId = Short.toString(BSonComposite._Fields.SIMPLE_STRING.getThriftFieldId());
+    BsonDocument securedWrap = document.getDocument("securedwrap");
+    Assert.assertEquals(BsonType.BINARY, securedWrap.get(simpleStringId).getBsonType());
+
+    BSonComposite actual = new BSonComposite();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(bsonComposite, actual);
+
+    // the DBObject and raw writers produce the same document
+    DBObject dbObject = new TBSONSerializer().serialize(bsonComposite);
+    byte[] bytes = new byte[document.getByteBuffer().remaining()];
+    document.getByteBuffer().get(bytes);
+    Assert.assertEquals(dbObject.toString(), new DefaultDBDecoder().decode(bytes, (DBCollection) null).toString());
+  }
+
+  @Test
+  public void testBinarySmallerThanHex() throws Exception {
+    BSonComposite bsonComposite = newComposite();
+    int hexSize = new TBSONSerializer().serializeRaw(bsonComposite).getByteBuffer().remaining();
+
+    TBSONUnstackedProtocol.getSecuredWrapper().setFieldFormat(SecuredFieldFormat.BINARY);
+    int binarySize = new TBSONSerializer().serializeRaw(bsonComposite).getByteBuffer().remaining();
+
+    Assert.assertTrue(binarySize < hexSize);
+  }
+
+  @Test
+  public void testMixedFormats() throws Exception {
+    BSonComposite bsonComposite = newComposite();
+
+    // documents written before the switch stay readable and the other way around
+    DBObject hexDbObject = new TBSONSerializer().serialize(bsonComposite);
+    RawBsonDocument hexDocument = new TBSONSerializer().serializeRaw(bsonComposite);
+
+    TBSONUnstackedProtocol.getSecuredWrapper().setFieldFormat(SecuredFieldFormat.BINARY);
+    DBObject binaryDbObject = new TBSONSerializer().serialize(bsonComposite);
+    RawBsonDocument binaryDocument = new TBSONSerializer().serializeRaw(bsonComposite);
+
+    assertReadable(bsonComposite, hexDbObject, hexDocument);
+
+    TBSONUnstackedProtocol.getSecuredWrapper().setFieldFormat(SecuredFieldFormat.HEX);
+    assertReadable(bsonComposite, binaryDbObject, binaryDocument);
+  }
+
+  private void assertReadable(BSonComposite expected, DBObject dbObject, RawBsonDocument document) throws Exception {
+    BSonComposite actual = new BSonComposite();
+    new TBSONDeserializer().deserialize(actual, dbObject);
+    Assert.assertEquals(expected, actual);
+
+    actual = new BSonComposite();
+    new TBSONDeserializer().deserialize(actual, document);
+    Assert.assertEquals(expected, actual);
+  }
+
+  private BSonComposite newComposite() {
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("one string");
+    bsonThrift.putToOneStringMap("key1", "value1");
+    bsonThrift.putToOneStringMap("key2", "value2");
+
+    BSonComposite bsonComposite = new BSonComposite();
+    bsonComposite.setSimpleString("simple string");
+    bsonComposite.setBsonThrift(bsonThrift);
+    return bsonComposite;
+  }
+}
@@ -266,6 +266,63 @@ public class TestSerializer {
 		Assert.assertEquals(inputBsonThrift, outputBsonThrift);
 	}
 
+  @Test
+  public void testSerializerReuse() throws Exception {
+    TBSONSerializer tbsonSerializer = new TBSONSerializer();
+
+    // the recycled frames must not leak from a document to the next one
+    Conversation conversation = new Conversation();
+    conversation.setId(1);
+    for (int i = 0; i < 3; i++) {
+      conversation.addToMessages(getMessage(i));
+    }
+    BSonThrift bsonThrift = new BSonThrift();
+    bsonThrift.setOneString("string value");
+    bsonThrift.putToOneObjectMapAsValue("key1", new AnotherThrift("value1", 1));
+
+    DBObject expectedConversation = new TBSONSerializer().serialize(conversation);
+    DBObject expectedBsonThrift = new TBSONSerializer().serialize(bsonThrift);
+
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(expectedConversation.toString(), tbsonSerializer.serialize(conversation).toString());
+      Assert.assertEquals(expectedBsonThrift.toString(), tbsonSerializer.serialize(bsonThrift).toString());
+    }
+  }
+
+  @Test
+  public void testThriftMongoHelperThreads() throws Exception {
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<>();
+
+    for (int t = 0; t < 4; t++) {
+      final int threadIndex = t;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 200; i++) {
+              Conversation conversation = new Conversation();
+              conversation.setId(threadIndex * 1000 + i);
+              conversation.addToMessages(getMessage(i));
+
+              DBObject dbObject = ThriftMongoHelper.thrift2DBObject(conversation);
+              Assert.assertEquals(conversation, ThriftMongoHelper.DBObject2Thrift(dbObject, Conversation.class));
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(Collections.emptyList(), errors);
+  }
+
   private void assertEquals( final TBase<?,?> thriftObject, final DBObject dbObject ) throws Exception {
     //serialize the thrift object in JSON
     TSerializer tjsonSerializer = new TSerializer(new TSimpleJSONProtocol.Factory());
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.DBObject;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONDeserializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializerPool;
+import org.breizhbeans.thrift.tools.thriftmongobridge.ThriftMongoHelper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TestSerializerPool {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testBorrowRelease() throws Exception {
+    TBSONSerializerPool pool = new TBSONSerializerPool(1);
+
+    TBSONSerializer serializer1 = pool.borrowSerializer();
+    TBSONSerializer serializer2 = pool.borrowSerializer();
+    Assert.assertNotSame(serializer1, serializer2);
+
+    // only one idle serializer is kept
+    pool.releaseSerializer(serializer1);
+    pool.releaseSerializer(serializer2);
+    Assert.assertSame(serializer1, pool.borrowSerializer());
+    Assert.assertNotSame(serializer2, pool.borrowSerializer());
+
+    TBSONDeserializer deserializer = pool.borrowDeserializer();
+    pool.releaseDeserializer(deserializer);
+    Assert.assertSame(deserializer, pool.borrowDeserializer());
+  }
+
+  @Test
+  public void testPoolRoundTrip() throws Exception {
+    TBSONSerializerPool pool = new TBSONSerializerPool();
+
+    BSonThrift inputBsonThrift = new BSonThrift();
+    inputBsonThrift.setOneString("string value");
+    inputBsonThrift.setOneInter(42);
+    inputBsonThrift.addToOneStringList("toto1");
+
+    DBObject dbObject = pool.serialize(inputBsonThrift);
+    BSonThrift actualThriftObject = new BSonThrift();
+    pool.deserialize(actualThriftObject, dbObject);
+    Assert.assertEquals(inputBsonThrift, actualThriftObject);
+
+    RawBsonDocument document = pool.serializeRaw(inputBsonThrift);
+    actualThriftObject = new BSonThrift();
+    pool.partialDeserialize(actualThriftObject, document, BSonThrift._Fields.ONE_INTER);
+
+    BSonThrift expectedBsonThrift = inputBsonThrift.deepCopy();
+    expectedBsonThrift.setOneInter(0);
+    Assert.assertEquals(expectedBsonThrift, actualThriftObject);
+  }
+
+  @Test
+  public void testConcurrentUse() throws Exception {
+    final TBSONSerializerPool pool = new TBSONSerializerPool(2);
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<>();
+
+    for (int t = 0; t < 8; t++) {
+      final int threadIndex = t;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 200; i++) {
+              BSonThrift inputBsonThrift = new BSonThrift();
+              inputBsonThrift.setOneString("thread" + threadIndex);
+              inputBsonThrift.setOneBigInteger(i);
+              inputBsonThrift.putToOneObjectMapAsValue("key" + i, new AnotherThrift("value" + i, i));
+
+              BSonThrift actualThriftObject = new BSonThrift();
+              pool.deserialize(actualThriftObject, pool.serialize(inputBsonThrift));
+              Assert.assertEquals(inputBsonThrift, actualThriftObject);
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(Collections.emptyList(), errors);
+  }
+
+  @Test
+  public void testThriftMongoHelperCallScoped() throws Exception {
+    TBSONSerializerPool defaultPool = ThriftMongoHelper.getSerializerPool();
+    try {
+      // nothing retained between the calls
+      ThriftMongoHelper.setSerializerPool(new TBSONSerializerPool(0));
+
+      BSonThrift inputBsonThrift = new BSonThrift();
+      inputBsonThrift.setOneString("string value");
+      inputBsonThrift.addToOneStringSet("set1");
+
+      RawBsonDocument document = ThriftMongoHelper.thrift2RawDocument(inputBsonThrift);
+      Assert.assertEquals(inputBsonThrift, ThriftMongoHelper.rawDocument2Thrift(document, BSonThrift.class));
+
+      DBObject dbObject = ThriftMongoHelper.thrift2DBObject(inputBsonThrift);
+      Assert.assertEquals(inputBsonThrift, ThriftMongoHelper.DBObject2Thrift(dbObject, BSonThrift.class));
+    } finally {
+      ThriftMongoHelper.setSerializerPool(defaultPool);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.StructDescriptor;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.breizhbeans.thrift.tools.thriftmongobridge.secured.TBSONSecuredWrapper.ThriftSecuredField;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestStructDescriptor {
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testSharedBetweenThreads() throws Exception {
+    final StructDescriptor descriptor = StructDescriptor.get(BSonThrift.class);
+    final AtomicReference<StructDescriptor> otherThreadDescriptor = new AtomicReference<>();
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          otherThreadDescriptor.set(StructDescriptor.get(BSonThrift.class));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+
+    Assert.assertSame(descriptor, otherThreadDescriptor.get());
+    Assert.assertEquals(BSonThrift._Fields.ONE_STRING, descriptor.getFieldId("oneString"));
+    Assert.assertEquals("oneString", descriptor.getField(BSonThrift._Fields.ONE_STRING.getThriftFieldId()).tfield.name);
+  }
+
+  @Test
+  public void testSecuredFieldsInvalidate() throws Exception {
+    StructDescriptor descriptor = StructDescriptor.get(BSonThrift.class);
+    Assert.assertFalse(descriptor.getField(BSonThrift._Fields.ONE_STRING.getThriftFieldId()).securedFieldMetaData.isSecured());
+
+    TBSONUnstackedProtocol.addSecuredWrapper(new JUnitSecuredWrapper());
+    TBSONUnstackedProtocol.getSecuredWrapper().secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING);
+
+    StructDescriptor securedDescriptor = StructDescriptor.get(BSonThrift.class);
+    Assert.assertNotSame(descriptor, securedDescriptor);
+    Assert.assertTrue(securedDescriptor.getField(BSonThrift._Fields.ONE_STRING.getThriftFieldId()).securedFieldMetaData.isSecured());
+  }
+
+  // wrapper pausing the load of the descriptor after reading the configuration
+  private static class PausingWrapper extends JUnitSecuredWrapper {
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch resume = new CountDownLatch(1);
+    volatile Thread pausedThread;
+
+    PausingWrapper() throws Exception {
+    }
+
+    @Override
+    public ThriftSecuredField getField(Class<? extends TBase> tbase, Short id) {
+      ThriftSecuredField field = super.getField(tbase, id);
+      if (Thread.currentThread() == pausedThread) {
+        loading.countDown();
+        try {
+          resume.await();
+        } catch (InterruptedException exp) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return field;
+    }
+  }
+
+  @Test
+  public void testClearDuringLoad() throws Exception {
+    final PausingWrapper wrapper = new PausingWrapper();
+    TBSONUnstackedProtocol.addSecuredWrapper(wrapper);
+
+    Thread loader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          StructDescriptor.get(BSonThrift.class);
+        } catch (TException exp) {
+          throw new RuntimeException(exp);
+        }
+      }
+    });
+    wrapper.pausedThread = loader;
+    loader.start();
+
+    // the field is secured while the loader holds the previous configuration
+    wrapper.loading.await();
+    wrapper.secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING);
+    wrapper.pausedThread = null;
+    wrapper.resume.countDown();
+    loader.join();
+
+    Assert.assertTrue(StructDescriptor.get(BSonThrift.class).getField(BSonThrift._Fields.ONE_STRING.getThriftFieldId()).securedFieldMetaData.isSecured());
+  }
+
+  @Test
+  public void testDetachedWrapperKeepsCache() throws Exception {
+    StructDescriptor descriptor = StructDescriptor.get(BSonThrift.class);
+
+    // a wrapper which is not installed does not change the cached metadata
+    JUnitSecuredWrapper wrapper = new JUnitSecuredWrapper();
+    wrapper.secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING);
+    wrapper.removeSecuredClass(BSonThrift.class);
+    Assert.assertSame(descriptor, StructDescriptor.get(BSonThrift.class));
+
+    wrapper.secureThriftFields(BSonThrift.class, true, BSonThrift._Fields.ONE_STRING);
+    TBSONUnstackedProtocol.addSecuredWrapper(wrapper);
+    Assert.assertTrue(StructDescriptor.get(BSonThrift.class).getField(BSonThrift._Fields.ONE_STRING.getThriftFieldId()).securedFieldMetaData.isSecured());
+  }
+
+  @Test
+  public void testFieldLookups() throws Exception {
+    StructDescriptor descriptor = StructDescriptor.get(BSonThrift.class);
+
+    for (BSonThrift._Fields field : BSonThrift._Fields.values()) {
+      Assert.assertSame(field, descriptor.getFieldId(field.getFieldName()));
+      Assert.assertSame(descriptor.getField(field.getThriftFieldId()), descriptor.getField(field.getFieldName()));
+      Assert.assertEquals(field.getFieldName(), descriptor.getField(field.getThriftFieldId()).tfield.name);
+    }
+
+    // declaration order hint, a wrong hint falls back on the name search
+    Assert.assertSame(descriptor.getFieldAt(0), descriptor.getField(descriptor.getFieldAt(0).tfield.name, 0));
+    Assert.assertSame(descriptor.getFieldAt(1), descriptor.getField(descriptor.getFieldAt(1).tfield.name, 0));
+    Assert.assertSame(descriptor.getFieldAt(1), descriptor.getField(descriptor.getFieldAt(1).tfield.name, descriptor.size()));
+
+    Assert.assertNull(descriptor.getField("_id"));
+    Assert.assertNull(descriptor.getField("_id", 0));
+    Assert.assertNull(descriptor.getField((short) 999));
+    Assert.assertNull(descriptor.getField((short) -1));
+  }
+}
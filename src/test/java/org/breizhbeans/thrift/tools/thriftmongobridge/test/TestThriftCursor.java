@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.breizhbeans.thrift.tools.thriftmongobridge.test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.breizhbeans.thrift.tools.thriftmongobridge.TBSONSerializer;
+import org.breizhbeans.thrift.tools.thriftmongobridge.ThriftCursor;
+import org.breizhbeans.thrift.tools.thriftmongobridge.ThriftMongoHelper;
+import org.breizhbeans.thrift.tools.thriftmongobridge.jug.test.Conversation;
+import org.breizhbeans.thrift.tools.thriftmongobridge.protocol.TBSONUnstackedProtocol;
+import org.bson.BSONException;
+import org.bson.RawBsonDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class TestThriftCursor {
+
+  // driver cursor failing after some documents
+  private static class SourceCursor<D> implements Iterator<D>, Closeable {
+    private final Iterator<D> documents;
+    private final int failAt;
+    private int read = 0;
+    // thrown instead of the connection lost
+    Error error;
+    volatile boolean closed = false;
+
+    SourceCursor(List<D> documents, int failAt) {
+      this.documents = documents.iterator();
+      this.failAt = failAt;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return documents.hasNext();
+    }
+
+    @Override
+    public D next() {
+      if (read++ == failAt) {
+        if (error != null) {
+          throw error;
+        }
+        throw new IllegalStateException("connection lost");
+      }
+      return documents.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  // tailable driver cursor waiting for documents, deaf to the interrupts
+  private static class AwaitCursor implements Iterator<RawBsonDocument>, Closeable {
+    final CountDownLatch waiting = new CountDownLatch(1);
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public boolean hasNext() {
+      waiting.countDown();
+      while (true) {
+        try {
+          closed.await();
+          throw new IllegalStateException("cursor closed");
+        } catch (InterruptedException exp) {
+          // ignored as a socket read does
+        }
+      }
+    }
+
+    @Override
+    public RawBsonDocument next() {
+      throw new NoSuchElementException();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+  }
+
+  @Before
+  public void setup() {
+    TBSONUnstackedProtocol.resetSecuredWrapper();
+  }
+
+  @Test
+  public void testOrderedCursor() throws Exception {
+    List<Conversation> conversations = Fixtures.conversations(1050);
+    SourceCursor<RawBsonDocument> source = new SourceCursor<>(ThriftMongoHelper.thrift2RawDocuments(conversations), -1);
+
+    List<Conversation> actual = new ArrayList<>();
+    try (ThriftCursor<Conversation> cursor = ThriftCursor.ofRaw(source, Conversation.class, true, 100, 2, ThriftMongoHelper.getBatchPool())) {
+      Assert.assertTrue(cursor.isOrdered());
+      while (cursor.hasNext()) {
+        actual.add(cursor.next());
+      }
+    }
+
+    Assert.assertEquals(conversations, actual);
+    Assert.assertTrue(source.closed);
+  }
+
+  @Test
+  public void testUnorderedCursor() throws Exception {
+    List<Conversation> conversations = Fixtures.conversations(1050);
+    List<DBObject> dbObjects = ThriftMongoHelper.thrift2DBObjects(conversations);
+
+    Set<Conversation> actual = new HashSet<>();
+    try (ThriftCursor<Conversation> cursor = ThriftCursor.ofDBObjects(dbObjects.iterator(), Conversation.class, false, 10, 4, ThriftMongoHelper.getBatchPool())) {
+      while (cursor.hasNext()) {
+        actual.add(cursor.next());
+      }
+    }
+
+    Assert.assertEquals(new HashSet<>(conversations), actual);
+  }
+
+  @Test
+  public void testEmptyCursor() throws Exception {
+    try (ThriftCursor<Conversation> cursor = ThriftCursor.ofRaw(new ArrayList<RawBsonDocument>().iterator(), Conversation.class, true)) {
+      Assert.assertFalse(cursor.hasNext());
+    }
+  }
+
+  @Test
+  public void testDecodeFailure() throws Exception {
+    List<DBObject> dbObjects = new ArrayList<>();
+    dbObjects.add(new TBSONSerializer().serialize(new Conversation().setId(1)));
+    dbObjects.add(new BasicDBObject("id", "not an integer"));
+
+    try (ThriftCursor<Conversation> cursor = ThriftCursor.ofDBObjects(dbObjects.iterator(), Conversation.class, true, 1, 2, ThriftMongoHelper.getBatchPool())) {
+      Assert.assertEquals(1, cursor.next().getId());
+      cursor.next();
+      Assert.fail();
+    } catch (BSONException exp) {
+      Assert.assertTrue(exp.getCause() instanceof ClassCastException);
+    }
+  }
+
+  @Test
+  public void testFetchFailure() throws Exception {
+    SourceCursor<RawBsonDocument> source = new SourceCursor<>(ThriftMongoHelper.thrift2RawDocuments(Fixtures.conversations(300)), 150);
+
+    int read = 0;
+    try (ThriftCursor<Conversation> cursor = ThriftCursor.ofRaw(source, Conversation.class, true, 50, 2, ThriftMongoHelper.getBatchPool())) {
+      while (cursor.hasNext()) {
+        cursor.next();
+        read++;
+      }
+      Assert.fail();
+    } catch (BSONException exp) {
+      Assert.assertEquals("connection lost", exp.getCause().getMessage());
+    }
+    Assert.assertEquals(150, read);
+  }
+
+  @Test(timeout = 10000)
+  public void testFetchError() throws Exception {
+    SourceCursor<RawBsonDocument> source = new SourceCursor<>(ThriftMongoHelper.thrift2RawDocuments(Fixtures.conversations(300)), 150);
+    source.error = new NoClassDefFoundError("driver class");
+
+    int read = 0;
+    try (ThriftCursor<Conversation> cursor = ThriftCursor.ofRaw(source, Conversation.class, false, 50, 2, ThriftMongoHelper.getBatchPool())) {
+      while (cursor.hasNext()) {
+        cursor.next();
+        read++;
+      }
+      Assert.fail();
+    } catch (BSONException exp) {
+      Assert.assertTrue(exp.getCause() instanceof NoClassDefFoundError);
+    }
+    Assert.assertTrue(read <= 150);
+  }
+
+  @Test
+  public void testCloseBeforeTheEnd() throws Exception {
+    SourceCursor<RawBsonDocument> source = new SourceCursor<>(ThriftMongoHelper.thrift2RawDocuments(Fixtures.conversations(1000)), -1);
+
+    ThriftCursor<Conversation> cursor = ThriftCursor.ofRaw(source, Conversation.class, true, 10, 1, ThriftMongoHelper.getBatchPool());
+    Assert.assertEquals(0, cursor.next().getId());
+    // the fetcher is waiting for the consumer
+    cursor.close();
+    Assert.assertTrue(source.closed);
+  }
+
+  @Test(timeout = 10000)
+  public void testCloseWhileFetching() throws Exception {
+    AwaitCursor source = new AwaitCursor();
+
+    ThriftCursor<Conversation> cursor = ThriftCursor.ofRaw(source, Conversation.class, true);
+    source.waiting.await();
+    // the source is closed first, the blocked fetch fails and the fetcher ends
+    cursor.close();
+  }
+}
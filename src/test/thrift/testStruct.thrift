@@ -85,3 +85,14 @@ struct BSonTTypes {
   11:set<double>        ttypeSetDouble,
   12:map<string,double> ttypeMapDouble,
 }
+
+struct BSonNumericMaps {
+  1:map<i32,i64>        countersI32,
+  2:map<i64,double>     countersI64,
+  3:map<i16,string>     labelsI16,
+  4:map<byte,i32>       countersByte,
+  5:map<double,string>  labelsDouble,
+  6:list<i64>           valuesI64,
+  7:list<i32>           valuesI32,
+  8:list<double>        valuesDouble,
+}